@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2008, Matthias Mann
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Matthias Mann nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.matthiasmann.coroutines;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+
+import java.util.concurrent.ExecutionException;
+
+/**
+ * <p>Positional file I/O for Coroutines on an {@link
+ * AsynchronousFileChannel}.</p>
+ *
+ * <p>The methods must be called from a Coroutine started by a {@link
+ * CoroutineScheduler}. The calling Coroutine parks after the operation was
+ * submitted to the channel and is resumed by a {@link CoFuture} which is
+ * used as the completion handler. No thread is blocked while the operation is
+ * pending.</p>
+ *
+ * @author Matthias Mann
+ */
+public final class AsyncFileIO {
+  private AsyncFileIO() {
+  }
+
+  /**
+   * Reads bytes from the given position of the file.
+   *
+   * @param  ch       the channel
+   * @param  dst      the buffer
+   * @param  position the file position at which the read starts
+   *
+   * @return the number of bytes read or -1 if the position is at or after
+   *         the end of the file
+   *
+   * @throws IOException           if an I/O error occurs
+   * @throws SuspendExecution      de.matthiasmann.coroutines.SuspendExecution
+   *                               This method will suspend the execution
+   * @throws IllegalStateException If not called from a scheduled Coroutine
+   */
+  public static int read(
+    AsynchronousFileChannel ch, ByteBuffer dst, long position
+  )
+      throws IOException, SuspendExecution {
+    checkScheduled();
+
+    CoFuture<Integer> f = new CoFuture<Integer>();
+
+    ch.read(dst, position, null, f);
+
+    return await(f);
+  }
+
+  /**
+   * Reads bytes from the given position of the file until the buffer is
+   * full or the end of the file is reached.
+   *
+   * @param  ch       the channel
+   * @param  dst      the buffer
+   * @param  position the file position at which the read starts
+   *
+   * @return the number of bytes read
+   *
+   * @throws IOException           if an I/O error occurs
+   * @throws SuspendExecution      de.matthiasmann.coroutines.SuspendExecution
+   *                               This method will suspend the execution
+   * @throws IllegalStateException If not called from a scheduled Coroutine
+   */
+  public static int readFully(
+    AsynchronousFileChannel ch, ByteBuffer dst, long position
+  )
+      throws IOException, SuspendExecution {
+    int total = 0;
+
+    while (dst.hasRemaining()) {
+      int n = read(ch, dst, position + total);
+
+      if (n < 0) {
+        break;
+      }
+
+      total += n;
+    }
+
+    return total;
+  }
+
+  /**
+   * Writes all remaining bytes of the buffer at the given position of the
+   * file.
+   *
+   * @param  ch       the channel
+   * @param  src      the buffer
+   * @param  position the file position at which the write starts
+   *
+   * @return the number of bytes written
+   *
+   * @throws IOException           if an I/O error occurs
+   * @throws SuspendExecution      de.matthiasmann.coroutines.SuspendExecution
+   *                               This method will suspend the execution
+   * @throws IllegalStateException If not called from a scheduled Coroutine
+   */
+  public static int write(
+    AsynchronousFileChannel ch, ByteBuffer src, long position
+  )
+      throws IOException, SuspendExecution {
+    checkScheduled();
+
+    int total = 0;
+
+    // a write may complete with only a part of the buffer
+    while (src.hasRemaining()) {
+      CoFuture<Integer> f = new CoFuture<Integer>();
+
+      ch.write(src, position + total, null, f);
+      total += await(f);
+    }
+
+    return total;
+  }
+
+  private static void checkScheduled() {
+    Coroutine co = Coroutine.getActiveCoroutine();
+
+    // check before the operation is started - not only when it is pending
+    if ((co == null) || (co.scheduler == null)) {
+      throw new IllegalStateException("Not called from a scheduled Coroutine");
+    }
+  }
+
+  private static int await(CoFuture<Integer> f)
+      throws IOException, SuspendExecution {
+    try {
+      return CoroutineScheduler.await(f);
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+
+      throw new IOException(cause);
+    }
+  }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2008, Matthias Mann
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Matthias Mann nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.matthiasmann.coroutines;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * <p>A bounded channel for passing values between Coroutines. Any number of
+ * Coroutines may send and receive at the same time.</p>
+ *
+ * <p>The values are kept in a lock-free ring buffer. Each slot has a
+ * sequence number which tells senders and receivers if the slot is free or
+ * holds a value for the current round - a sender or receiver only contends
+ * on a single compare and set.</p>
+ *
+ * <p>{@link #send(Object)} and {@link #receive()} park the calling Coroutine
+ * while the channel is full or empty and must be called from a Coroutine
+ * started by a {@link CoroutineScheduler}. The parked Coroutine is submitted
+ * again when a value was received or sent. {@link #offer(Object)} and
+ * {@link #poll()} never wait and can also be called from normal
+ * threads.</p>
+ *
+ * @param  <T> the type of the values
+ *
+ * @author Matthias Mann
+ */
+public class Channel<T> {
+  @SuppressWarnings("rawtypes")
+  private static final AtomicLongFieldUpdater<Channel> sendPos =
+    AtomicLongFieldUpdater.newUpdater(Channel.class, "sendIndex");
+
+  @SuppressWarnings("rawtypes")
+  private static final AtomicLongFieldUpdater<Channel> receivePos =
+    AtomicLongFieldUpdater.newUpdater(Channel.class, "receiveIndex");
+
+  private final Object[] buffer;
+  private final AtomicLongArray sequences;
+  private final int mask;
+
+  final WaitQueue notEmpty;
+  final WaitQueue notFull;
+
+  private volatile long sendIndex;
+  private volatile long receiveIndex;
+
+  /**
+   * Creates a new Channel. The capacity is rounded up to the next power of
+   * two and is at least 2.
+   *
+   * @param  capacity the minimum number of values the channel can hold
+   *
+   * @throws IllegalArgumentException if capacity is &lt; 1 or too large
+   */
+  public Channel(int capacity) {
+    if ((capacity < 1) || (capacity > (1 << 30))) {
+      throw new IllegalArgumentException("capacity");
+    }
+
+    int size = Math.max(2, Integer.highestOneBit(capacity - 1) << 1);
+
+    this.buffer = new Object[size];
+    this.sequences = new AtomicLongArray(size);
+    this.mask = size - 1;
+    this.notEmpty = new WaitQueue();
+    this.notFull = new WaitQueue();
+
+    for (int i = 0; i < size; i++) {
+      sequences.set(i, i);
+    }
+  }
+
+  /**
+   * Returns the number of values the channel can hold.
+   *
+   * @return the number of values the channel can hold.
+   */
+  public int getCapacity() {
+    return buffer.length;
+  }
+
+  /**
+   * Adds a value if the channel is not full.
+   *
+   * @param  value the value
+   *
+   * @return true if the value was added, false if the channel is full
+   *
+   * @throws NullPointerException if value is null
+   */
+  public boolean offer(T value) {
+    if (value == null) {
+      throw new NullPointerException("value");
+    }
+
+    long pos = sendIndex;
+
+    for (;;) {
+      int idx = (int) pos & mask;
+      long diff = sequences.get(idx) - pos;
+
+      if (diff == 0) {
+        if (sendPos.compareAndSet(this, pos, pos + 1)) {
+          buffer[idx] = value;
+
+          // a volatile store - the signal must not pass it
+          sequences.set(idx, pos + 1);
+          notEmpty.signal();
+
+          return true;
+        }
+      } else if (diff < 0) {
+        return false; // the slot of the last round was not yet received
+      }
+
+      pos = sendIndex;
+    }
+  }
+
+  /**
+   * Removes a value if the channel is not empty.
+   *
+   * @return the oldest value or null if the channel is empty
+   */
+  @SuppressWarnings("unchecked")
+  public T poll() {
+    long pos = receiveIndex;
+
+    for (;;) {
+      int idx = (int) pos & mask;
+      long diff = sequences.get(idx) - (pos + 1);
+
+      if (diff == 0) {
+        if (receivePos.compareAndSet(this, pos, pos + 1)) {
+          Object value = buffer[idx];
+
+          buffer[idx] = null;
+          sequences.set(idx, pos + buffer.length);
+          notFull.signal();
+
+          return (T) value;
+        }
+      } else if (diff < 0) {
+        return null; // the slot was not yet sent
+      }
+
+      pos = receiveIndex;
+    }
+  }
+
+  /**
+   * Sends a value. Parks the calling Coroutine while the channel is full.
+   *
+   * @param  value the value
+   *
+   * @throws SuspendExecution      de.matthiasmann.coroutines.SuspendExecution
+   *                               This method will suspend the execution
+   * @throws NullPointerException  if value is null
+   * @throws IllegalStateException If the channel is full and this is not
+   *                               called from a scheduled Coroutine
+   */
+  public void send(T value)
+      throws SuspendExecution {
+    while (!offer(value)) {
+      WaitQueue.Waiter w = new WaitQueue.Waiter();
+
+      notFull.add(w);
+
+      // a value may have been received before the Waiter was added
+      if (offer(value)) {
+        notFull.cancel(w);
+
+        return;
+      }
+
+      w.await();
+    }
+  }
+
+  /**
+   * Receives a value. Parks the calling Coroutine while the channel is
+   * empty.
+   *
+   * @return the oldest value
+   *
+   * @throws SuspendExecution      de.matthiasmann.coroutines.SuspendExecution
+   *                               This method will suspend the execution
+   * @throws IllegalStateException If the channel is empty and this is not
+   *                               called from a scheduled Coroutine
+   */
+  public T receive()
+      throws SuspendExecution {
+    T value;
+
+    while ((value = poll()) == null) {
+      WaitQueue.Waiter w = new WaitQueue.Waiter();
+
+      notEmpty.add(w);
+
+      // a value may have been sent before the Waiter was added
+      if ((value = poll()) != null) {
+        notEmpty.cancel(w);
+
+        return value;
+      }
+
+      w.await();
+    }
+
+    return value;
+  }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2008, Matthias Mann
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Matthias Mann nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.matthiasmann.coroutines;
+
+import java.nio.channels.CompletionHandler;
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * <p>A Future which is completed explicitly and resumes the Coroutines
+ * waiting for it in {@link CoroutineScheduler#await(Future)} as soon as it
+ * is done.</p>
+ *
+ * <p>It is also a {@link CompletionHandler} so that it can be passed
+ * directly to asynchronous channel operations. Callback based clients
+ * complete it from their callback.</p>
+ *
+ * @param  <V> the type of the result
+ *
+ * @author Matthias Mann
+ */
+public class CoFuture<V> implements Future<V>, CompletionHandler<V, Object> {
+  private static final int PENDING = 0;
+  private static final int SUCCEEDED = 1;
+  private static final int FAILED = 2;
+  private static final int CANCELLED = 3;
+
+  private volatile int state;
+  private V value;
+  private Throwable failure;
+
+  // guarded by this - null when done
+  private ArrayList<Coroutine> waiters = new ArrayList<Coroutine>();
+
+  /**
+   * Completes this future with a value.
+   *
+   * @param  value the result
+   *
+   * @return true if this call completed the future
+   */
+  public boolean complete(V value) {
+    return finish(SUCCEEDED, value, null);
+  }
+
+  /**
+   * Completes this future with an exception.
+   *
+   * @param  failure the cause of the failure
+   *
+   * @return true if this call completed the future
+   *
+   * @throws NullPointerException if failure is null
+   */
+  public boolean fail(Throwable failure) {
+    if (failure == null) {
+      throw new NullPointerException("failure");
+    }
+
+    return finish(FAILED, null, failure);
+  }
+
+  /**
+   * Cancels this future if it is not yet done.
+   *
+   * @param  mayInterruptIfRunning ignored
+   *
+   * @return true if this call cancelled the future
+   */
+  public boolean cancel(boolean mayInterruptIfRunning) {
+    return finish(CANCELLED, null, null);
+  }
+
+  /**
+   * DOCUMENT ME!
+   *
+   * @return DOCUMENT ME!
+   */
+  public boolean isCancelled() {
+    return state == CANCELLED;
+  }
+
+  /**
+   * DOCUMENT ME!
+   *
+   * @return DOCUMENT ME!
+   */
+  public boolean isDone() {
+    return state != PENDING;
+  }
+
+  /**
+   * Waits until this future is done. This blocks the calling thread - use
+   * {@link CoroutineScheduler#await(Future)} in a Coroutine.
+   *
+   * @return the result
+   *
+   * @throws InterruptedException if interrupted while waiting
+   * @throws ExecutionException   if the future failed
+   */
+  public synchronized V get()
+      throws InterruptedException, ExecutionException {
+    while (state == PENDING) {
+      wait();
+    }
+
+    return report();
+  }
+
+  /**
+   * Waits until this future is done or the timeout has passed. This blocks
+   * the calling thread - use {@link CoroutineScheduler#await(Future)} in a
+   * Coroutine.
+   *
+   * @param  timeout the maximum time to wait
+   * @param  unit    the unit of the timeout argument
+   *
+   * @return the result
+   *
+   * @throws InterruptedException if interrupted while waiting
+   * @throws ExecutionException   if the future failed
+   * @throws TimeoutException     if the future is not done in time
+   */
+  public synchronized V get(long timeout, TimeUnit unit)
+      throws InterruptedException, ExecutionException, TimeoutException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+    while (state == PENDING) {
+      long remaining = deadline - System.nanoTime();
+
+      if (remaining <= 0) {
+        throw new TimeoutException();
+      }
+
+      TimeUnit.NANOSECONDS.timedWait(this, remaining);
+    }
+
+    return report();
+  }
+
+  /**
+   * Completes this future with the result of an asynchronous channel
+   * operation.
+   *
+   * @param result     the result
+   * @param attachment ignored
+   */
+  public void completed(V result, Object attachment) {
+    complete(result);
+  }
+
+  /**
+   * Completes this future with the exception of an asynchronous channel
+   * operation.
+   *
+   * @param exc        the exception
+   * @param attachment ignored
+   */
+  public void failed(Throwable exc, Object attachment) {
+    fail(exc);
+  }
+
+  /**
+   * Adds a Coroutine which is submitted to it's scheduler when this future
+   * is done.
+   *
+   * @param  co the Coroutine
+   *
+   * @return false if this future is already done
+   */
+  synchronized boolean addWaiter(Coroutine co) {
+    if (waiters == null) {
+      return false;
+    }
+
+    waiters.add(co);
+
+    return true;
+  }
+
+  synchronized void removeWaiter(Coroutine co) {
+    if (waiters != null) {
+      waiters.remove(co);
+    }
+  }
+
+  private boolean finish(int newState, V newValue, Throwable newFailure) {
+    ArrayList<Coroutine> toResume;
+
+    synchronized (this) {
+      if (state != PENDING) {
+        return false;
+      }
+
+      value = newValue;
+      failure = newFailure;
+      state = newState;
+      toResume = waiters;
+      waiters = null;
+      notifyAll();
+    }
+
+    // never throws - the caller completed the future and all waiters must
+    // get the wakeup
+    for (int i = 0, n = toResume.size(); i < n; i++) {
+      CoroutineScheduler.resume(toResume.get(i));
+    }
+
+    return true;
+  }
+
+  private V report()
+      throws ExecutionException {
+    switch (state) {
+      case SUCCEEDED:
+        return value;
+
+      case FAILED:
+        throw new ExecutionException(failure);
+
+      default:
+        throw new CancellationException();
+    }
+  }
+}
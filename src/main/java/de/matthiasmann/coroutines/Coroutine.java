@@ -28,8 +28,20 @@
  */
 package de.matthiasmann.coroutines;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.io.StreamCorruptedException;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
 
 import de.matthiasmann.coroutines.instrument.AlreadyInstrumented;
 
@@ -46,6 +58,11 @@ import de.matthiasmann.coroutines.instrument.AlreadyInstrumented;
 public class Coroutine implements Runnable, Serializable {
   private static final long serialVersionUID = 2783452871536981L;
 
+  private static final int SNAPSHOT_VERSION = 3;
+
+  private static volatile StackShrinkPolicy shrinkPolicy =
+    StackShrinkPolicy.DEFAULT;
+
   /**
    * DOCUMENT ME!
    *
@@ -70,10 +87,22 @@ public class Coroutine implements Runnable, Serializable {
     FINISHED
   }
 
-  private final CoRunnable proto;
-  private final Stack stack;
+  private CoRunnable proto;
+  private Stack stack;
   private State state;
 
+  /** the scheduler this Coroutine was submitted to or null */
+  transient volatile CoroutineScheduler scheduler;
+
+  /** the scheduling state - only modified by {@link CoroutineScheduler} */
+  transient volatile int schedulerState;
+
+  /** set by {@link CoroutineScheduler#park()} before suspending */
+  transient boolean parked;
+
+  /** the pending timeout of {@link CoroutineScheduler#parkUntil(long)} */
+  transient TimerWheel.Timeout timeout;
+
   /**
    * Creates a new Coroutine from the given CoroutineProto. A CoroutineProto
    * can be used in several Coroutines at the same time - but then the normal
@@ -84,15 +113,16 @@ public class Coroutine implements Runnable, Serializable {
    * @throws NullPointerException DOCUMENT ME!
    */
   public Coroutine(CoRunnable proto) {
-    this.proto = proto;
-    this.stack = new Stack(this);
-    this.state = State.NEW;
-
     if (proto == null) {
       throw new NullPointerException("proto");
     }
 
     assert isInstrumented(proto): "Not instrumented";
+
+    // the Stack is acquired by the first run() from the pool of the thread
+    // which runs the Coroutine - the one which also releases it
+    this.proto = proto;
+    this.state = State.NEW;
   }
 
   /**
@@ -117,7 +147,7 @@ public class Coroutine implements Runnable, Serializable {
    *         running.
    */
   public static Coroutine getActiveCoroutine() {
-    Stack s = Stack.getStack();
+    Stack s = Stack.getCarrierStack();
 
     if (s != null) {
       return s.co;
@@ -126,6 +156,32 @@ public class Coroutine implements Runnable, Serializable {
     return null;
   }
 
+  /**
+   * Returns the policy used to shrink the stacks of suspended and finished
+   * Coroutines.
+   *
+   * @return the current shrink policy
+   */
+  public static StackShrinkPolicy getShrinkPolicy() {
+    return shrinkPolicy;
+  }
+
+  /**
+   * Sets the policy used to shrink the stacks of all Coroutines. The policy
+   * is applied each time a Coroutine suspends or finishes.
+   *
+   * @param  policy the new shrink policy
+   *
+   * @throws NullPointerException if policy is null
+   */
+  public static void setShrinkPolicy(StackShrinkPolicy policy) {
+    if (policy == null) {
+      throw new NullPointerException("policy");
+    }
+
+    shrinkPolicy = policy;
+  }
+
   /**
    * Returns the CoroutineProto that is used for this Coroutine.
    *
@@ -135,6 +191,51 @@ public class Coroutine implements Runnable, Serializable {
     return proto;
   }
 
+  /**
+   * <p>Resets this Coroutine so that it can be used to run another
+   * CoroutineProto. The Coroutine is in the state NEW afterwards.</p>
+   *
+   * <p>A Coroutine can only be reset when it is not running and not
+   * scheduled. Resetting a SUSPENDED Coroutine discards it's saved
+   * state. A pending timeout of a parked Coroutine is cancelled and later
+   * wakeups from the old CoroutineScheduler are ignored.</p>
+   *
+   * @param  proto The CoroutineProto for the Coroutine.
+   *
+   * @throws IllegalStateException if the Coroutine is currently running or
+   *                               scheduled
+   * @throws NullPointerException  if proto is null
+   */
+  public void reset(CoRunnable proto) {
+    if (proto == null) {
+      throw new NullPointerException("proto");
+    }
+
+    assert isInstrumented(proto): "Not instrumented";
+
+    // wakeups which race with the reset are dropped until it is done
+    if ((state == State.RUNNING) || !CoroutineScheduler.beginReset(this)) {
+      throw new IllegalStateException("Running or scheduled");
+    }
+
+    try {
+      if (stack != null) {
+        stack.clear();
+      }
+
+      if (timeout != null) {
+        scheduler.cancelTimeout(this);
+      }
+
+      this.proto = proto;
+      this.parked = false;
+      this.scheduler = null;
+      this.state = State.NEW;
+    } finally {
+      CoroutineScheduler.endReset(this);
+    }
+  }
+
   /**
    * <p>Returns the current state of this Coroutine. May be called by the
    * Coroutine itself but should not be called by another thread.</p>
@@ -165,6 +266,10 @@ public class Coroutine implements Runnable, Serializable {
       throw new IllegalStateException("Not new or suspended");
     }
 
+    if (stack == null) {
+      stack = Stack.acquire(this);
+    }
+
     State result = State.FINISHED;
     Stack oldStack = Stack.getStack();
 
@@ -179,14 +284,164 @@ public class Coroutine implements Runnable, Serializable {
         result = State.SUSPENDED;
 
         // stack.dump();
-        stack.resumeStack();
       }
     } finally {
       Stack.setStack(oldStack);
       state = result;
+      stack.shrink(shrinkPolicy);
+
+      if (result == State.FINISHED) {
+        // the Stack is no longer needed - let the next Coroutine reuse it
+        stack.release();
+        stack = null;
+      }
     }
   }
 
+  /**
+   * Writes a compact snapshot of this Coroutine. Only the used part of the
+   * stack is written, primitives are varint encoded and runs of null
+   * references are collapsed. The CoroutineProto and all references saved on
+   * the stack are written with the given codec.
+   *
+   * <p>Each object is only written once - a reference which is saved several
+   * times, like the CoroutineProto as the receiver of a suspended method,
+   * is restored as the same object. With the {@link SerializationCodec} all
+   * objects are written into a single object stream, so objects which are
+   * reachable from several saved references also stay shared.</p>
+   *
+   * @param  out   the output
+   * @param  codec the codec for the CoroutineProto and the saved references
+   *
+   * @throws IOException           if an I/O error occurs
+   * @throws IllegalStateException if the Coroutine is running
+   * @see    #readSnapshot(DataInput, ObjectCodec)
+   */
+  public void writeSnapshot(DataOutput out, ObjectCodec codec)
+      throws IOException {
+    State s = state;
+
+    if (s == State.RUNNING) {
+      throw new IllegalStateException(
+        "trying to serialize a running coroutine"
+      );
+    }
+
+    out.writeByte(SNAPSHOT_VERSION);
+    out.writeByte(s.ordinal());
+
+    if (!isSingleStream(out, codec)) {
+      writeSnapshotData(out, codec, s);
+
+      return;
+    }
+
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    ObjectOutputStream oos = new ObjectOutputStream(baos);
+
+    writeSnapshotData(oos, codec, s);
+    oos.close();
+
+    Util.writeVarInt(out, baos.size());
+    out.write(baos.toByteArray());
+  }
+
+  /**
+   * Reads a Coroutine written by {@link #writeSnapshot(DataOutput,
+   * ObjectCodec)}.
+   *
+   * @param  in    the input
+   * @param  codec the codec used to write the snapshot
+   *
+   * @return a new Coroutine which continues where the saved one suspended
+   *
+   * @throws IOException if an I/O error occurs or the snapshot is corrupted
+   */
+  public static Coroutine readSnapshot(DataInput in, ObjectCodec codec)
+      throws IOException {
+    int version = in.readUnsignedByte();
+
+    if (version != SNAPSHOT_VERSION) {
+      throw new StreamCorruptedException(
+        "unsupported snapshot version " + version
+      );
+    }
+
+    int ordinal = in.readUnsignedByte();
+    State[] states = State.values();
+
+    if ((ordinal >= states.length) || (states[ordinal] == State.RUNNING)) {
+      throw new StreamCorruptedException("invalid state " + ordinal);
+    }
+
+    if (!isSingleStream(in, codec)) {
+      return readSnapshotData(in, codec, states[ordinal]);
+    }
+
+    int length = Util.readVarInt(in);
+
+    if (length < 0) {
+      throw new StreamCorruptedException("invalid snapshot length");
+    }
+
+    byte[] bytes = new byte[length];
+
+    in.readFully(bytes);
+
+    ObjectInputStream ois =
+      new ObjectInputStream(new ByteArrayInputStream(bytes));
+
+    try {
+      return readSnapshotData(ois, codec, states[ordinal]);
+    } finally {
+      ois.close();
+    }
+  }
+
+  // Java serialization only keeps objects shared inside of one stream
+  private static boolean isSingleStream(Object stream, ObjectCodec codec) {
+    return (codec instanceof SerializationCodec)
+      && !(stream instanceof ObjectOutput) && !(stream instanceof ObjectInput);
+  }
+
+  private void writeSnapshotData(DataOutput out, ObjectCodec codec, State s)
+      throws IOException {
+    IdentityHashMap<Object, Integer> refs =
+      new IdentityHashMap<Object, Integer>();
+
+    codec.writeObject(out, proto);
+    refs.put(proto, 0);
+
+    if (s == State.SUSPENDED) {
+      stack.writeFrames(out, codec, refs);
+    }
+  }
+
+  private static Coroutine readSnapshotData(
+    DataInput in, ObjectCodec codec, State s
+  )
+      throws IOException {
+    ArrayList<Object> refs = new ArrayList<Object>();
+    Object proto = codec.readObject(in);
+
+    if (!(proto instanceof CoRunnable)) {
+      throw new StreamCorruptedException("not a CoRunnable: " + proto);
+    }
+
+    refs.add(proto);
+
+    Coroutine co = new Coroutine((CoRunnable) proto);
+
+    co.state = s;
+
+    if (s == State.SUSPENDED) {
+      co.stack = Stack.acquire(co);
+      co.stack.readFrames(in, codec, refs);
+    }
+
+    return co;
+  }
+
   private void writeObject(java.io.ObjectOutputStream out)
       throws IOException {
     if (state == State.RUNNING) {
@@ -0,0 +1,821 @@
+/*
+ * Copyright (c) 2008, Matthias Mann
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Matthias Mann nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.matthiasmann.coroutines;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * <p>Runs Coroutines on a fixed set of worker threads.</p>
+ *
+ * <p>Each worker owns a deque of runnable Coroutines. A worker runs the
+ * Coroutines from it's own deque and steals from the other workers when it
+ * runs out of work. A Coroutine which suspends by calling {@link
+ * Coroutine#yield()} is resubmitted to the deque of the worker that ran it.
+ * A Coroutine which suspends by calling {@link #park()} is not resubmitted
+ * until someone calls {@link #submit(Coroutine)} for it again.</p>
+ *
+ * <p>A Coroutine can wait for time with {@link #sleep(long, TimeUnit)} and
+ * {@link #parkUntil(long)} without blocking it's worker. The deadlines are
+ * kept in a hierarchical timing wheel with a resolution of one millisecond.
+ * A timer thread, which is started when the first deadline is added, sleeps
+ * until the next deadline and resubmits all expired Coroutines at once.</p>
+ *
+ * <p>{@link #await(Future)} suspends a Coroutine until a Future is done. A
+ * {@link CoFuture} resubmits the waiting Coroutines when it completes.
+ * Other Futures have no completion callback - they are checked again on
+ * the timer with an increasing interval.</p>
+ *
+ * <p>The workers are {@link CoroutineThread}s so code which was
+ * instrumented with the carrier thread option finds the {@link Stack}
+ * without a ThreadLocal lookup.</p>
+ *
+ * <p>A Coroutine is never run by two threads at the same time. Calling
+ * {@link #submit(Coroutine)} for a Coroutine which is already queued has no
+ * effect, calling it for a Coroutine which is currently running causes it to
+ * be run again after it has suspended.</p>
+ *
+ * @author Matthias Mann
+ */
+public class CoroutineScheduler {
+  private static final int IDLE = 0;
+  private static final int QUEUED = 1;
+  private static final int RUNNING = 2;
+  private static final int RUNNING_NOTIFIED = 3;
+  private static final int RESETTING = 4;
+
+  private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  // the interval for checking Futures which are not CoFutures
+  private static final long MIN_POLL_NANOS = TICK_NANOS;
+  private static final long MAX_POLL_NANOS =
+    TimeUnit.MILLISECONDS.toNanos(100);
+
+  private static final AtomicIntegerFieldUpdater<Coroutine> schedulerState =
+    AtomicIntegerFieldUpdater.newUpdater(Coroutine.class, "schedulerState");
+
+  private final Worker[] workers;
+  private final AtomicInteger nextWorker;
+  private final Object idleLock;
+  private final long startTime;
+  private final TimerWheel wheel;
+
+  // guarded by wheel
+  private Timer timer;
+
+  private volatile int idleWorkers;
+  private volatile boolean shutdown;
+
+  /**
+   * Creates a new CoroutineScheduler with one worker for each available
+   * processor.
+   */
+  public CoroutineScheduler() {
+    this(Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Creates a new CoroutineScheduler object.
+   *
+   * @param  parallelism the number of worker threads
+   *
+   * @throws IllegalArgumentException if parallelism is &lt; 1
+   */
+  public CoroutineScheduler(int parallelism) {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("parallelism");
+    }
+
+    this.workers = new Worker[parallelism];
+    this.nextWorker = new AtomicInteger();
+    this.idleLock = new Object();
+    this.startTime = System.nanoTime();
+    this.wheel = new TimerWheel();
+
+    for (int i = 0; i < parallelism; i++) {
+      workers[i] = new Worker(i);
+    }
+
+    for (Worker w : workers) {
+      w.start();
+    }
+  }
+
+  /**
+   * Returns the scheduler of the active Coroutine on this thread or NULL if
+   * no scheduled Coroutine is running.
+   *
+   * @return the scheduler of the active Coroutine or NULL
+   */
+  public static CoroutineScheduler getActiveScheduler() {
+    Coroutine co = Coroutine.getActiveCoroutine();
+
+    if (co != null) {
+      return co.scheduler;
+    }
+
+    return null;
+  }
+
+  /**
+   * Suspends the currently running Coroutine until it is submitted again.
+   * The Coroutine must have been started by a CoroutineScheduler.
+   *
+   * <p>The Coroutine may be resumed before the condition it waits for is
+   * true - callers must check their condition again after park returns.</p>
+   *
+   * @throws SuspendExecution      de.matthiasmann.coroutines.SuspendExecution
+   *                               This method will suspend the execution
+   * @throws IllegalStateException If not called from a scheduled Coroutine
+   */
+  public static void park()
+      throws SuspendExecution {
+    Coroutine co = Coroutine.getActiveCoroutine();
+
+    if ((co == null) || (co.scheduler == null)) {
+      throw new IllegalStateException("Not called from a scheduled Coroutine");
+    }
+
+    co.parked = true;
+    Coroutine.yield();
+  }
+
+  /**
+   * Suspends the currently running Coroutine until the deadline has passed
+   * or it is submitted again. Returns immediately if the deadline has
+   * already passed. The Coroutine must have been started by a
+   * CoroutineScheduler.
+   *
+   * <p>Like {@link #park()} this may return early - callers must check
+   * their condition and the deadline again after parkUntil returns.</p>
+   *
+   * @param  deadline the deadline as a value of {@link System#nanoTime()}
+   *
+   * @throws SuspendExecution      de.matthiasmann.coroutines.SuspendExecution
+   *                               This method will suspend the execution
+   * @throws IllegalStateException If not called from a scheduled Coroutine
+   */
+  public static void parkUntil(long deadline)
+      throws SuspendExecution {
+    Coroutine co = Coroutine.getActiveCoroutine();
+
+    if ((co == null) || (co.scheduler == null)) {
+      throw new IllegalStateException("Not called from a scheduled Coroutine");
+    }
+
+    if ((deadline - System.nanoTime()) <= 0) {
+      return;
+    }
+
+    co.scheduler.addTimeout(co, deadline);
+    co.parked = true;
+    Coroutine.yield();
+  }
+
+  /**
+   * Suspends the currently running Coroutine for at least the given
+   * duration. The worker thread runs other Coroutines in the meantime. The
+   * Coroutine must have been started by a CoroutineScheduler.
+   *
+   * @param  duration the time to sleep
+   * @param  unit     the unit of the duration argument
+   *
+   * @throws SuspendExecution      de.matthiasmann.coroutines.SuspendExecution
+   *                               This method will suspend the execution
+   * @throws IllegalStateException If not called from a scheduled Coroutine
+   */
+  public static void sleep(long duration, TimeUnit unit)
+      throws SuspendExecution {
+    long deadline = deadline(duration, unit);
+
+    while ((deadline - System.nanoTime()) > 0) {
+      parkUntil(deadline);
+    }
+  }
+
+  /**
+   * Suspends the currently running Coroutine until the Future is done and
+   * returns it's result. No thread is blocked while waiting. A cancelled
+   * Future throws a {@link java.util.concurrent.CancellationException}.
+   *
+   * @param  <V>    the type of the result
+   * @param  future the Future
+   *
+   * @return the result of the Future
+   *
+   * @throws ExecutionException    if the Future failed
+   * @throws SuspendExecution      de.matthiasmann.coroutines.SuspendExecution
+   *                               This method will suspend the execution
+   * @throws IllegalStateException If the Future is not done and this is not
+   *                               called from a scheduled Coroutine
+   */
+  public static <V> V await(Future<V> future)
+      throws ExecutionException, SuspendExecution {
+    if (!future.isDone()) {
+      awaitDone(new Future<?>[] { future }, true);
+    }
+
+    boolean interrupted = false;
+
+    try {
+      for (;;) {
+        try {
+          return future.get(); // does not block - the Future is done
+        } catch (InterruptedException ex) {
+          interrupted = true;
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Suspends the currently running Coroutine until all Futures are done.
+   * The results can then be read with {@link Future#get()} without
+   * blocking.
+   *
+   * @param  futures the Futures
+   *
+   * @throws SuspendExecution      de.matthiasmann.coroutines.SuspendExecution
+   *                               This method will suspend the execution
+   * @throws IllegalStateException If not all Futures are done and this is
+   *                               not called from a scheduled Coroutine
+   */
+  public static void awaitAll(Future<?>... futures)
+      throws SuspendExecution {
+    awaitDone(futures, true);
+  }
+
+  /**
+   * Suspends the currently running Coroutine until at least one of the
+   * Futures is done. Throws an IllegalArgumentException if no Futures are
+   * given.
+   *
+   * @param  futures the Futures
+   *
+   * @return the index of the first Future which is done
+   *
+   * @throws SuspendExecution      de.matthiasmann.coroutines.SuspendExecution
+   *                               This method will suspend the execution
+   * @throws IllegalStateException If no Future is done and this is not
+   *                               called from a scheduled Coroutine
+   */
+  public static int awaitAny(Future<?>... futures)
+      throws SuspendExecution {
+    if (futures.length == 0) {
+      throw new IllegalArgumentException("futures");
+    }
+
+    awaitDone(futures, false);
+
+    return indexOf(futures, 0, true);
+  }
+
+  /**
+   * Computes a deadline for {@link #parkUntil(long)}. Durations which would
+   * overflow are limited to about 146 years.
+   *
+   * @param  duration the time until the deadline
+   * @param  unit     the unit of the duration argument
+   *
+   * @return the deadline as a value of {@link System#nanoTime()}
+   */
+  public static long deadline(long duration, TimeUnit unit) {
+    long nanos = Math.min(unit.toNanos(duration), Long.MAX_VALUE >> 1);
+
+    return System.nanoTime() + Math.max(nanos, 0);
+  }
+
+  /**
+   * Returns the number of worker threads.
+   *
+   * @return the number of worker threads.
+   */
+  public int getParallelism() {
+    return workers.length;
+  }
+
+  /**
+   * Schedules a Coroutine for execution. This is also used to resume a
+   * Coroutine which has called {@link #park()}.
+   *
+   * @param  co the Coroutine to run
+   *
+   * @throws IllegalStateException if the Coroutine is finished, was
+   *                               submitted to another scheduler or this
+   *                               scheduler has been shut down
+   * @throws NullPointerException  if co is null
+   */
+  public void submit(Coroutine co) {
+    if (co == null) {
+      throw new NullPointerException("co");
+    }
+
+    if (shutdown) {
+      throw new IllegalStateException("Scheduler has been shut down");
+    }
+
+    if (co.scheduler != this) {
+      if (co.scheduler != null) {
+        throw new IllegalStateException("Submitted to another scheduler");
+      }
+
+      if (co.getState() == Coroutine.State.FINISHED) {
+        throw new IllegalStateException("Coroutine is finished");
+      }
+
+      co.scheduler = this;
+    }
+
+    schedule(co);
+  }
+
+  /**
+   * Stops all worker threads after they have finished the Coroutine they are
+   * currently running. Coroutines which are still queued are not run.
+   */
+  public void shutdown() {
+    shutdown = true;
+
+    synchronized (idleLock) {
+      idleLock.notifyAll();
+    }
+
+    synchronized (wheel) {
+      wheel.notifyAll();
+    }
+  }
+
+  /**
+   * Resumes a parked Coroutine from a wakeup source like a completed
+   * Future. Unlike {@link #submit(Coroutine)} this never throws - the
+   * wakeup is dropped when the Coroutine no longer has a scheduler or the
+   * scheduler has been shut down.
+   *
+   * @param co the Coroutine to resume
+   */
+  static void resume(Coroutine co) {
+    CoroutineScheduler s = co.scheduler;
+
+    if ((s != null) && !s.shutdown) {
+      s.schedule(co);
+    }
+  }
+
+  /**
+   * Starts a {@link Coroutine#reset(CoRunnable)}. Wakeups of the Coroutine
+   * are dropped until {@link #endReset(Coroutine)} is called.
+   *
+   * @param  co the Coroutine
+   *
+   * @return false if the Coroutine is queued or running
+   */
+  static boolean beginReset(Coroutine co) {
+    return schedulerState.compareAndSet(co, IDLE, RESETTING);
+  }
+
+  /**
+   * Ends a reset started with {@link #beginReset(Coroutine)}.
+   *
+   * @param co the Coroutine
+   */
+  static void endReset(Coroutine co) {
+    schedulerState.set(co, IDLE);
+  }
+
+  private void schedule(Coroutine co) {
+    for (;;) {
+      switch (co.schedulerState) {
+        case IDLE:
+
+          if (schedulerState.compareAndSet(co, IDLE, QUEUED)) {
+            if (co.scheduler != this) {
+              // woken through a reference from before a reset - hand it to
+              // the scheduler it was submitted to since, if any
+              schedulerState.set(co, IDLE);
+              resume(co);
+
+              return;
+            }
+
+            enqueue(co);
+
+            return;
+          }
+
+          break;
+
+        case RUNNING:
+
+          if (schedulerState.compareAndSet(co, RUNNING, RUNNING_NOTIFIED)) {
+            return;
+          }
+
+          break;
+
+        default:
+          return; // already queued, notified or being reset
+      }
+    }
+  }
+
+  /**
+   * Waits until all worker threads have stopped after a call to {@link
+   * #shutdown()}.
+   *
+   * @param  timeout the maximum time to wait
+   * @param  unit    the unit of the timeout argument
+   *
+   * @return true if all worker threads have stopped
+   *
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public boolean awaitTermination(long timeout, TimeUnit unit)
+      throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+    for (Worker w : workers) {
+      if (!join(w, deadline)) {
+        return false;
+      }
+    }
+
+    Timer t;
+
+    synchronized (wheel) {
+      t = timer;
+    }
+
+    return (t == null) || join(t, deadline);
+  }
+
+  /**
+   * Waits until all or any of the Futures are done. The Coroutine is added
+   * once to all CoFutures and is resumed by them - only other Futures are
+   * checked on the timer.
+   */
+  private static void awaitDone(Future<?>[] futures, boolean all)
+      throws SuspendExecution {
+    Coroutine co = null;
+    boolean poll = false;
+    long interval = MIN_POLL_NANOS;
+    int pending = 0;
+
+    for (;;) {
+      if (all) {
+        // Futures which are done stay done - only check the remaining ones
+        pending = indexOf(futures, pending, false);
+
+        if (pending < 0) {
+          break;
+        }
+      } else if (indexOf(futures, 0, true) >= 0) {
+        break;
+      }
+
+      if (co == null) {
+        co = Coroutine.getActiveCoroutine();
+
+        if ((co == null) || (co.scheduler == null)) {
+          throw new IllegalStateException(
+            "Not called from a scheduled Coroutine"
+          );
+        }
+
+        for (Future<?> f : futures) {
+          if (f instanceof CoFuture) {
+            ((CoFuture<?>) f).addWaiter(co);
+          } else if (!f.isDone()) {
+            poll = true;
+          }
+        }
+
+        // check again - a Future may have completed before it had a waiter
+        continue;
+      }
+
+      if (poll) {
+        parkUntil(deadline(interval, TimeUnit.NANOSECONDS));
+        interval = Math.min(interval * 2, MAX_POLL_NANOS);
+      } else {
+        park();
+      }
+    }
+
+    if (co != null) {
+      for (Future<?> f : futures) {
+        if (f instanceof CoFuture) {
+          ((CoFuture<?>) f).removeWaiter(co);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the index of the first Future at or after <code>start</code>
+   * which is done or not done or -1 if there is none.
+   */
+  private static int indexOf(Future<?>[] futures, int start, boolean done) {
+    for (int i = start; i < futures.length; i++) {
+      if (futures[i].isDone() == done) {
+        return i;
+      }
+    }
+
+    return -1;
+  }
+
+  private static boolean join(Thread t, long deadline)
+      throws InterruptedException {
+    long remaining = deadline - System.nanoTime();
+
+    if (remaining > 0) {
+      TimeUnit.NANOSECONDS.timedJoin(t, remaining);
+    }
+
+    return !t.isAlive();
+  }
+
+  private void addTimeout(Coroutine co, long deadline) {
+    // round up so that the Coroutine is never resumed before the deadline
+    long tick = ((deadline - startTime) + (TICK_NANOS - 1)) / TICK_NANOS;
+    TimerWheel.Timeout t = new TimerWheel.Timeout(co, tick);
+
+    synchronized (wheel) {
+      if (timer == null) {
+        timer = new Timer();
+        timer.start();
+      }
+
+      // wake the timer if it sleeps past the new deadline
+      if (tick < wheel.nextTick()) {
+        wheel.notify();
+      }
+
+      wheel.add(t);
+    }
+
+    co.timeout = t;
+  }
+
+  void cancelTimeout(Coroutine co) {
+    TimerWheel.Timeout t = co.timeout;
+
+    co.timeout = null;
+
+    synchronized (wheel) {
+      wheel.remove(t);
+    }
+  }
+
+  private void enqueue(Coroutine co) {
+    Thread t = Thread.currentThread();
+    Worker w;
+
+    if ((t instanceof Worker) && (((Worker) t).getScheduler() == this)) {
+      w = (Worker) t;
+    } else {
+      int idx = nextWorker.getAndIncrement() & Integer.MAX_VALUE;
+
+      w = workers[idx % workers.length];
+    }
+
+    w.push(co);
+  }
+
+  private void signalWork() {
+    if (idleWorkers > 0) {
+      synchronized (idleLock) {
+        idleLock.notify();
+      }
+    }
+  }
+
+  private final class Worker extends CoroutineThread {
+    final ConcurrentLinkedDeque<Coroutine> deque;
+    private final int index;
+
+    /**
+     * Creates a new Worker object.
+     *
+     * @param index the index of this worker
+     */
+    Worker(int index) {
+      super("CoroutineScheduler-worker-" + index);
+
+      this.deque = new ConcurrentLinkedDeque<Coroutine>();
+      this.index = index;
+
+      setDaemon(true);
+    }
+
+    /** DOCUMENT ME! */
+    @Override
+    public void run() {
+      for (;;) {
+        Coroutine co = nextCoroutine();
+
+        if (co == null) {
+          co = awaitCoroutine();
+
+          if (co == null) {
+            return;
+          }
+        }
+
+        runCoroutine(co);
+      }
+    }
+
+    CoroutineScheduler getScheduler() {
+      return CoroutineScheduler.this;
+    }
+
+    void push(Coroutine co) {
+      deque.addLast(co);
+      signalWork();
+    }
+
+    private Coroutine nextCoroutine() {
+      Coroutine co = deque.pollFirst();
+
+      if (co != null) {
+        return co;
+      }
+
+      // steal from the other workers starting with our neighbour
+      for (int i = 1; i < workers.length; i++) {
+        co = workers[(index + i) % workers.length].deque.pollLast();
+
+        if (co != null) {
+          return co;
+        }
+      }
+
+      return null;
+    }
+
+    private Coroutine awaitCoroutine() {
+      synchronized (idleLock) {
+        idleWorkers++;
+
+        try {
+          for (;;) {
+            if (shutdown) {
+              return null;
+            }
+
+            Coroutine co = nextCoroutine();
+
+            if (co != null) {
+              return co;
+            }
+
+            try {
+              idleLock.wait();
+            } catch (InterruptedException ex) {
+              // check for shutdown and work again
+            }
+          }
+        } finally {
+          idleWorkers--;
+        }
+      }
+    }
+
+    private void runCoroutine(Coroutine co) {
+      if (shutdown) {
+        return;
+      }
+
+      schedulerState.set(co, RUNNING);
+
+      if (co.getState() == Coroutine.State.FINISHED) {
+        schedulerState.set(co, IDLE);
+
+        return;
+      }
+
+      co.parked = false;
+
+      if (co.timeout != null) {
+        cancelTimeout(co);
+      }
+
+      try {
+        co.run();
+      } catch (Throwable ex) {
+        getUncaughtExceptionHandler().uncaughtException(this, ex);
+      }
+
+      if (co.getState() == Coroutine.State.FINISHED) {
+        schedulerState.set(co, IDLE);
+
+        return;
+      }
+
+      if (co.parked && schedulerState.compareAndSet(co, RUNNING, IDLE)) {
+        return;
+      }
+
+      // yielded or submitted while running
+      schedulerState.set(co, QUEUED);
+      push(co);
+    }
+  }
+
+  /** Resumes the Coroutines whose deadline has passed. */
+  private final class Timer extends Thread {
+    /** Creates a new Timer object. */
+    Timer() {
+      super("CoroutineScheduler-timer");
+
+      setDaemon(true);
+    }
+
+    /** DOCUMENT ME! */
+    @Override
+    public void run() {
+      ArrayList<TimerWheel.Timeout> expired =
+        new ArrayList<TimerWheel.Timeout>();
+
+      for (;;) {
+        synchronized (wheel) {
+          if (!awaitExpired(expired)) {
+            return;
+          }
+        }
+
+        // resubmit the whole batch outside of the lock
+        for (int i = 0, n = expired.size(); i < n; i++) {
+          CoroutineScheduler.resume(expired.get(i).co);
+        }
+
+        expired.clear();
+      }
+    }
+
+    /** Waits until at least one timeout expired. Must hold the lock. */
+    private boolean awaitExpired(ArrayList<TimerWheel.Timeout> expired) {
+      for (;;) {
+        if (shutdown) {
+          return false;
+        }
+
+        long now = System.nanoTime() - startTime;
+
+        wheel.advance(now / TICK_NANOS, expired);
+
+        if (!expired.isEmpty()) {
+          return true;
+        }
+
+        long next = wheel.nextTick();
+
+        try {
+          if (next == Long.MAX_VALUE) {
+            wheel.wait();
+          } else {
+            TimeUnit.NANOSECONDS.timedWait(wheel, (next * TICK_NANOS) - now);
+          }
+        } catch (InterruptedException ex) {
+          // check for shutdown and deadlines again
+        }
+      }
+    }
+  }
+}
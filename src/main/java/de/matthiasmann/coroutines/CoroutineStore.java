@@ -0,0 +1,505 @@
+/*
+ * Copyright (c) 2008, Matthias Mann
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Matthias Mann nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.matthiasmann.coroutines;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * <p>Keeps suspended Coroutines outside of the Java heap.</p>
+ *
+ * <p>Coroutines are written with {@link Coroutine#writeSnapshot(
+ * java.io.DataOutput, ObjectCodec)} into append only segment files which are
+ * memory mapped. An index maps the id of each stored Coroutine to the
+ * location of it's latest snapshot. A Coroutine is only deserialized when it
+ * is looked up.</p>
+ *
+ * <p>Replacing or removing a Coroutine leaves the old snapshot as garbage in
+ * it's segment. Once less than half of a full segment is still in use the
+ * remaining snapshots are copied into the current segment by a background
+ * thread and the old segment file is deleted.</p>
+ *
+ * <p>The store is meant to move idle Coroutines out of the heap of a running
+ * JVM - it is not a persistent database. The segment files are deleted when
+ * the store is closed.</p>
+ *
+ * <p>All methods are thread safe.</p>
+ *
+ * @author Matthias Mann
+ */
+public class CoroutineStore implements Closeable {
+  /** the default size of a segment file: 64 MB */
+  public static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+
+  // id (8 bytes) and length (4 bytes)
+  private static final int RECORD_HEADER_SIZE = 12;
+
+  private final File directory;
+  private final ObjectCodec codec;
+  private final int segmentSize;
+  private final HashMap<Long, Location> index;
+  private final ArrayList<Segment> segments;
+  private final ExecutorService compactor;
+
+  private Segment current;
+  private int nextSegmentNumber;
+  private boolean compactionQueued;
+  private boolean closed;
+
+  /**
+   * Creates a new CoroutineStore which uses Java serialization and the
+   * default segment size. Each snapshot is written as a single object
+   * stream, so objects shared between the CoroutineProto and the suspended
+   * methods stay shared when the Coroutine is restored.
+   *
+   * @param directory the directory for the segment files
+   */
+  public CoroutineStore(File directory) {
+    this(directory, SerializationCodec.INSTANCE, DEFAULT_SEGMENT_SIZE);
+  }
+
+  /**
+   * Creates a new CoroutineStore object.
+   *
+   * @param  directory   the directory for the segment files
+   * @param  codec       the codec for the references saved in the Coroutines
+   * @param  segmentSize the size of a segment file in bytes. Snapshots which
+   *                     are larger get their own segment.
+   *
+   * @throws NullPointerException     if directory or codec is null
+   * @throws IllegalArgumentException if segmentSize is too small
+   */
+  public CoroutineStore(File directory, ObjectCodec codec, int segmentSize) {
+    if (directory == null) {
+      throw new NullPointerException("directory");
+    }
+
+    if (codec == null) {
+      throw new NullPointerException("codec");
+    }
+
+    if (segmentSize < RECORD_HEADER_SIZE) {
+      throw new IllegalArgumentException("segmentSize");
+    }
+
+    this.directory = directory;
+    this.codec = codec;
+    this.segmentSize = segmentSize;
+    this.index = new HashMap<Long, Location>();
+    this.segments = new ArrayList<Segment>();
+    this.compactor =
+      Executors.newSingleThreadExecutor(
+        new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "CoroutineStore-compactor");
+
+            t.setDaemon(true);
+
+            return t;
+          }
+        }
+      );
+  }
+
+  /**
+   * Stores a snapshot of the given Coroutine. A previously stored Coroutine
+   * with the same id is replaced. The Coroutine object itself is not
+   * modified and can be discarded afterwards.
+   *
+   * @param  id the id of the Coroutine
+   * @param  co the Coroutine
+   *
+   * @throws IOException           if the snapshot could not be written
+   * @throws IllegalStateException if the Coroutine is running or the store
+   *                               is closed
+   */
+  public void put(long id, Coroutine co)
+      throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    DataOutputStream dos = new DataOutputStream(baos);
+
+    co.writeSnapshot(dos, codec);
+    dos.close();
+
+    byte[] bytes = baos.toByteArray();
+
+    synchronized (this) {
+      ensureOpen();
+
+      Location loc = append(id, bytes, 0, bytes.length);
+
+      discard(index.put(id, loc));
+    }
+  }
+
+  /**
+   * Returns a new Coroutine deserialized from the stored snapshot. The
+   * snapshot stays in the store.
+   *
+   * @param  id the id of the Coroutine
+   *
+   * @return the Coroutine or null if no Coroutine with this id is stored
+   *
+   * @throws IOException if the snapshot could not be read
+   */
+  public Coroutine get(long id)
+      throws IOException {
+    byte[] bytes;
+
+    synchronized (this) {
+      ensureOpen();
+      bytes = read(index.get(id));
+    }
+
+    return decode(bytes);
+  }
+
+  /**
+   * Removes the Coroutine from the store and returns it.
+   *
+   * @param  id the id of the Coroutine
+   *
+   * @return the Coroutine or null if no Coroutine with this id is stored
+   *
+   * @throws IOException if the snapshot could not be read
+   */
+  public Coroutine remove(long id)
+      throws IOException {
+    byte[] bytes;
+
+    synchronized (this) {
+      ensureOpen();
+
+      Location loc = index.remove(id);
+
+      bytes = read(loc);
+      discard(loc);
+    }
+
+    return decode(bytes);
+  }
+
+  /**
+   * Checks if a Coroutine with the given id is stored.
+   *
+   * @param  id the id of the Coroutine
+   *
+   * @return true if a Coroutine with this id is stored
+   */
+  public synchronized boolean contains(long id) {
+    return index.containsKey(id);
+  }
+
+  /**
+   * Returns the number of stored Coroutines.
+   *
+   * @return the number of stored Coroutines
+   */
+  public synchronized int size() {
+    return index.size();
+  }
+
+  /**
+   * Returns the number of segment files.
+   *
+   * @return the number of segment files
+   */
+  public synchronized int getSegmentCount() {
+    return segments.size();
+  }
+
+  /**
+   * Copies the live snapshots out of all segments which are less than half
+   * used and deletes them. This is normally done by a background thread.
+   *
+   * @throws IOException if a segment could not be written or deleted
+   */
+  public void compact()
+      throws IOException {
+    for (Segment s : findSparseSegments()) {
+      ArrayList<Long> ids = new ArrayList<Long>();
+
+      synchronized (this) {
+        if (closed) {
+          return;
+        }
+
+        for (int pos = 0; pos < s.writePos;) {
+          long id = s.buffer.getLong(pos);
+          int length = s.buffer.getInt(pos + 8);
+          Location loc = index.get(id);
+
+          if ((loc != null) && (loc.segment == s) && (loc.offset == pos)) {
+            ids.add(id);
+          }
+
+          pos += RECORD_HEADER_SIZE + length;
+        }
+      }
+
+      // move one snapshot at a time so that other threads are not blocked
+      // for the whole segment
+      for (Long id : ids) {
+        synchronized (this) {
+          if (closed) {
+            return;
+          }
+
+          Location loc = index.get(id);
+
+          if ((loc != null) && (loc.segment == s)) {
+            byte[] bytes = read(loc);
+
+            index.put(id, append(id, bytes, 0, bytes.length));
+            discard(loc);
+          }
+        }
+      }
+
+      synchronized (this) {
+        if (closed) {
+          return;
+        }
+
+        if ((s.liveBytes == 0) && (s != current)) {
+          segments.remove(s);
+          s.delete();
+        }
+      }
+    }
+  }
+
+  /**
+   * Closes the store and deletes all segment files. All stored Coroutines
+   * are lost.
+   *
+   * @throws IOException if a segment file could not be closed
+   */
+  public void close()
+      throws IOException {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+
+      closed = true;
+      compactor.shutdown();
+      index.clear();
+
+      for (Segment s : segments) {
+        s.delete();
+      }
+
+      segments.clear();
+      current = null;
+    }
+  }
+
+  private synchronized ArrayList<Segment> findSparseSegments() {
+    ArrayList<Segment> result = new ArrayList<Segment>();
+
+    for (Segment s : segments) {
+      if ((s != current) && s.isSparse()) {
+        result.add(s);
+      }
+    }
+
+    return result;
+  }
+
+  private void ensureOpen() {
+    if (closed) {
+      throw new IllegalStateException("store is closed");
+    }
+  }
+
+  private Location append(long id, byte[] bytes, int off, int len)
+      throws IOException {
+    int recordSize = RECORD_HEADER_SIZE + len;
+
+    if ((current == null) || (current.remaining() < recordSize)) {
+      current = newSegment(Math.max(segmentSize, recordSize));
+    }
+
+    Segment s = current;
+    int pos = s.writePos;
+
+    s.buffer.putLong(pos, id);
+    s.buffer.putInt(pos + 8, len);
+
+    ByteBuffer dst = s.buffer.duplicate();
+
+    dst.position(pos + RECORD_HEADER_SIZE);
+    dst.put(bytes, off, len);
+
+    s.writePos = pos + recordSize;
+    s.liveBytes += recordSize;
+
+    return new Location(s, pos, len);
+  }
+
+  private byte[] read(Location loc) {
+    if (loc == null) {
+      return null;
+    }
+
+    byte[] bytes = new byte[loc.length];
+    ByteBuffer src = loc.segment.buffer.duplicate();
+
+    src.position(loc.offset + RECORD_HEADER_SIZE);
+    src.get(bytes);
+
+    return bytes;
+  }
+
+  private void discard(Location loc) {
+    if (loc == null) {
+      return;
+    }
+
+    Segment s = loc.segment;
+
+    s.liveBytes -= RECORD_HEADER_SIZE + loc.length;
+
+    if ((s != current) && s.isSparse() && !compactionQueued) {
+      compactionQueued = true;
+      compactor.execute(
+        new Runnable() {
+          public void run() {
+            synchronized (CoroutineStore.this) {
+              compactionQueued = false;
+            }
+
+            try {
+              compact();
+            } catch (IOException ex) {
+              // the segments stay as they are - the next discard retries
+            }
+          }
+        }
+      );
+    }
+  }
+
+  private Coroutine decode(byte[] bytes)
+      throws IOException {
+    if (bytes == null) {
+      return null;
+    }
+
+    return Coroutine.readSnapshot(
+      new DataInputStream(new ByteArrayInputStream(bytes)), codec
+    );
+  }
+
+  private Segment newSegment(int size)
+      throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Can't create directory: " + directory);
+    }
+
+    File file = new File(directory, "segment-" + nextSegmentNumber++ + ".dat");
+    Segment s = new Segment(file, size);
+
+    segments.add(s);
+
+    return s;
+  }
+
+  private static final class Location {
+    final Segment segment;
+    final int offset;
+    final int length;
+
+    Location(Segment segment, int offset, int length) {
+      this.segment = segment;
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+
+  private static final class Segment {
+    final File file;
+    final RandomAccessFile raf;
+    final MappedByteBuffer buffer;
+    int writePos;
+    int liveBytes;
+
+    Segment(File file, int size)
+        throws IOException {
+      this.file = file;
+      this.raf = new RandomAccessFile(file, "rw");
+
+      try {
+        raf.setLength(size);
+        this.buffer =
+          raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+      } catch (IOException ex) {
+        raf.close();
+        file.delete();
+        throw ex;
+      }
+    }
+
+    int remaining() {
+      return buffer.capacity() - writePos;
+    }
+
+    boolean isSparse() {
+      return (liveBytes * 2) < writePos;
+    }
+
+    void delete()
+        throws IOException {
+      raf.close();
+
+      // the mapping stays valid until the buffer is collected - on some
+      // platforms the file can't be deleted before that
+      if (!file.delete()) {
+        file.deleteOnExit();
+      }
+    }
+  }
+}
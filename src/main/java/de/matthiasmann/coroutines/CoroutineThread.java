@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2008, Matthias Mann
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Matthias Mann nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.matthiasmann.coroutines;
+
+/**
+ * <p>A Thread which carries the {@link Stack} of the Coroutine it is running
+ * in a field.</p>
+ *
+ * <p>Code which was instrumented with the carrier thread option looks up the
+ * Stack through this field instead of a ThreadLocal when it runs on a
+ * CoroutineThread. On other threads the ThreadLocal is used as before.</p>
+ *
+ * @see    CoroutineScheduler
+ * @author Matthias Mann
+ */
+public class CoroutineThread extends Thread {
+  /** the Stack of the running Coroutine - see {@link Stack#setStack} */
+  Stack stack;
+
+  /** Creates a new CoroutineThread object. */
+  public CoroutineThread() {
+    super();
+  }
+
+  /**
+   * Creates a new CoroutineThread object.
+   *
+   * @param target the object whose run method is invoked
+   */
+  public CoroutineThread(Runnable target) {
+    super(target);
+  }
+
+  /**
+   * Creates a new CoroutineThread object.
+   *
+   * @param name the name of the new thread
+   */
+  public CoroutineThread(String name) {
+    super(name);
+  }
+
+  /**
+   * Creates a new CoroutineThread object.
+   *
+   * @param target the object whose run method is invoked
+   * @param name   the name of the new thread
+   */
+  public CoroutineThread(Runnable target, String name) {
+    super(target, name);
+  }
+
+  /**
+   * Creates a new CoroutineThread object.
+   *
+   * @param group  the thread group
+   * @param target the object whose run method is invoked
+   * @param name   the name of the new thread
+   */
+  public CoroutineThread(ThreadGroup group, Runnable target, String name) {
+    super(group, target, name);
+  }
+}
@@ -0,0 +1,433 @@
+/*
+ * Copyright (c) 2008, Matthias Mann
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Matthias Mann nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.matthiasmann.coroutines;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <p>Socket I/O for Coroutines. The event loop owns a {@link Selector} and
+ * runs it on it's own thread.</p>
+ *
+ * <p>The I/O methods must be called from a Coroutine started by a {@link
+ * CoroutineScheduler}. Each method first tries the operation. When it
+ * would block the interest in the operation is registered with the
+ * Selector and the Coroutine parks. It is submitted again when the channel
+ * becomes ready. The channels are switched to non-blocking mode.</p>
+ *
+ * <p>One Coroutine may read from a channel while another one writes to it.
+ * Two Coroutines must not read from or write to the same channel at the
+ * same time.</p>
+ *
+ * <p>Closing a channel resumes the Coroutines waiting on it within a short
+ * delay. They get a {@link ClosedChannelException} when they try the
+ * operation again.</p>
+ *
+ * @author Matthias Mann
+ */
+public class IOEventLoop {
+  private static final int OPS_IN = SelectionKey.OP_READ
+    | SelectionKey.OP_ACCEPT;
+  private static final int OPS_OUT = SelectionKey.OP_WRITE
+    | SelectionKey.OP_CONNECT;
+
+  // closing a channel does not wake the Selector - how long it may take
+  // until the waiting Coroutines see that their channel was closed
+  private static final long CLOSE_CHECK_MILLIS = 100;
+
+  private final Selector selector;
+  private final ConcurrentLinkedQueue<Registration> registrations;
+  private final AtomicBoolean wakeupPending;
+  private final Thread thread;
+
+  // the keys with waiting Coroutines - only used by the event loop thread
+  private final HashSet<SelectionKey> waitingKeys;
+
+  private volatile boolean closed;
+
+  /**
+   * Creates a new IOEventLoop and starts it's thread.
+   *
+   * @throws IOException if the Selector can't be opened
+   */
+  public IOEventLoop()
+      throws IOException {
+    this.selector = Selector.open();
+    this.registrations = new ConcurrentLinkedQueue<Registration>();
+    this.wakeupPending = new AtomicBoolean();
+    this.waitingKeys = new HashSet<SelectionKey>();
+    this.thread =
+      new Thread("IOEventLoop") {
+        @Override
+        public void run() {
+          runLoop();
+        }
+      };
+
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Reads bytes into the buffer. Parks the calling Coroutine until at least
+   * one byte can be read.
+   *
+   * @param  ch  the channel
+   * @param  dst the buffer
+   *
+   * @return the number of bytes read, 0 if the buffer is full or -1 at the
+   *         end of the stream
+   *
+   * @throws IOException      if an I/O error occurs
+   * @throws SuspendExecution de.matthiasmann.coroutines.SuspendExecution
+   *                          This method will suspend the execution
+   */
+  public int read(SocketChannel ch, ByteBuffer dst)
+      throws IOException, SuspendExecution {
+    configure(ch);
+
+    for (;;) {
+      int n = ch.read(dst);
+
+      if ((n != 0) || !dst.hasRemaining()) {
+        return n;
+      }
+
+      await(ch, SelectionKey.OP_READ);
+    }
+  }
+
+  /**
+   * Writes all remaining bytes of the buffer. Parks the calling Coroutine
+   * while the send buffer of the socket is full.
+   *
+   * @param  ch  the channel
+   * @param  src the buffer
+   *
+   * @return the number of bytes written
+   *
+   * @throws IOException      if an I/O error occurs
+   * @throws SuspendExecution de.matthiasmann.coroutines.SuspendExecution
+   *                          This method will suspend the execution
+   */
+  public int write(SocketChannel ch, ByteBuffer src)
+      throws IOException, SuspendExecution {
+    configure(ch);
+
+    int total = 0;
+
+    while (src.hasRemaining()) {
+      int n = ch.write(src);
+
+      if (n == 0) {
+        await(ch, SelectionKey.OP_WRITE);
+      }
+
+      total += n;
+    }
+
+    return total;
+  }
+
+  /**
+   * Accepts a connection. Parks the calling Coroutine until a connection is
+   * available.
+   *
+   * @param  ch the server channel
+   *
+   * @return the new connection in non-blocking mode
+   *
+   * @throws IOException      if an I/O error occurs
+   * @throws SuspendExecution de.matthiasmann.coroutines.SuspendExecution
+   *                          This method will suspend the execution
+   */
+  public SocketChannel accept(ServerSocketChannel ch)
+      throws IOException, SuspendExecution {
+    configure(ch);
+
+    for (;;) {
+      SocketChannel s = ch.accept();
+
+      if (s != null) {
+        s.configureBlocking(false);
+
+        return s;
+      }
+
+      await(ch, SelectionKey.OP_ACCEPT);
+    }
+  }
+
+  /**
+   * Connects a channel. Parks the calling Coroutine until the connection is
+   * established.
+   *
+   * @param  ch     the channel
+   * @param  remote the address to connect to
+   *
+   * @throws IOException      if an I/O error occurs or the connection fails
+   * @throws SuspendExecution de.matthiasmann.coroutines.SuspendExecution
+   *                          This method will suspend the execution
+   */
+  public void connect(SocketChannel ch, SocketAddress remote)
+      throws IOException, SuspendExecution {
+    configure(ch);
+
+    if (ch.connect(remote)) {
+      return;
+    }
+
+    do {
+      await(ch, SelectionKey.OP_CONNECT);
+    } while (!ch.finishConnect());
+  }
+
+  /**
+   * Stops the event loop and closes the Selector. Coroutines which wait for
+   * I/O are resumed and get a {@link ClosedSelectorException}.
+   */
+  public void close() {
+    closed = true;
+    selector.wakeup();
+  }
+
+  private static void configure(SelectableChannel ch)
+      throws IOException {
+    if (ch.isBlocking()) {
+      ch.configureBlocking(false);
+    }
+  }
+
+  private void await(SelectableChannel ch, int op)
+      throws SuspendExecution {
+    Coroutine co = Coroutine.getActiveCoroutine();
+
+    if ((co == null) || (co.scheduler == null)) {
+      throw new IllegalStateException("Not called from a scheduled Coroutine");
+    }
+
+    if (closed) {
+      throw new ClosedSelectorException();
+    }
+
+    Registration r = new Registration(ch, op, co);
+
+    registrations.add(r);
+
+    if (closed) {
+      // the event loop may have stopped before it saw the registration
+      registrations.remove(r);
+      throw new ClosedSelectorException();
+    }
+
+    // only wake the Selector once for all registrations until it runs again
+    if (wakeupPending.compareAndSet(false, true)) {
+      selector.wakeup();
+    }
+
+    // resumed when the channel is ready - the caller tries again
+    CoroutineScheduler.park();
+
+    if (closed) {
+      throw new ClosedSelectorException();
+    }
+  }
+
+  private void runLoop() {
+    try {
+      while (!closed) {
+        wakeupPending.set(false);
+        register();
+        resumeCancelled();
+        selector.select(waitingKeys.isEmpty() ? 0 : CLOSE_CHECK_MILLIS);
+
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+
+        while (it.hasNext()) {
+          SelectionKey key = it.next();
+
+          it.remove();
+          ready(key);
+        }
+      }
+    } catch (IOException ex) {
+      Thread t = Thread.currentThread();
+
+      t.getUncaughtExceptionHandler().uncaughtException(t, ex);
+    } finally {
+      closed = true;
+      shutdown();
+    }
+  }
+
+  private void register() {
+    Registration r;
+
+    while ((r = registrations.poll()) != null) {
+      try {
+        SelectionKey key = r.ch.keyFor(selector);
+
+        if (key == null) {
+          key = r.ch.register(selector, r.op, new Waiting());
+        } else {
+          key.interestOps(key.interestOps() | r.op);
+        }
+
+        Waiting w = (Waiting) key.attachment();
+
+        if ((r.op & OPS_IN) != 0) {
+          w.in = r.co;
+        } else {
+          w.out = r.co;
+        }
+
+        waitingKeys.add(key);
+      } catch (ClosedChannelException ex) {
+        // the Coroutine gets the exception when it tries again
+        resume(r.co);
+      } catch (CancelledKeyException ex) {
+        resume(r.co);
+      }
+    }
+  }
+
+  private void ready(SelectionKey key) {
+    Waiting w = (Waiting) key.attachment();
+    int ops;
+
+    try {
+      ops = key.readyOps();
+      key.interestOps(key.interestOps() & ~ops);
+    } catch (CancelledKeyException ex) {
+      ops = OPS_IN | OPS_OUT;
+    }
+
+    if (((ops & OPS_IN) != 0) && (w.in != null)) {
+      resume(w.in);
+      w.in = null;
+    }
+
+    if (((ops & OPS_OUT) != 0) && (w.out != null)) {
+      resume(w.out);
+      w.out = null;
+    }
+
+    if ((w.in == null) && (w.out == null)) {
+      waitingKeys.remove(key);
+    }
+  }
+
+  // a key cancelled by closing it's channel is never selected again
+  private void resumeCancelled() {
+    Iterator<SelectionKey> it = waitingKeys.iterator();
+
+    while (it.hasNext()) {
+      SelectionKey key = it.next();
+
+      if (!key.isValid()) {
+        it.remove();
+        resumeWaiting((Waiting) key.attachment());
+      }
+    }
+  }
+
+  private static void resumeWaiting(Waiting w) {
+    if (w.in != null) {
+      resume(w.in);
+      w.in = null;
+    }
+
+    if (w.out != null) {
+      resume(w.out);
+      w.out = null;
+    }
+  }
+
+  private void shutdown() {
+    register();
+
+    try {
+      // includes the keys which were already cancelled
+      for (SelectionKey key : waitingKeys) {
+        resumeWaiting((Waiting) key.attachment());
+      }
+
+      waitingKeys.clear();
+
+      selector.close();
+    } catch (ClosedSelectorException ex) {
+      // already closed
+    } catch (IOException ex) {
+      // nothing left to do
+    }
+
+    // registrations added while closing
+    Registration r;
+
+    while ((r = registrations.poll()) != null) {
+      resume(r.co);
+    }
+  }
+
+  private static void resume(Coroutine co) {
+    CoroutineScheduler.resume(co);
+  }
+
+  /** A Coroutine waiting for an operation on a channel. */
+  private static final class Registration {
+    final SelectableChannel ch;
+    final int op;
+    final Coroutine co;
+
+    Registration(SelectableChannel ch, int op, Coroutine co) {
+      this.ch = ch;
+      this.op = op;
+      this.co = co;
+    }
+  }
+
+  /** The Coroutines waiting on a SelectionKey. */
+  private static final class Waiting {
+    Coroutine in;
+    Coroutine out;
+  }
+}
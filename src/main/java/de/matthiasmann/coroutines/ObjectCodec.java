@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2008, Matthias Mann
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Matthias Mann nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.matthiasmann.coroutines;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Encodes the references saved in a suspended Coroutine for {@link
+ * Coroutine#writeSnapshot(DataOutput, ObjectCodec)}. Applications which know
+ * the types on their coroutine stacks can write them much more compactly than
+ * Java serialization.
+ *
+ * @see    SerializationCodec
+ * @author Matthias Mann
+ */
+public interface ObjectCodec {
+  /**
+   * Writes a non null object.
+   *
+   * @param  out   the output
+   * @param  value the object to write
+   *
+   * @throws IOException if an I/O error occurs or the object can't be
+   *                     encoded
+   */
+  void writeObject(DataOutput out, Object value)
+      throws IOException;
+
+  /**
+   * Reads an object written by {@link #writeObject(DataOutput, Object)}.
+   *
+   * @param  in the input
+   *
+   * @return the object
+   *
+   * @throws IOException if an I/O error occurs or the data is corrupted
+   */
+  Object readObject(DataInput in)
+      throws IOException;
+}
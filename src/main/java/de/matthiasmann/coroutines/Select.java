@@ -0,0 +1,281 @@
+/*
+ * Copyright (c) 2008, Matthias Mann
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Matthias Mann nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.matthiasmann.coroutines;
+
+/**
+ * <p>Waits for the first of several channel operations. Each case either
+ * receives from or sends to a {@link Channel}. An optional deadline limits
+ * the wait.</p>
+ *
+ * <pre>
+ * Select sel = new Select();
+ * int fromA = sel.addReceive(a);
+ * int fromB = sel.addReceive(b);
+ *
+ * sel.setDeadline(CoroutineScheduler.deadline(1, TimeUnit.SECONDS));
+ *
+ * int idx = sel.select();
+ *
+ * if (idx == fromA) {
+ *   handle(sel.getValue());
+ * }
+ * </pre>
+ *
+ * <p>When no case is ready the calling Coroutine adds a single waiter to the
+ * wait queues of all channels and parks until one of them signals. It does
+ * not poll the channels. The cases are tried in a rotating order so that a
+ * busy channel can not starve the others.</p>
+ *
+ * <p>A Select can be used for any number of selects but only by one
+ * Coroutine at a time.</p>
+ *
+ * @author Matthias Mann
+ */
+public class Select {
+  /** returned by {@link #select()} when the deadline has passed */
+  public static final int TIMEOUT = -1;
+
+  private static final int INITIAL_CASES = 4;
+
+  private Channel<Object>[] channels;
+  private Object[] values;
+  private int numCases;
+  private int nextCase;
+
+  private boolean hasDeadline;
+  private long deadline;
+
+  private Object value;
+
+  /** Creates a new Select without cases. */
+  @SuppressWarnings("unchecked")
+  public Select() {
+    this.channels = new Channel[INITIAL_CASES];
+    this.values = new Object[INITIAL_CASES];
+  }
+
+  /**
+   * Adds a case which receives a value from a channel.
+   *
+   * @param  ch the channel
+   *
+   * @return the index of the case
+   *
+   * @throws NullPointerException if ch is null
+   */
+  public int addReceive(Channel<?> ch) {
+    return addCase(ch, null);
+  }
+
+  /**
+   * Adds a case which sends a value to a channel. The value is sent each
+   * time this case is selected until the cases are cleared.
+   *
+   * @param  <T>   the type of the values of the channel
+   * @param  ch    the channel
+   * @param  value the value to send
+   *
+   * @return the index of the case
+   *
+   * @throws NullPointerException if ch or value is null
+   */
+  public <T> int addSend(Channel<T> ch, T value) {
+    if (value == null) {
+      throw new NullPointerException("value");
+    }
+
+    return addCase(ch, value);
+  }
+
+  /**
+   * Sets the deadline after which {@link #select()} returns {@link
+   * #TIMEOUT}.
+   *
+   * @param deadline the deadline as a value of {@link System#nanoTime()}
+   *
+   * @see   CoroutineScheduler#deadline(long, java.util.concurrent.TimeUnit)
+   */
+  public void setDeadline(long deadline) {
+    this.hasDeadline = true;
+    this.deadline = deadline;
+  }
+
+  /** Removes all cases and the deadline. */
+  public void clear() {
+    for (int i = 0; i < numCases; i++) {
+      channels[i] = null;
+      values[i] = null;
+    }
+
+    numCases = 0;
+    nextCase = 0;
+    hasDeadline = false;
+    value = null;
+  }
+
+  /**
+   * Returns the value received by the last select.
+   *
+   * @return the value received by the last select or null if it completed
+   *         a send case or timed out
+   */
+  public Object getValue() {
+    return value;
+  }
+
+  /**
+   * Completes the first case which is ready. Parks the calling Coroutine
+   * until a case is ready or the deadline has passed.
+   *
+   * @return the index of the completed case or {@link #TIMEOUT}
+   *
+   * @throws SuspendExecution      de.matthiasmann.coroutines.SuspendExecution
+   *                               This method will suspend the execution
+   * @throws IllegalStateException if there are no cases and no deadline or
+   *                               the Coroutine has to wait and this is not
+   *                               called from a scheduled Coroutine
+   */
+  public int select()
+      throws SuspendExecution {
+    if ((numCases == 0) && !hasDeadline) {
+      throw new IllegalStateException("No cases");
+    }
+
+    value = null;
+
+    for (;;) {
+      int idx = tryCases();
+
+      if (idx >= 0) {
+        return idx;
+      }
+
+      if (hasDeadline && ((deadline - System.nanoTime()) <= 0)) {
+        return TIMEOUT;
+      }
+
+      WaitQueue.Waiter w = new WaitQueue.Waiter();
+
+      for (int i = 0; i < numCases; i++) {
+        queue(i).add(w);
+      }
+
+      // a case may have become ready before the Waiter was added
+      idx = tryCases();
+
+      if (idx < 0) {
+        if (hasDeadline) {
+          w.awaitUntil(deadline);
+        } else {
+          w.await();
+        }
+
+        idx = tryCases();
+      }
+
+      WaitQueue woken = w.finish();
+
+      for (int i = 0; i < numCases; i++) {
+        queue(i).remove(w);
+      }
+
+      // the signal was meant for another case - pass it on so that it is
+      // not lost for the other Coroutines waiting on that channel
+      if ((woken != null) && (idx >= 0) && (woken != queue(idx))) {
+        woken.signal();
+      }
+
+      if (idx >= 0) {
+        return idx;
+      }
+    }
+  }
+
+  private int addCase(Channel<?> ch, Object caseValue) {
+    if (ch == null) {
+      throw new NullPointerException("ch");
+    }
+
+    if (numCases == channels.length) {
+      channels = copyOf(channels, numCases * 2);
+      values = Util.copyOf(values, numCases * 2);
+    }
+
+    @SuppressWarnings("unchecked")
+    Channel<Object> c = (Channel<Object>) ch;
+
+    channels[numCases] = c;
+    values[numCases] = caseValue;
+
+    return numCases++;
+  }
+
+  private WaitQueue queue(int idx) {
+    Channel<Object> ch = channels[idx];
+
+    return (values[idx] != null) ? ch.notFull : ch.notEmpty;
+  }
+
+  private int tryCases() {
+    int n = numCases;
+    int idx = nextCase;
+
+    for (int i = 0; i < n; i++, idx++) {
+      if (idx >= n) {
+        idx = 0;
+      }
+
+      Channel<Object> ch = channels[idx];
+
+      if (values[idx] != null) {
+        if (!ch.offer(values[idx])) {
+          continue;
+        }
+      } else if ((value = ch.poll()) == null) {
+        continue;
+      }
+
+      // start with the next case in the next select
+      nextCase = idx + 1;
+
+      return idx;
+    }
+
+    return -1;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Channel<Object>[] copyOf(Channel<Object>[] src, int size) {
+    Channel<Object>[] dst = new Channel[size];
+
+    System.arraycopy(src, 0, dst, 0, src.length);
+
+    return dst;
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2008, Matthias Mann
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Matthias Mann nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.matthiasmann.coroutines;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+
+/**
+ * An {@link ObjectCodec} which uses Java serialization. When the stream is
+ * an ObjectOutput the objects are written directly to it, otherwise each
+ * object is written as a length prefixed serialized byte array.
+ *
+ * @author Matthias Mann
+ */
+public class SerializationCodec implements ObjectCodec {
+  /** the shared instance - this class has no state */
+  public static final SerializationCodec INSTANCE = new SerializationCodec();
+
+  /**
+   * DOCUMENT ME!
+   *
+   * @param  out   DOCUMENT ME!
+   * @param  value DOCUMENT ME!
+   *
+   * @throws IOException DOCUMENT ME!
+   */
+  public void writeObject(DataOutput out, Object value)
+      throws IOException {
+    if (out instanceof ObjectOutput) {
+      ((ObjectOutput) out).writeObject(value);
+
+      return;
+    }
+
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    ObjectOutputStream oos = new ObjectOutputStream(baos);
+
+    oos.writeObject(value);
+    oos.close();
+
+    Util.writeVarInt(out, baos.size());
+    out.write(baos.toByteArray());
+  }
+
+  /**
+   * DOCUMENT ME!
+   *
+   * @param  in DOCUMENT ME!
+   *
+   * @return DOCUMENT ME!
+   *
+   * @throws IOException DOCUMENT ME!
+   */
+  public Object readObject(DataInput in)
+      throws IOException {
+    try {
+      if (in instanceof ObjectInput) {
+        return ((ObjectInput) in).readObject();
+      }
+
+      byte[] bytes = new byte[Util.readVarInt(in)];
+
+      in.readFully(bytes);
+
+      ObjectInputStream ois =
+        new ObjectInputStream(new ByteArrayInputStream(bytes));
+
+      try {
+        return ois.readObject();
+      } finally {
+        ois.close();
+      }
+    } catch (ClassNotFoundException ex) {
+      InvalidClassException ice = new InvalidClassException(ex.getMessage());
+
+      ice.initCause(ex);
+      throw ice;
+    }
+  }
+}
@@ -28,7 +28,17 @@
  */
 package de.matthiasmann.coroutines;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.io.StreamCorruptedException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
 
 /**
  * Internal Class - DO NOT USE !
@@ -37,6 +47,10 @@ import java.io.Serializable;
  * IN THIS CLASS NEEDS TO BE SYNCHRONIZED WITH {@link
  * de.matthiasmann.coroutines.instrument.InstrumentMethod}</p>
  *
+ * <p>Primitives and references are saved in two independent regions. Each
+ * method reserves as many slots in each region as it needs. Primitives use
+ * 32 bit slots - a long or a double takes two consecutive slots.</p>
+ *
  * @author Matthias Mann
  */
 public final class Stack implements Serializable {
@@ -44,24 +58,154 @@ public final class Stack implements Serializable {
 
   private static final ThreadLocal<Stack> tls = new ThreadLocal<Stack>();
 
+  /** entry, primitive SP and reference SP of a saved method */
+  private static final int METHOD_ENTRY_SIZE = 3;
+  private static final int INITIAL_METHOD_SIZE = 8 * METHOD_ENTRY_SIZE;
+  private static final int INITIAL_DATA_SIZE = 32;
+
+  /** the maximum number of unused Stacks kept per thread */
+  private static final int POOL_SIZE = 16;
+
+  private static final ThreadLocal<Pool> pool =
+    new ThreadLocal<Pool>() {
+      @Override
+      protected Pool initialValue() {
+        return new Pool();
+      }
+    };
+
   /** sadly this need to be here. */
   public static SuspendExecution exception_instance_not_for_user_code =
     SuspendExecution.instance;
 
-  final Coroutine co;
+  Coroutine co;
 
-  private int methodTOS = -1;
-  private int[] method = new int[16];
+  // the saved state is written by writeObject - only the used region
+  private transient int methodTOS;
+  private transient int[] method = new int[INITIAL_METHOD_SIZE];
 
-  private long[] dataLong = new long[32];
-  private Object[] dataObject = new Object[32];
+  // public for instrumented code with inlined Stack access - the arrays are
+  // large enough for the frame after pushMethodAndReserveSpace
+  public transient int[] dataPrim = new int[INITIAL_DATA_SIZE];
+  private transient int primTOS;
+  public transient Object[] dataObject = new Object[INITIAL_DATA_SIZE];
+  private transient int objTOS;
 
-  transient int curMethodSP;
+  private transient int methodHighWater;
+  private transient int primHighWater;
+  private transient int objHighWater;
+
+  // all references above this index are null - clear() only clears below
+  private transient int objDirty;
+
+  public transient int curPrimSP;
+  public transient int curObjSP;
+
+  // filled by instrumented code with bulk Stack access and copied by
+  // pushMethodAndCopyFrame - allocated on first use
+  private transient int[] scratchPrim;
+  private transient Object[] scratchObject;
 
   Stack(Coroutine co) {
     this.co = co;
   }
 
+  /**
+   * Returns an unused Stack from the pool of the current thread or a new
+   * Stack if the pool is empty.
+   *
+   * @param  co the Coroutine which will use the Stack
+   *
+   * @return a cleared Stack
+   */
+  static Stack acquire(Coroutine co) {
+    Pool p = pool.get();
+
+    if (p.size == 0) {
+      return new Stack(co);
+    }
+
+    Stack s = p.stacks[--p.size];
+
+    p.stacks[p.size] = null;
+    s.co = co;
+
+    return s;
+  }
+
+  /**
+   * Clears this Stack and puts it into the pool of the current thread. The
+   * grown arrays are kept. The Stack must not be used afterwards.
+   */
+  void release() {
+    clear();
+    co = null;
+
+    Pool p = pool.get();
+
+    if (p.size < POOL_SIZE) {
+      p.stacks[p.size++] = this;
+    }
+  }
+
+  /**
+   * Called when the Coroutine has suspended or finished. Shrinks the arrays
+   * when the policy decides that they are too large for the decayed high
+   * water mark.
+   *
+   * @param policy the shrink policy
+   */
+  void shrink(StackShrinkPolicy policy) {
+    methodHighWater = policy.decay(methodHighWater, methodTOS);
+    primHighWater = policy.decay(primHighWater, primTOS);
+    objHighWater = policy.decay(objHighWater, objTOS);
+
+    int newMethodSize =
+      policy.computeCapacity(
+        method.length, methodHighWater, INITIAL_METHOD_SIZE
+      );
+
+    if (newMethodSize < method.length) {
+      method = Util.copyOf(method, newMethodSize);
+    }
+
+    int newPrimSize =
+      policy.computeCapacity(
+        dataPrim.length, primHighWater, INITIAL_DATA_SIZE
+      );
+
+    if (newPrimSize < dataPrim.length) {
+      dataPrim = Util.copyOf(dataPrim, newPrimSize);
+    }
+
+    int newObjSize =
+      policy.computeCapacity(
+        dataObject.length, objHighWater, INITIAL_DATA_SIZE
+      );
+
+    if (newObjSize < dataObject.length) {
+      dataObject = Util.copyOf(dataObject, newObjSize);
+
+      if (objDirty > newObjSize) {
+        objDirty = newObjSize;
+      }
+    }
+  }
+
+  /**
+   * Removes all saved methods and all references to saved objects. Only the
+   * slots which were reserved since the last clear are cleared.
+   */
+  void clear() {
+    Arrays.fill(dataObject, 0, objDirty, null);
+    objDirty = 0;
+    methodTOS = 0;
+    primTOS = 0;
+    objTOS = 0;
+    curPrimSP = 0;
+    curObjSP = 0;
+  }
+
   /**
    * Returns the value of the stack property.
    *
@@ -71,62 +215,182 @@ public final class Stack implements Serializable {
     return tls.get();
   }
 
+  /**
+   * Returns the value of the stack property. Reads the Stack from the
+   * current thread if it is a {@link CoroutineThread} and falls back to the
+   * ThreadLocal otherwise.
+   *
+   * @return the value of the stack property.
+   */
+  public static Stack getCarrierStack() {
+    Thread t = Thread.currentThread();
+
+    if (t instanceof CoroutineThread) {
+      return ((CoroutineThread) t).stack;
+    }
+
+    return tls.get();
+  }
+
   static void setStack(Stack s) {
+    Thread t = Thread.currentThread();
+
+    if (t instanceof CoroutineThread) {
+      ((CoroutineThread) t).stack = s;
+    }
+
+    // always set - code instrumented without the carrier thread option
+    // still uses getStack()
     tls.set(s);
   }
 
   /**
-   * Called before a method is called.
+   * Called when a SuspendExecution propagates through a suspendable call.
+   * The methods are captured from the innermost to the outermost method.
    *
-   * @param entry    the entry point in the method for resume
-   * @param numSlots the number of required stack slots for storing the state
+   * @param entry        the entry point in the method for resume
+   * @param numPrimSlots the number of 32 bit slots for the primitives
+   * @param numObjSlots  the number of slots for the references
    */
-  public void pushMethodAndReserveSpace(int entry, int numSlots) {
+  public void pushMethodAndReserveSpace(
+    int entry, int numPrimSlots, int numObjSlots
+  ) {
     final int methodIdx = methodTOS;
 
-    if ((method.length - methodIdx) < 2) {
+    if ((method.length - methodIdx) < METHOD_ENTRY_SIZE) {
       growMethodStack();
     }
 
-    curMethodSP = method[methodIdx - 1];
+    curPrimSP = primTOS;
+    curObjSP = objTOS;
 
-    int dataTOS = curMethodSP + numSlots;
+    int newPrimTOS = curPrimSP + numPrimSlots;
+    int newObjTOS = curObjSP + numObjSlots;
 
     method[methodIdx] = entry;
-    method[methodIdx + 1] = dataTOS;
+    method[methodIdx + 1] = curPrimSP;
+    method[methodIdx + 2] = curObjSP;
+    methodTOS = methodIdx + METHOD_ENTRY_SIZE;
+
+    if (newPrimTOS > dataPrim.length) {
+      dataPrim = Util.copyOf(dataPrim, grow(dataPrim.length, newPrimTOS));
+    }
+
+    if (newObjTOS > dataObject.length) {
+      dataObject = Util.copyOf(dataObject, grow(dataObject.length, newObjTOS));
+    }
 
-    // System.out.println("entry="+entry+" size="+size+" sp="+curMethodSP+"
-    // tos="+dataTOS+" nr="+methodIdx);
+    primTOS = newPrimTOS;
+    objTOS = newObjTOS;
 
-    if (dataTOS > dataObject.length) {
-      growDataStack(dataTOS);
+    if (methodTOS > methodHighWater) {
+      methodHighWater = methodTOS;
+    }
+
+    if (newPrimTOS > primHighWater) {
+      primHighWater = newPrimTOS;
+    }
+
+    if (newObjTOS > objHighWater) {
+      objHighWater = newObjTOS;
+    }
+
+    if (newObjTOS > objDirty) {
+      objDirty = newObjTOS;
     }
   }
 
   /**
-   * Called at the end of a method - undoes the effects of nextMethodEntry().
+   * Returns a scratch array for the primitive slots of a frame which is
+   * saved by {@link #pushMethodAndCopyFrame(int, int, int)}.
+   *
+   * @param  numPrimSlots the number of 32 bit slots for the primitives
    *
-   * @param numObjSlots number of Object slots to clear
+   * @return an array with at least <code>numPrimSlots</code> elements
    */
-  public void popMethod(int numObjSlots) {
-    int idx = methodTOS;
+  public int[] getPrimScratch(int numPrimSlots) {
+    int[] scratch = scratchPrim;
+
+    if ((scratch == null) || (scratch.length < numPrimSlots)) {
+      scratch = new int[Math.max(numPrimSlots, INITIAL_DATA_SIZE)];
+      scratchPrim = scratch;
+    }
+
+    return scratch;
+  }
+
+  /**
+   * Returns a scratch array for the references of a frame which is saved by
+   * {@link #pushMethodAndCopyFrame(int, int, int)}.
+   *
+   * @param  numObjSlots the number of slots for the references
+   *
+   * @return an array with at least <code>numObjSlots</code> elements
+   */
+  public Object[] getObjectScratch(int numObjSlots) {
+    Object[] scratch = scratchObject;
+
+    if ((scratch == null) || (scratch.length < numObjSlots)) {
+      scratch = new Object[Math.max(numObjSlots, INITIAL_DATA_SIZE)];
+      scratchObject = scratch;
+    }
+
+    return scratch;
+  }
+
+  /**
+   * Like {@link #pushMethodAndReserveSpace(int, int, int)} but also copies
+   * the frame from the scratch arrays into the reserved slots. The scratch
+   * references are cleared.
+   *
+   * @param entry        the entry point in the method for resume
+   * @param numPrimSlots the number of 32 bit slots for the primitives
+   * @param numObjSlots  the number of slots for the references
+   */
+  public void pushMethodAndCopyFrame(
+    int entry, int numPrimSlots, int numObjSlots
+  ) {
+    pushMethodAndReserveSpace(entry, numPrimSlots, numObjSlots);
+
+    if (numPrimSlots > 0) {
+      System.arraycopy(scratchPrim, 0, dataPrim, curPrimSP, numPrimSlots);
+    }
+
+    if (numObjSlots > 0) {
+      System.arraycopy(scratchObject, 0, dataObject, curObjSP, numObjSlots);
+      Arrays.fill(scratchObject, 0, numObjSlots, null);
+    }
+  }
 
-    method[idx] = 0;
-    curMethodSP = method[idx - 1];
-    methodTOS = idx - 2;
-    clearStack(numObjSlots);
+  /**
+   * Clears the references of the current method after they were restored
+   * directly from the array.
+   *
+   * @param numObjSlots the number of slots for the references
+   */
+  public void clearObjects(int numObjSlots) {
+    Arrays.fill(dataObject, curObjSP, curObjSP + numObjSlots, null);
   }
 
   /**
-   * called at the begin of a method.
+   * called at the begin of a method. While resuming this removes the
+   * outermost captured method from the stack.
    *
-   * @return the entry point of this method
+   * @return the entry point of this method or 0 if not resuming
    */
   public int nextMethodEntry() {
     int idx = methodTOS;
 
-    curMethodSP = method[++idx];
-    methodTOS = ++idx;
+    if (idx == 0) {
+      return 0;
+    }
+
+    idx -= METHOD_ENTRY_SIZE;
+    methodTOS = idx;
+    curPrimSP = method[idx + 1];
+    curObjSP = method[idx + 2];
+    primTOS = curPrimSP;
+    objTOS = curObjSP;
 
     return method[idx];
   }
@@ -139,7 +403,7 @@ public final class Stack implements Serializable {
    * @param idx   DOCUMENT ME!
    */
   public static void push(int value, Stack s, int idx) {
-    s.dataLong[s.curMethodSP + idx] = value;
+    s.dataPrim[s.curPrimSP + idx] = value;
   }
 
   /**
@@ -150,29 +414,32 @@ public final class Stack implements Serializable {
    * @param idx   DOCUMENT ME!
    */
   public static void push(float value, Stack s, int idx) {
-    s.dataLong[s.curMethodSP + idx] = Float.floatToRawIntBits(value);
+    s.dataPrim[s.curPrimSP + idx] = Float.floatToRawIntBits(value);
   }
 
   /**
-   * DOCUMENT ME!
+   * Saves a long in two slots - the low half first.
    *
    * @param value DOCUMENT ME!
    * @param s     DOCUMENT ME!
    * @param idx   DOCUMENT ME!
    */
   public static void push(long value, Stack s, int idx) {
-    s.dataLong[s.curMethodSP + idx] = value;
+    final int i = s.curPrimSP + idx;
+
+    s.dataPrim[i] = (int) value;
+    s.dataPrim[i + 1] = (int) (value >>> 32);
   }
 
   /**
-   * DOCUMENT ME!
+   * Saves a double in two slots - the low half first.
    *
    * @param value DOCUMENT ME!
    * @param s     DOCUMENT ME!
    * @param idx   DOCUMENT ME!
    */
   public static void push(double value, Stack s, int idx) {
-    s.dataLong[s.curMethodSP + idx] = Double.doubleToRawLongBits(value);
+    push(Double.doubleToRawLongBits(value), s, idx);
   }
 
   /**
@@ -183,7 +450,7 @@ public final class Stack implements Serializable {
    * @param idx   DOCUMENT ME!
    */
   public static void push(Object value, Stack s, int idx) {
-    s.dataObject[s.curMethodSP + idx] = value;
+    s.dataObject[s.curObjSP + idx] = value;
   }
 
   /**
@@ -194,7 +461,7 @@ public final class Stack implements Serializable {
    * @return the value of the int property.
    */
   public int getInt(int idx) {
-    return (int) dataLong[curMethodSP + idx];
+    return dataPrim[curPrimSP + idx];
   }
 
   /**
@@ -205,7 +472,7 @@ public final class Stack implements Serializable {
    * @return the value of the float property.
    */
   public float getFloat(int idx) {
-    return Float.intBitsToFloat((int) dataLong[curMethodSP + idx]);
+    return Float.intBitsToFloat(dataPrim[curPrimSP + idx]);
   }
 
   /**
@@ -216,7 +483,9 @@ public final class Stack implements Serializable {
    * @return the value of the long property.
    */
   public long getLong(int idx) {
-    return dataLong[curMethodSP + idx];
+    final int i = curPrimSP + idx;
+
+    return (dataPrim[i] & 0xFFFFFFFFL) | ((long) dataPrim[i + 1] << 32);
   }
 
   /**
@@ -227,7 +496,7 @@ public final class Stack implements Serializable {
    * @return the value of the double property.
    */
   public double getDouble(int idx) {
-    return Double.longBitsToDouble(dataLong[curMethodSP + idx]);
+    return Double.longBitsToDouble(getLong(idx));
   }
 
   /**
@@ -238,41 +507,227 @@ public final class Stack implements Serializable {
    * @return the value of the object property.
    */
   public Object getObject(int idx) {
-    return dataObject[curMethodSP + idx];
+    final int i = curObjSP + idx;
+    final Object value = dataObject[i];
+
+    // don't keep the object reachable after it was restored
+    dataObject[i] = null;
+
+    return value;
   }
 
-  /** called when resuming a stack. */
-  void resumeStack() {
-    methodTOS = -1;
+  /**
+   * Writes the saved methods and the used regions of the data stack. The
+   * unused capacity is not written. Primitive slots are written as varints
+   * and runs of null references as a single count. A reference which was
+   * already written is written as it's index in refs.
+   *
+   * @param  out   the output
+   * @param  codec the codec for the saved references
+   * @param  refs  the objects which were already written and their index
+   *
+   * @throws IOException if an I/O error occurs
+   */
+  void writeFrames(
+    DataOutput out, ObjectCodec codec, IdentityHashMap<Object, Integer> refs
+  )
+      throws IOException {
+    Util.writeVarInt(out, methodTOS / METHOD_ENTRY_SIZE);
+
+    int prevPrimSP = 0;
+    int prevObjSP = 0;
+
+    for (int i = 0; i < methodTOS; i += METHOD_ENTRY_SIZE) {
+      Util.writeVarInt(out, method[i]);
+      Util.writeVarInt(out, method[i + 1] - prevPrimSP);
+      Util.writeVarInt(out, method[i + 2] - prevObjSP);
+      prevPrimSP = method[i + 1];
+      prevObjSP = method[i + 2];
+    }
+
+    Util.writeVarInt(out, primTOS);
+    Util.writeVarInt(out, objTOS);
+
+    for (int i = 0; i < objTOS;) {
+      int start = i;
+
+      while ((i < objTOS) && (dataObject[i] == null)) {
+        i++;
+      }
+
+      Util.writeVarInt(out, i - start);
+
+      if (i < objTOS) {
+        writeReference(out, codec, refs, dataObject[i++]);
+      }
+    }
+
+    // zigzag encoded so that small negative values stay small
+    for (int i = 0; i < primTOS; i++) {
+      Util.writeVarLong(out, dataPrim[i]);
+    }
   }
 
-  /* DEBUGGING CODE
-   * public void dump() { int sp = 0; for(int i=0 ; i<=methodTOS ; i++) {
-   * System.out.println("i="+i+" entry="+methodEntry[i]+" sp="+methodSP[i]);
-   * for(; sp < methodSP[i+1] ; sp++) { System.out.println("sp="+sp+"
-   * long="+dataLong[sp]+" obj="+dataObject[sp]);     } } }
+  /**
+   * Reads the state written by {@link #writeFrames(DataOutput, ObjectCodec,
+   * IdentityHashMap)} into this empty Stack.
+   *
+   * @param  in    the input
+   * @param  codec the codec for the saved references
+   * @param  refs  the objects which were already read in the order of their
+   *               index
+   *
+   * @throws IOException if an I/O error occurs or the data is corrupted
    */
+  void readFrames(DataInput in, ObjectCodec codec, ArrayList<Object> refs)
+      throws IOException {
+    int numMethods = Util.readVarInt(in);
+
+    if (
+      (numMethods < 0) || (numMethods > (Integer.MAX_VALUE / METHOD_ENTRY_SIZE))
+    ) {
+      throw new StreamCorruptedException("invalid method count");
+    }
+
+    methodTOS = numMethods * METHOD_ENTRY_SIZE;
+
+    if (method.length < methodTOS) {
+      method = new int[methodTOS];
+    }
+
+    int primSP = 0;
+    int objSP = 0;
+
+    for (int i = 0; i < methodTOS; i += METHOD_ENTRY_SIZE) {
+      method[i] = Util.readVarInt(in);
+      primSP += Util.readVarInt(in);
+      objSP += Util.readVarInt(in);
+      method[i + 1] = primSP;
+      method[i + 2] = objSP;
+    }
+
+    primTOS = Util.readVarInt(in);
+    objTOS = Util.readVarInt(in);
+
+    if ((primTOS < primSP) || (objTOS < objSP)) {
+      throw new StreamCorruptedException("invalid data size");
+    }
+
+    if (dataPrim.length < primTOS) {
+      dataPrim = new int[primTOS];
+    }
+
+    if (dataObject.length < objTOS) {
+      dataObject = new Object[objTOS];
+    }
+
+    for (int i = 0; i < objTOS;) {
+      int nulls = Util.readVarInt(in);
+
+      if ((nulls < 0) || (nulls > (objTOS - i))) {
+        throw new StreamCorruptedException("invalid null run");
+      }
+
+      i += nulls;
+
+      if (i < objTOS) {
+        dataObject[i++] = readReference(in, codec, refs);
+      }
+    }
+
+    for (int i = 0; i < primTOS; i++) {
+      long value = Util.readVarLong(in);
+
+      if ((int) value != value) {
+        throw new StreamCorruptedException("invalid primitive slot");
+      }
+
+      dataPrim[i] = (int) value;
+    }
 
-  private void clearStack(int cnt) {
-    for (int i = 0; i < cnt; i++) {
-      dataObject[curMethodSP + i] = null;
+    methodHighWater = methodTOS;
+    primHighWater = primTOS;
+    objHighWater = objTOS;
+    objDirty = objTOS;
+    curPrimSP = 0;
+    curObjSP = 0;
+  }
+
+  private void writeObject(ObjectOutputStream out)
+      throws IOException {
+    out.defaultWriteObject();
+    writeFrames(
+      out, SerializationCodec.INSTANCE, new IdentityHashMap<Object, Integer>()
+    );
+  }
+
+  private void readObject(ObjectInputStream in)
+      throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    method = new int[INITIAL_METHOD_SIZE];
+    dataPrim = new int[INITIAL_DATA_SIZE];
+    dataObject = new Object[INITIAL_DATA_SIZE];
+    readFrames(in, SerializationCodec.INSTANCE, new ArrayList<Object>());
+  }
+
+  // 0 is followed by a new object, n > 0 refers to the object at index n-1
+  private static void writeReference(
+    DataOutput out, ObjectCodec codec, IdentityHashMap<Object, Integer> refs,
+    Object value
+  )
+      throws IOException {
+    Integer index = refs.get(value);
+
+    if (index != null) {
+      Util.writeVarInt(out, index + 1);
+
+      return;
+    }
+
+    Util.writeVarInt(out, 0);
+    refs.put(value, refs.size());
+    codec.writeObject(out, value);
+  }
+
+  private static Object readReference(
+    DataInput in, ObjectCodec codec, ArrayList<Object> refs
+  )
+      throws IOException {
+    int index = Util.readVarInt(in);
+
+    if (index == 0) {
+      Object value = codec.readObject(in);
+
+      refs.add(value);
+
+      return value;
     }
+
+    if ((index < 0) || (index > refs.size())) {
+      throw new StreamCorruptedException("invalid reference");
+    }
+
+    return refs.get(index - 1);
   }
 
-  private void growDataStack(int required) {
-    int newSize = dataObject.length;
+  private static int grow(int size, int required) {
+    int newSize = size;
 
     do {
       newSize *= 2;
     } while (newSize < required);
 
-    dataLong = Util.copyOf(dataLong, newSize);
-    dataObject = Util.copyOf(dataObject, newSize);
+    return newSize;
   }
 
   private void growMethodStack() {
-    int newSize = methodTOS * 2;
+    int newSize = method.length * 2;
 
     method = Util.copyOf(method, newSize);
   }
+
+  private static final class Pool {
+    final Stack[] stacks = new Stack[POOL_SIZE];
+    int size;
+  }
 }
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2008, Matthias Mann
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Matthias Mann nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.matthiasmann.coroutines;
+
+/**
+ * <p>Decides when the arrays of a Coroutine's stack are shrunk.</p>
+ *
+ * <p>The stack keeps a high water mark of it's used size. Each time the
+ * Coroutine suspends or finishes the high water mark decays towards the
+ * currently used size. When the capacity of the stack is at least
+ * shrinkFactor times larger than twice the high water mark the arrays are
+ * shrunk to twice the high water mark. This keeps the amortized growth for
+ * Coroutines which regularly use a deep stack but returns the memory after
+ * a short burst of deep recursion.</p>
+ *
+ * @see    Coroutine#setShrinkPolicy(StackShrinkPolicy)
+ * @author Matthias Mann
+ */
+public final class StackShrinkPolicy {
+  /** The arrays are never shrunk. */
+  public static final StackShrinkPolicy NEVER = new StackShrinkPolicy();
+
+  /**
+   * The high water mark loses 1/8 per suspend and the arrays are shrunk
+   * when they are 4 times larger than needed.
+   */
+  public static final StackShrinkPolicy DEFAULT = new StackShrinkPolicy(3, 4);
+
+  private final int decayShift;
+  private final int shrinkFactor;
+
+  /**
+   * Creates a new StackShrinkPolicy object.
+   *
+   * @param  decayShift   the high water mark loses 1/2^decayShift of it's
+   *                      value each time the Coroutine suspends. 0 means the
+   *                      high water mark is always the currently used size.
+   * @param  shrinkFactor how many times larger than needed the arrays must
+   *                      be before they are shrunk
+   *
+   * @throws IllegalArgumentException if decayShift is not in the range
+   *                                  0..30 or shrinkFactor is &lt; 2
+   */
+  public StackShrinkPolicy(int decayShift, int shrinkFactor) {
+    if ((decayShift < 0) || (decayShift > 30)) {
+      throw new IllegalArgumentException("decayShift");
+    }
+
+    if (shrinkFactor < 2) {
+      throw new IllegalArgumentException("shrinkFactor");
+    }
+
+    this.decayShift = decayShift;
+    this.shrinkFactor = shrinkFactor;
+  }
+
+  private StackShrinkPolicy() {
+    this.decayShift = 0;
+    this.shrinkFactor = 0;
+  }
+
+  /**
+   * Returns the decayed high water mark.
+   *
+   * @param  highWater the previous high water mark
+   * @param  used      the currently used size
+   *
+   * @return the new high water mark
+   */
+  int decay(int highWater, int used) {
+    return Math.max(used, highWater - (highWater >> decayShift));
+  }
+
+  /**
+   * Returns the new capacity for an array.
+   *
+   * @param  capacity  the current capacity
+   * @param  highWater the high water mark
+   * @param  minimum   the initial capacity of the array
+   *
+   * @return the new capacity or capacity if the array should not be shrunk
+   */
+  int computeCapacity(int capacity, int highWater, int minimum) {
+    if (shrinkFactor == 0) {
+      return capacity;
+    }
+
+    int target = Math.max(minimum, highWater * 2);
+
+    if ((capacity / shrinkFactor) >= target) {
+      return target;
+    }
+
+    return capacity;
+  }
+}
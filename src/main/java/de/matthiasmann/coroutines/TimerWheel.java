@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2008, Matthias Mann
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Matthias Mann nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.matthiasmann.coroutines;
+
+import java.util.List;
+
+/**
+ * <p>A hierarchical hashed timing wheel. Internal class used by {@link
+ * CoroutineScheduler} - not thread safe.</p>
+ *
+ * <p>Time is measured in ticks. Each level has 64 slots and a slot of a
+ * level covers 64 slots of the level below. A timeout is put into the lowest
+ * level on which it's tick differs from the current tick only in the digit
+ * of that level. When the current tick reaches the start of a slot of a
+ * higher level the timeouts of that slot are moved down. Adding, removing
+ * and expiring a timeout are O(1) and empty slots are skipped with a bit set
+ * per level - the wheel never scans all pending timeouts.</p>
+ *
+ * @author Matthias Mann
+ */
+final class TimerWheel {
+  private static final int SLOT_BITS = 6;
+  private static final int SLOTS = 1 << SLOT_BITS;
+
+  /** enough levels to place every tick in the range of a long */
+  private static final int LEVELS = (64 + SLOT_BITS - 1) / SLOT_BITS;
+
+  private final Timeout[] slots = new Timeout[LEVELS * SLOTS];
+  private final long[] occupied = new long[LEVELS];
+
+  /** the next tick to process - all earlier ticks have expired */
+  private long tick;
+  private int size;
+
+  /**
+   * Returns the next tick which has not yet been processed.
+   *
+   * @return the next tick which has not yet been processed.
+   */
+  long getTick() {
+    return tick;
+  }
+
+  /**
+   * Returns the number of pending timeouts.
+   *
+   * @return the number of pending timeouts.
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Adds a timeout. A timeout for a tick which was already processed
+   * expires with the next processed tick.
+   *
+   * @param  t the timeout
+   *
+   * @throws IllegalStateException if the timeout is already pending
+   */
+  void add(Timeout t) {
+    if (t.slot >= 0) {
+      throw new IllegalStateException("Timeout already pending");
+    }
+
+    if (t.tick < tick) {
+      t.tick = tick;
+    }
+
+    insert(t);
+    size++;
+  }
+
+  /**
+   * Removes a pending timeout. Does nothing if the timeout has already
+   * expired or was removed.
+   *
+   * @param t the timeout
+   */
+  void remove(Timeout t) {
+    if (t.slot >= 0) {
+      unlink(t);
+      size--;
+    }
+  }
+
+  /**
+   * Returns the next tick at which the wheel has work to do - either
+   * expiring timeouts or moving them to a lower level.
+   *
+   * @return the next tick or Long.MAX_VALUE if no timeout is pending
+   */
+  long nextTick() {
+    long next = Long.MAX_VALUE;
+
+    for (int level = 0; level < LEVELS; level++) {
+      long bits = occupied[level];
+
+      if (bits == 0) {
+        continue;
+      }
+
+      int shift = level * SLOT_BITS;
+      int digit = (int) (tick >>> shift) & (SLOTS - 1);
+
+      // the slot of the current digit is only due when the current tick is
+      // at it's start - timeouts are never put into a passed slot
+      if ((tick & ((1L << shift) - 1)) != 0) {
+        digit++;
+      }
+
+      bits = (digit < SLOTS) ? (bits & (-1L << digit)) : 0;
+
+      if (bits != 0) {
+        long window = shift + SLOT_BITS;
+        long base = (window < 64) ? ((tick >>> window) << window) : 0;
+        long due = base + ((long) Long.numberOfTrailingZeros(bits) << shift);
+
+        if (due < next) {
+          next = due;
+        }
+      }
+    }
+
+    return next;
+  }
+
+  /**
+   * Processes all ticks up to and including <code>now</code>. Ticks without
+   * work are skipped.
+   *
+   * @param now     the current tick
+   * @param expired the list which receives the expired timeouts
+   */
+  void advance(long now, List<Timeout> expired) {
+    while (tick <= now) {
+      long next = nextTick();
+
+      if (next > now) {
+        tick = now + 1;
+
+        return;
+      }
+
+      tick = next;
+
+      // move the timeouts of the slots starting at this tick down - from
+      // the highest level so that they can cascade through all levels
+      for (int level = LEVELS; level-- > 1;) {
+        int shift = level * SLOT_BITS;
+
+        if ((tick & ((1L << shift) - 1)) == 0) {
+          int idx = slotIndex(level, (int) (tick >>> shift) & (SLOTS - 1));
+          Timeout t = slots[idx];
+
+          while (t != null) {
+            Timeout n = t.next;
+
+            unlink(t);
+            insert(t);
+            t = n;
+          }
+        }
+      }
+
+      int idx = slotIndex(0, (int) tick & (SLOTS - 1));
+      Timeout t = slots[idx];
+
+      while (t != null) {
+        Timeout n = t.next;
+
+        unlink(t);
+        size--;
+        expired.add(t);
+        t = n;
+      }
+
+      tick++;
+    }
+  }
+
+  private void insert(Timeout t) {
+    long diff = t.tick ^ tick;
+    int level =
+      (diff == 0) ? 0 : ((63 - Long.numberOfLeadingZeros(diff)) / SLOT_BITS);
+    int digit = (int) (t.tick >>> (level * SLOT_BITS)) & (SLOTS - 1);
+    int idx = slotIndex(level, digit);
+    Timeout head = slots[idx];
+
+    t.slot = idx;
+    t.prev = null;
+    t.next = head;
+
+    if (head != null) {
+      head.prev = t;
+    }
+
+    slots[idx] = t;
+    occupied[level] |= 1L << digit;
+  }
+
+  private void unlink(Timeout t) {
+    int idx = t.slot;
+
+    if (t.prev != null) {
+      t.prev.next = t.next;
+    } else {
+      slots[idx] = t.next;
+
+      if (t.next == null) {
+        occupied[idx / SLOTS] &= ~(1L << (idx % SLOTS));
+      }
+    }
+
+    if (t.next != null) {
+      t.next.prev = t.prev;
+    }
+
+    t.slot = -1;
+    t.prev = null;
+    t.next = null;
+  }
+
+  private static int slotIndex(int level, int digit) {
+    return (level * SLOTS) + digit;
+  }
+
+  /** A pending timeout of a Coroutine. */
+  static final class Timeout {
+    final Coroutine co;
+    long tick;
+
+    Timeout prev;
+    Timeout next;
+
+    /** the slot which contains this timeout or -1 if not pending */
+    int slot = -1;
+
+    /**
+     * Creates a new Timeout object.
+     *
+     * @param co   the Coroutine to resume
+     * @param tick the tick at which the timeout expires
+     */
+    Timeout(Coroutine co, long tick) {
+      this.co = co;
+      this.tick = tick;
+    }
+  }
+}
@@ -28,6 +28,11 @@
  */
 package de.matthiasmann.coroutines;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+
 /** @author Matthias Mann */
 public class Util {
   /**
@@ -77,4 +82,95 @@ public class Util {
 
     return dst;
   }
+
+  /**
+   * Writes an unsigned variable length int using 7 bits per byte.
+   *
+   * @param  out   the output
+   * @param  value the value - negative values need 5 bytes
+   *
+   * @throws IOException if an I/O error occurs
+   */
+  public static void writeVarInt(DataOutput out, int value)
+      throws IOException {
+    while ((value & ~0x7F) != 0) {
+      out.writeByte((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+
+    out.writeByte(value);
+  }
+
+  /**
+   * Reads an int written by {@link #writeVarInt(DataOutput, int)}.
+   *
+   * @param  in the input
+   *
+   * @return the value
+   *
+   * @throws IOException if an I/O error occurs or the data is corrupted
+   */
+  public static int readVarInt(DataInput in)
+      throws IOException {
+    int value = 0;
+
+    for (int shift = 0; shift < 35; shift += 7) {
+      int b = in.readUnsignedByte();
+
+      value |= (b & 0x7F) << shift;
+
+      if (b < 0x80) {
+        return value;
+      }
+    }
+
+    throw new StreamCorruptedException("malformed varint");
+  }
+
+  /**
+   * Writes a signed variable length long using zig zag encoding so that
+   * small negative values also need only a few bytes.
+   *
+   * @param  out   the output
+   * @param  value the value
+   *
+   * @throws IOException if an I/O error occurs
+   */
+  public static void writeVarLong(DataOutput out, long value)
+      throws IOException {
+    value = (value << 1) ^ (value >> 63);
+
+    while ((value & ~0x7FL) != 0) {
+      out.writeByte(((int) value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+
+    out.writeByte((int) value);
+  }
+
+  /**
+   * Reads a long written by {@link #writeVarLong(DataOutput, long)}.
+   *
+   * @param  in the input
+   *
+   * @return the value
+   *
+   * @throws IOException if an I/O error occurs or the data is corrupted
+   */
+  public static long readVarLong(DataInput in)
+      throws IOException {
+    long value = 0;
+
+    for (int shift = 0; shift < 70; shift += 7) {
+      int b = in.readUnsignedByte();
+
+      value |= (long) (b & 0x7F) << shift;
+
+      if (b < 0x80) {
+        return (value >>> 1) ^ -(value & 1);
+      }
+    }
+
+    throw new StreamCorruptedException("malformed varlong");
+  }
 }
@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2008, Matthias Mann
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Matthias Mann nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.matthiasmann.coroutines;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * <p>A queue of Coroutines waiting for a condition. Internal class used by
+ * {@link Channel} and {@link Select}.</p>
+ *
+ * <p>A waiting Coroutine adds a {@link Waiter}, checks it's condition again
+ * and then calls {@link Waiter#await()}. {@link #signal()} wakes exactly one
+ * Waiter which has not been woken or cancelled. A Waiter can be added to
+ * several queues and is woken by the first signal. A Coroutine which does
+ * not need to wait after it added it's Waiter calls {@link
+ * #cancel(Waiter)} which passes a signal it already received on to the next
+ * Waiter.</p>
+ *
+ * @author Matthias Mann
+ */
+final class WaitQueue {
+  private final ConcurrentLinkedQueue<Waiter> waiters =
+    new ConcurrentLinkedQueue<Waiter>();
+
+  /**
+   * Adds a Waiter.
+   *
+   * @param w the Waiter
+   */
+  void add(Waiter w) {
+    waiters.add(w);
+  }
+
+  /**
+   * Removes a Waiter which no longer waits. If the Waiter was already woken
+   * the signal is passed on.
+   *
+   * @param w the Waiter
+   */
+  void cancel(Waiter w) {
+    w.cancel();
+    waiters.remove(w);
+  }
+
+  /**
+   * Removes a Waiter without cancelling it.
+   *
+   * @param w the Waiter
+   */
+  void remove(Waiter w) {
+    waiters.remove(w);
+  }
+
+  /** Wakes the first Waiter which still waits. */
+  void signal() {
+    Waiter w;
+
+    while ((w = waiters.poll()) != null) {
+      if (w.wake(this)) {
+        return;
+      }
+    }
+  }
+
+  /** A Coroutine waiting in one or more WaitQueues. */
+  static final class Waiter {
+    private static final Object CANCELLED = new Object();
+
+    private static final AtomicReferenceFieldUpdater<Waiter, Object> STATE =
+      AtomicReferenceFieldUpdater.newUpdater(
+        Waiter.class, Object.class, "state"
+      );
+
+    final Coroutine co;
+
+    /** null while waiting, the WaitQueue which woke it or CANCELLED */
+    private volatile Object state;
+
+    /**
+     * Creates a Waiter for the active Coroutine.
+     *
+     * @throws IllegalStateException If not called from a scheduled Coroutine
+     */
+    Waiter() {
+      co = Coroutine.getActiveCoroutine();
+
+      if ((co == null) || (co.scheduler == null)) {
+        throw new IllegalStateException(
+          "Not called from a scheduled Coroutine"
+        );
+      }
+    }
+
+    /**
+     * Suspends the Coroutine until a signal wakes it or the deadline has
+     * passed.
+     *
+     * @param  deadline the deadline as a value of {@link System#nanoTime()}
+     *
+     * @throws SuspendExecution de.matthiasmann.coroutines.SuspendExecution
+     *                          This method will suspend the execution
+     */
+    void awaitUntil(long deadline)
+        throws SuspendExecution {
+      while ((state == null) && ((deadline - System.nanoTime()) > 0)) {
+        CoroutineScheduler.parkUntil(deadline);
+      }
+    }
+
+    /**
+     * Suspends the Coroutine until a signal wakes it.
+     *
+     * @throws SuspendExecution de.matthiasmann.coroutines.SuspendExecution
+     *                          This method will suspend the execution
+     */
+    void await()
+        throws SuspendExecution {
+      // park may return early - only a signal ends the wait
+      while (state == null) {
+        CoroutineScheduler.park();
+      }
+    }
+
+    boolean wake(WaitQueue q) {
+      if (!STATE.compareAndSet(this, null, q)) {
+        return false;
+      }
+
+      CoroutineScheduler.resume(co);
+
+      return true;
+    }
+
+    void cancel() {
+      WaitQueue q = finish();
+
+      if (q != null) {
+        // woken but no longer waiting - another Waiter gets the signal
+        q.signal();
+      }
+    }
+
+    /**
+     * Ends the wait. A Waiter which was not yet woken can no longer be
+     * woken afterwards.
+     *
+     * @return the WaitQueue which woke this Waiter or null
+     */
+    WaitQueue finish() {
+      if (STATE.compareAndSet(this, null, CANCELLED)) {
+        return null;
+      }
+
+      Object s = state;
+
+      return (s instanceof WaitQueue) ? (WaitQueue) s : null;
+    }
+  }
+}
@@ -51,11 +51,13 @@ public class CheckInstrumentationVisitor extends ClassVisitor {
     Type.getInternalName(SuspendExecution.class);
   static final String EXCEPTION_DESC =
     Type.getDescriptor(SuspendExecution.class);
-  static final String[] EMPTY_METHOD_NAMES = {};
+  static final String[] EMPTY_METHODS = {};
+  static final String[] EMPTY_STRINGS = {};
 
   private ArrayList<String> methods;
   private String className;
   private String parent;
+  private String[] interfaces;
   private boolean alreadyInstrumented;
 
   /** Creates a new CheckInstrumentationVisitor object. */
@@ -73,18 +75,39 @@ public class CheckInstrumentationVisitor extends ClassVisitor {
   }
 
   /**
-   * Returns the value of the method names property.
+   * Returns the suspendable methods. Each method is the name followed by
+   * the descriptor, e.g. <code>run()V</code>.
    *
-   * @return the value of the method names property.
+   * @return the suspendable methods
    */
-  public String[] getMethodNames() {
+  public String[] getMethods() {
     if (methods == null) {
-      return EMPTY_METHOD_NAMES;
+      return EMPTY_METHODS;
     }
 
     return methods.toArray(new String[methods.size()]);
   }
 
+  /**
+   * Returns the names of the suspendable methods. Overloaded methods are
+   * contained once for each overload.
+   *
+   * @return     the names of the suspendable methods
+   *
+   * @deprecated use {@link #getMethods()} which also returns the
+   *             descriptors
+   */
+  @Deprecated
+  public String[] getMethodNames() {
+    String[] names = getMethods();
+
+    for (int i = 0; i < names.length; i++) {
+      names[i] = names[i].substring(0, names[i].indexOf('('));
+    }
+
+    return names;
+  }
+
   /**
    * Returns the value of the name property.
    *
@@ -103,6 +126,15 @@ public class CheckInstrumentationVisitor extends ClassVisitor {
     return parent;
   }
 
+  /**
+   * Returns the value of the interfaces property.
+   *
+   * @return the value of the interfaces property.
+   */
+  public String[] getInterfaces() {
+    return interfaces;
+  }
+
   /**
    * Returns the value of the already instrumented property.
    *
@@ -128,6 +160,7 @@ public class CheckInstrumentationVisitor extends ClassVisitor {
   ) {
     this.className = name;
     this.parent = superName;
+    this.interfaces = (interfaces != null) ? interfaces : EMPTY_STRINGS;
   }
 
   /**
@@ -214,7 +247,7 @@ public class CheckInstrumentationVisitor extends ClassVisitor {
         methods = new ArrayList<String>();
       }
 
-      methods.add(name);
+      methods.add(name + desc);
     }
 
     return null;
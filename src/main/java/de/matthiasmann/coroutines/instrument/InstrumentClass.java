@@ -38,8 +38,16 @@ import org.objectweb.asm.tree.MethodNode;
 import org.objectweb.asm.tree.analysis.AnalyzerException;
 
 /**
- * Instrument a class by instrumenting all suspendable methods and copying the
- * others.
+ * <p>Instrument a class by instrumenting all suspendable methods and copying
+ * the others.</p>
+ *
+ * <p>For class files of version 50 and above the instrumented methods
+ * contain stack map frames. The class must be read with {@link
+ * org.objectweb.asm.ClassReader#EXPAND_FRAMES} so that the original frames
+ * can be extended - the ClassWriter then only needs to compute the maximum
+ * stack size and number of locals. A method of a class file of version 51
+ * and above for which no frames can be written is rejected with an {@link
+ * UnableToInstrumentException}.</p>
  *
  * @author Matthias Mann
  */
@@ -50,6 +58,8 @@ public class InstrumentClass extends ClassVisitor {
 
   private final MethodDatabase db;
   private String className;
+  private boolean emitFrames;
+  private boolean framesRequired;
 
   /**
    * Creates a new InstrumentClass object.
@@ -79,6 +89,8 @@ public class InstrumentClass extends ClassVisitor {
     String[] interfaces
   ) {
     this.className = name;
+    this.emitFrames = (version & 0xFFFF) >= Opcodes.V1_6;
+    this.framesRequired = (version & 0xFFFF) >= Opcodes.V1_7;
 
     // need atleast 1.5 for annotations to work
     if (version < Opcodes.V1_5) {
@@ -125,7 +137,10 @@ public class InstrumentClass extends ClassVisitor {
           super.visitEnd();
 
           try {
-            InstrumentMethod im = new InstrumentMethod(db, className, this);
+            InstrumentMethod im =
+              new InstrumentMethod(
+                db, className, this, emitFrames, framesRequired
+              );
 
             if (im.collectCodeBlocks()) {
               if (name.charAt(0) == '<') {
@@ -28,22 +28,30 @@
  */
 package de.matthiasmann.coroutines.instrument;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
 
 import de.matthiasmann.coroutines.Stack;
 import de.matthiasmann.coroutines.SuspendExecution;
 
+import org.objectweb.asm.Handle;
 import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.AnalyzerAdapter;
 import org.objectweb.asm.tree.AbstractInsnNode;
 import org.objectweb.asm.tree.AnnotationNode;
+import org.objectweb.asm.tree.FrameNode;
+import org.objectweb.asm.tree.IincInsnNode;
 import org.objectweb.asm.tree.LabelNode;
 import org.objectweb.asm.tree.LocalVariableNode;
 import org.objectweb.asm.tree.MethodInsnNode;
 import org.objectweb.asm.tree.MethodNode;
 import org.objectweb.asm.tree.TryCatchBlockNode;
+import org.objectweb.asm.tree.VarInsnNode;
 import org.objectweb.asm.tree.analysis.Analyzer;
 import org.objectweb.asm.tree.analysis.AnalyzerException;
 import org.objectweb.asm.tree.analysis.BasicValue;
@@ -57,21 +65,39 @@ import org.objectweb.asm.tree.analysis.Frame;
 public class InstrumentMethod {
   private static final String STACK_NAME = Type.getInternalName(Stack.class);
 
+  /** the array and the stack pointer of both regions of the Stack */
+  private static final int INLINE_LOCALS = 4;
+
   private final MethodDatabase db;
   private final String className;
   private final MethodNode mn;
   private final Frame<BasicValue>[] frames;
+  private final BitSet[] liveLocals;
   private final int lvarStack;
+  private final int lvarSpill;
   private final int firstLocal;
+  private final boolean emitFrames;
+  private final boolean framesRequired;
+  private final boolean inlineStackAccess;
+  private final boolean bulkStackAccess;
 
   private FrameInfo[] codeBlocks = new FrameInfo[32];
   private int numCodeBlocks;
-  private int maxObjSlots;
+  private int maxSpillSize;
 
   private boolean warnedAboutMonitors;
 
+  // the verifier types of the locals at method entry - only set when stack
+  // map frames are written
+  private Object[] entryLocals;
+
+  // the first of the temporary locals holding the arrays and the stack
+  // pointers of the Stack regions - only used with inlined Stack access
+  private int lvarInline;
+
   /**
-   * Creates a new InstrumentMethod object.
+   * Creates a new InstrumentMethod object which does not write stack map
+   * frames. The ClassWriter must compute them.
    *
    * @param  db        DOCUMENT ME!
    * @param  className DOCUMENT ME!
@@ -81,16 +107,66 @@ public class InstrumentMethod {
    */
   public InstrumentMethod(MethodDatabase db, String className, MethodNode mn)
       throws AnalyzerException {
+    this(db, className, mn, false);
+  }
+
+  /**
+   * Creates a new InstrumentMethod object.
+   *
+   * @param  db         DOCUMENT ME!
+   * @param  className  DOCUMENT ME!
+   * @param  mn         DOCUMENT ME!
+   * @param  emitFrames true if stack map frames should be written. The
+   *                    method must contain the original frames in expanded
+   *                    form.
+   *
+   * @throws AnalyzerException DOCUMENT ME!
+   */
+  public InstrumentMethod(
+    MethodDatabase db, String className, MethodNode mn, boolean emitFrames
+  )
+      throws AnalyzerException {
+    this(db, className, mn, emitFrames, false);
+  }
+
+  /**
+   * Creates a new InstrumentMethod object.
+   *
+   * @param  db             DOCUMENT ME!
+   * @param  className      DOCUMENT ME!
+   * @param  mn             DOCUMENT ME!
+   * @param  emitFrames     true if stack map frames should be written. The
+   *                        method must contain the original frames in
+   *                        expanded form.
+   * @param  framesRequired true if the class can't be verified without
+   *                        stack map frames (version 51 and above). The
+   *                        method is then rejected when no frames can be
+   *                        written.
+   *
+   * @throws AnalyzerException DOCUMENT ME!
+   */
+  public InstrumentMethod(
+    MethodDatabase db, String className, MethodNode mn, boolean emitFrames,
+    boolean framesRequired
+  )
+      throws AnalyzerException {
     this.db = db;
+    this.emitFrames = emitFrames;
+    this.framesRequired = framesRequired;
+    this.bulkStackAccess = db.isBulkStackAccess();
+
+    // bulk access restores directly from the arrays like inlined access
+    this.inlineStackAccess = db.isInlineStackAccess() || bulkStackAccess;
     this.className = className;
     this.mn = mn;
 
     try {
-      Analyzer<BasicValue> a =
-        new Analyzer<BasicValue>(new TypeInterpreter(db));
+      FlowAnalyzer a = new FlowAnalyzer(db, mn.instructions.size());
 
       this.frames = a.analyze(className, mn);
+      this.liveLocals = a.computeLiveLocals(mn);
       this.lvarStack = mn.maxLocals;
+      this.lvarSpill = mn.maxLocals + 1;
       this.firstLocal =
         ((mn.access & Opcodes.ACC_STATIC) == Opcodes.ACC_STATIC) ? 0 : 1;
     } catch (UnsupportedOperationException ex) {
@@ -106,7 +182,7 @@ public class InstrumentMethod {
   public boolean collectCodeBlocks() {
     int numIns = mn.instructions.size();
 
-    maxObjSlots = 0;
+    maxSpillSize = 0;
     codeBlocks[0] = FrameInfo.FIRST;
 
     for (int i = 0; i < numIns; i++) {
@@ -119,7 +195,7 @@ public class InstrumentMethod {
         if (in.getType() == AbstractInsnNode.METHOD_INSN) {
           MethodInsnNode min = (MethodInsnNode) in;
 
-          if (db.isMethodSuspendable(min.owner, min.name)) {
+          if (db.isMethodSuspendable(min.owner, min.name, min.desc)) {
             if (db.isDebug()) {
               db.log(
                 "Method call at instruction %d to %s#%s  is suspendable", i,
@@ -129,10 +205,8 @@ public class InstrumentMethod {
 
             FrameInfo fi = addCodeBlock(f, i);
 
-            splitTryCatch(fi);
-
-            if (fi.numObjSlots > maxObjSlots) {
-              maxObjSlots = fi.numObjSlots;
+            if (fi.spillSize > maxSpillSize) {
+              maxSpillSize = fi.spillSize;
             }
           }
         }
@@ -145,23 +219,66 @@ public class InstrumentMethod {
   }
 
   /**
-   * DOCUMENT ME!
+   * <p>Writes the instrumented method.</p>
+   *
+   * <p>The state of the method is only captured when a {@link
+   * SuspendExecution} propagates through a suspendable call. Each call site
+   * gets it's own exception handler which saves the live locals and the
+   * operand stack into the {@link Stack} and rethrows. A call which returns
+   * normally only pays for copying it's operands through spill locals.</p>
+   *
+   * <p>When stack map frames are written the original frames are extended
+   * by the local holding the Stack. New frames are written at all labels
+   * which are only reached from the added code. If the frames can't be
+   * computed the method is written without frames - unless they are
+   * required by the class file version.</p>
    *
    * @param  mv DOCUMENT ME!
    *
    * @throws UnableToInstrumentException DOCUMENT ME!
    */
   public void accept(MethodVisitor mv) {
+    FrameTracker ft = null;
+
+    if (emitFrames) {
+      if (computeVerifierTypes()) {
+        ft = new FrameTracker(mv);
+        mv = ft;
+      } else if (framesRequired) {
+        // the ClassWriter does not compute frames - fail now instead of
+        // with a VerifyError when the class is loaded
+        throw new UnableToInstrumentException(
+          "can't compute stack map frames", className, mn.name
+        );
+      }
+    }
+
     mv.visitCode();
 
+    lvarInline = lvarSpill + maxSpillSize;
+
     Label lMethodStart = new Label();
     Label lMethodEnd = new Label();
     Label lCatchSEE = new Label();
-    Label lCatchAll = new Label();
     Label[] lMethodCalls = new Label[numCodeBlocks - 1];
+    Label[] lCallStart = new Label[numCodeBlocks - 1];
+    Label[] lCallEnd = new Label[numCodeBlocks - 1];
+    Label[] lCapture = new Label[numCodeBlocks - 1];
+    Label[] lReload = new Label[numCodeBlocks - 1];
 
     for (int i = 1; i < numCodeBlocks; i++) {
       lMethodCalls[i - 1] = new Label();
+      lCallStart[i - 1] = new Label();
+      lCallEnd[i - 1] = new Label();
+      lCapture[i - 1] = new Label();
+      lReload[i - 1] = new Label();
+
+      // must be before all other handlers so that they get the
+      // SuspendExecution first
+      mv.visitTryCatchBlock(
+        lCallStart[i - 1], lCallEnd[i - 1], lCapture[i - 1],
+        CheckInstrumentationVisitor.EXCEPTION_NAME
+      );
     }
 
     mv.visitTryCatchBlock(
@@ -196,10 +313,10 @@ public class InstrumentMethod {
       }
     }
 
-    mv.visitTryCatchBlock(lMethodStart, lMethodEnd, lCatchAll, null);
-
     mv.visitMethodInsn(
-      Opcodes.INVOKESTATIC, STACK_NAME, "getStack", "()L" + STACK_NAME + ";"
+      Opcodes.INVOKESTATIC, STACK_NAME,
+      db.isCarrierThread() ? "getCarrierStack" : "getStack",
+      "()L" + STACK_NAME + ";"
     );
     mv.visitInsn(Opcodes.DUP);
     mv.visitVarInsn(Opcodes.ASTORE, lvarStack);
@@ -210,6 +327,11 @@ public class InstrumentMethod {
     mv.visitTableSwitchInsn(1, numCodeBlocks - 1, lMethodStart, lMethodCalls);
 
     mv.visitLabel(lMethodStart);
+
+    if ((ft != null) && !isFrameNext(0)) {
+      emitEntryFrame(mv);
+    }
+
     dumpCodeBlock(mv, 0, 0);
 
     for (int i = 1; i < numCodeBlocks; i++) {
@@ -218,6 +340,8 @@ public class InstrumentMethod {
       MethodInsnNode min =
         (MethodInsnNode) (mn.instructions.get(fi.endInstruction));
 
+      emitSpillStack(mv, fi);
+
       if (
         InstrumentClass.COROUTINE_NAME.equals(min.owner)
           && "yield".equals(min.name)
@@ -229,33 +353,81 @@ public class InstrumentMethod {
           );
         }
 
-        emitStoreState(mv, i, fi);
+        mv.visitLabel(lCallStart[i - 1]);
         mv.visitFieldInsn(
           Opcodes.GETSTATIC, STACK_NAME,
           "exception_instance_not_for_user_code",
           CheckInstrumentationVisitor.EXCEPTION_DESC
         );
         mv.visitInsn(Opcodes.ATHROW);
-        min.accept(mv); // only the call
-        mv.visitLabel(lMethodCalls[i - 1]);
-        emitRestoreState(mv, i, fi);
-        dumpCodeBlock(mv, i, 1); // skip the call
+        mv.visitLabel(lCallEnd[i - 1]);
+        mv.visitLabel(lReload[i - 1]);
+
+        // an original frame directly after the call is used instead
+        if (
+          (ft != null)
+            && ((fi.spillSize > 0) || !isFrameNext(fi.endInstruction + 1))
+        ) {
+          emitCallFrame(mv, fi);
+        }
+
+        emitReloadStack(mv, fi);
       } else {
         // normal case - call to a suspendable method - resume before the call
-        emitStoreState(mv, i, fi);
-        mv.visitLabel(lMethodCalls[i - 1]);
-        emitRestoreState(mv, i, fi);
-        dumpCodeBlock(mv, i, 0);
+        mv.visitLabel(lReload[i - 1]);
+
+        // an original frame directly before the call is used instead
+        if ((ft != null) && !ft.frameAtOffset) {
+          emitCallFrame(mv, fi);
+        }
+
+        emitReloadStack(mv, fi);
+        mv.visitLabel(lCallStart[i - 1]);
+        min.accept(mv);
+        mv.visitLabel(lCallEnd[i - 1]);
       }
+
+      dumpCodeBlock(mv, i, 1); // the call was already written
     }
 
     mv.visitLabel(lMethodEnd);
 
-    mv.visitLabel(lCatchAll);
-    emitPopMethod(mv);
+    // a SuspendExecution from a non suspendable call - just pass it on
     mv.visitLabel(lCatchSEE);
-    mv.visitInsn(Opcodes.ATHROW); // rethrow shared between catchAll and
-                                  // catchSSE
+
+    if (ft != null) {
+      mv.visitFrame(
+        Opcodes.F_NEW, 0, null, 1,
+        new Object[] { CheckInstrumentationVisitor.EXCEPTION_NAME }
+      );
+    }
+
+    mv.visitInsn(Opcodes.ATHROW);
+
+    for (int i = 1; i < numCodeBlocks; i++) {
+      FrameInfo fi = codeBlocks[i];
+
+      mv.visitLabel(lCapture[i - 1]);
+
+      if (ft != null) {
+        emitFrame(
+          mv, callLocals(fi), CheckInstrumentationVisitor.EXCEPTION_NAME
+        );
+      }
+
+      emitStoreState(mv, i, fi);
+      mv.visitInsn(Opcodes.ATHROW); // the SuspendExecution is still on the
+                                    // operand stack
+
+      mv.visitLabel(lMethodCalls[i - 1]);
+
+      if (ft != null) {
+        emitEntryFrame(mv);
+      }
+
+      emitRestoreState(mv, i, fi);
+      mv.visitJumpInsn(Opcodes.GOTO, lReload[i - 1]);
+    }
 
     if (mn.localVariables != null) {
       for (Object o : mn.localVariables) {
@@ -263,7 +435,12 @@ public class InstrumentMethod {
       }
     }
 
-    mv.visitMaxs(mn.maxStack + 3, mn.maxLocals + 1);
+    // the capture code needs the SuspendExecution, a long, the Stack and an
+    // index on the operand stack - or an array, an index, a long and a shift
+    // distance with inlined Stack access
+    mv.visitMaxs(
+      mn.maxStack + 6, lvarInline + (inlineStackAccess ? INLINE_LOCALS : 0)
+    );
     mv.visitEnd();
   }
 
@@ -275,102 +452,247 @@ public class InstrumentMethod {
       codeBlocks = newArray;
     }
 
-    FrameInfo fi = new FrameInfo(f, firstLocal, end);
+    FrameInfo fi =
+      new FrameInfo(f, (f != null) ? liveLocals[end] : null, firstLocal, end);
 
     codeBlocks[numCodeBlocks] = fi;
 
     return fi;
   }
 
-  private int getLabelIdx(LabelNode l) {
-    int idx;
+  private void dumpCodeBlock(MethodVisitor mv, int idx, int skip) {
+    int start = codeBlocks[idx].endInstruction;
+    int end = codeBlocks[idx + 1].endInstruction;
 
-    if (l instanceof BlockLabelNode) {
-      idx = ((BlockLabelNode) l).idx;
-    } else {
-      idx = mn.instructions.indexOf(l);
-    }
+    for (int i = start + skip; i < end; i++) {
+      AbstractInsnNode ins = mn.instructions.get(i);
 
-    // search for the "real" instruction
-    for (;;) {
-      int type = mn.instructions.get(idx).getType();
+      switch (ins.getOpcode()) {
+        case Opcodes.MONITORENTER:
+        case Opcodes.MONITOREXIT:
+          if (!db.isAllowMonitors()) {
+            throw new UnableToInstrumentException(
+              "synchronisation", className, mn.name
+            );
+          } else if (!warnedAboutMonitors) {
+            warnedAboutMonitors = true;
+            db.log(
+              "WARNING: Method %s#%s contains synchronisation", className,
+              mn.name
+            );
+          }
 
-      if (
-        (type != AbstractInsnNode.LABEL) && (type != AbstractInsnNode.LINE)
-      ) {
-        return idx;
+          break;
       }
 
-      idx++;
+      if ((ins.getType() == AbstractInsnNode.FRAME) && (entryLocals != null)) {
+        emitExtendedFrame(mv, (FrameNode) ins);
+      } else {
+        ins.accept(mv);
+      }
     }
   }
 
-  private void splitTryCatch(FrameInfo fi) {
-    for (int i = 0; i < mn.tryCatchBlocks.size(); i++) {
-      TryCatchBlockNode tcb = mn.tryCatchBlocks.get(i);
+  private boolean computeVerifierTypes() {
+    AnalyzerAdapter aa =
+      new AnalyzerAdapter(className, mn.access, mn.name, mn.desc, null);
+    Object[] entry = expandLocals(aa.locals);
 
-      int start = getLabelIdx(tcb.start);
-      int end = getLabelIdx(tcb.end);
+    try {
+      for (int i = 1; i < numCodeBlocks; i++) {
+        FrameInfo fi = codeBlocks[i];
 
-      if ((start <= fi.endInstruction) && (end >= fi.endInstruction)) {
-        // System.out.println("i="+i+" start="+start+" end="+end+"
-        // split="+splitIdx+
-        // " start="+mn.instructions.get(start)+"
-        // end="+mn.instructions.get(end));
+        for (int j = codeBlocks[i - 1].endInstruction; j < fi.endInstruction;
+            j++) {
+          mn.instructions.get(j).accept(aa);
+        }
 
-        // need to split try/catch around the suspendable call
-        if (start == fi.endInstruction) {
-          tcb.start = fi.createAfterLabel();
-        } else {
-          if (end > fi.endInstruction) {
-            TryCatchBlockNode tcb2 =
-              new TryCatchBlockNode(
-                fi.createAfterLabel(), tcb.end, tcb.handler, tcb.type
-              );
+        Frame<BasicValue> f = frames[fi.endInstruction];
+
+        if ((aa.locals == null) || (aa.stack == null)) {
+          return false; // no stack map frames in the original method
+        }
+
+        Object[] stack = new Object[f.getStackSize()];
+        int n = 0;
+
+        for (int j = 0; j < aa.stack.size(); j++) {
+          Object type = aa.stack.get(j);
+
+          if (n == stack.length) {
+            return false;
+          }
 
-            mn.tryCatchBlocks.add(i + 1, tcb2);
+          stack[n++] = type;
+
+          if ((type == Opcodes.LONG) || (type == Opcodes.DOUBLE)) {
+            j++; // skip the TOP of the second half
           }
+        }
 
-          tcb.end = fi.createBeforeLabel();
+        if (n != stack.length) {
+          return false;
         }
+
+        fi.verifierLocals = expandLocals(aa.locals);
+        fi.verifierStack = stack;
+        checkInitialized(fi.verifierLocals);
+        checkInitialized(fi.verifierStack);
       }
+    } catch (IllegalStateException ex) {
+      return false; // the frames are not expanded
     }
+
+    entryLocals = entry;
+
+    return true;
   }
 
-  private void dumpCodeBlock(MethodVisitor mv, int idx, int skip) {
-    int start = codeBlocks[idx].endInstruction;
-    int end = codeBlocks[idx + 1].endInstruction;
+  private void checkInitialized(Object[] types) {
+    for (Object type : types) {
+      if ((type instanceof Label) || (type == Opcodes.UNINITIALIZED_THIS)) {
+        throw new UnableToInstrumentException(
+          "uninitialized object at suspendable call", className, mn.name
+        );
+      }
+    }
+  }
 
-    for (int i = start + skip; i < end; i++) {
+  /**
+   * Returns the verifier types of the locals indexed by slot. The second
+   * half of a long or double and all unused slots are TOP.
+   */
+  private Object[] expandLocals(List<Object> locals) {
+    Object[] types = new Object[lvarStack];
+
+    Arrays.fill(types, Opcodes.TOP);
+
+    for (int i = 0; i < locals.size(); i++) {
+      types[i] = locals.get(i);
+    }
+
+    return types;
+  }
+
+  private boolean isFrameNext(int idx) {
+    for (int i = idx; i < mn.instructions.size(); i++) {
       AbstractInsnNode ins = mn.instructions.get(i);
 
-      switch (ins.getOpcode()) {
-        case Opcodes.RETURN:
-        case Opcodes.ARETURN:
-        case Opcodes.IRETURN:
-        case Opcodes.FRETURN:
-        case Opcodes.DRETURN:
-          emitPopMethod(mv);
+      switch (ins.getType()) {
+        case AbstractInsnNode.LABEL:
+        case AbstractInsnNode.LINE:
           break;
 
-        case Opcodes.MONITORENTER:
-        case Opcodes.MONITOREXIT:
-          if (!db.isAllowMonitors()) {
-            throw new UnableToInstrumentException(
-              "synchronisation", className, mn.name
-            );
-          } else if (!warnedAboutMonitors) {
-            warnedAboutMonitors = true;
-            db.log(
-              "WARNING: Method %s#%s contains synchronisation", className,
-              mn.name
-            );
-          }
+        case AbstractInsnNode.FRAME:
+          return true;
 
-          break;
+        default:
+          return false;
+      }
+    }
+
+    return false;
+  }
+
+  private void emitEntryFrame(MethodVisitor mv) {
+    Object[] locals = Arrays.copyOf(entryLocals, lvarStack + 1);
+
+    locals[lvarStack] = STACK_NAME;
+    emitFrame(mv, locals);
+  }
+
+  private void emitExtendedFrame(MethodVisitor mv, FrameNode fn) {
+    List<Object> locals = new ArrayList<Object>();
+
+    for (Object type : fn.local) {
+      locals.add(toLabel(type));
+
+      if ((type == Opcodes.LONG) || (type == Opcodes.DOUBLE)) {
+        locals.add(Opcodes.TOP);
+      }
+    }
+
+    Object[] extended = Arrays.copyOf(expandLocals(locals), lvarStack + 1);
+    Object[] stack = fn.stack.toArray();
+
+    for (int i = 0; i < stack.length; i++) {
+      stack[i] = toLabel(stack[i]);
+    }
+
+    extended[lvarStack] = STACK_NAME;
+    emitFrame(mv, extended, stack);
+  }
+
+  private static Object toLabel(Object type) {
+    return (type instanceof LabelNode) ? ((LabelNode) type).getLabel() : type;
+  }
+
+  /**
+   * Returns the verifier types of the locals at a suspendable call - the
+   * original locals, the Stack and the spilled operand stack.
+   */
+  private Object[] callLocals(FrameInfo fi) {
+    Object[] locals = new Object[lvarSpill + fi.spillSize];
+
+    Arrays.fill(locals, Opcodes.TOP);
+    System.arraycopy(fi.verifierLocals, 0, locals, 0, lvarStack);
+    locals[lvarStack] = STACK_NAME;
+
+    for (int i = 0; i < fi.verifierStack.length; i++) {
+      locals[lvarSpill + fi.spillIndices[i]] = fi.verifierStack[i];
+    }
+
+    return locals;
+  }
+
+  private void emitCallFrame(MethodVisitor mv, FrameInfo fi) {
+    emitFrame(mv, callLocals(fi));
+  }
+
+  /**
+   * Writes an uncompressed frame. The locals are indexed by slot and are
+   * converted into the format expected by {@link MethodVisitor#visitFrame}.
+   */
+  private static void emitFrame(
+    MethodVisitor mv, Object[] locals, Object... stack
+  ) {
+    List<Object> l = new ArrayList<Object>(locals.length);
+    int last = 0;
+
+    for (int i = 0; i < locals.length; i++) {
+      Object type = locals[i];
+
+      l.add(type);
+
+      if (type != Opcodes.TOP) {
+        last = l.size();
       }
 
-      ins.accept(mv);
+      if ((type == Opcodes.LONG) || (type == Opcodes.DOUBLE)) {
+        i++;
+      }
+    }
+
+    l.subList(last, l.size()).clear();
+    mv.visitFrame(Opcodes.F_NEW, l.size(), l.toArray(), stack.length, stack);
+  }
+
+  private static void emitDummyValue(MethodVisitor mv, Object type, int var) {
+    if (type == Opcodes.INTEGER) {
+      mv.visitInsn(Opcodes.ICONST_0);
+      mv.visitVarInsn(Opcodes.ISTORE, var);
+    } else if (type == Opcodes.FLOAT) {
+      mv.visitInsn(Opcodes.FCONST_0);
+      mv.visitVarInsn(Opcodes.FSTORE, var);
+    } else if (type == Opcodes.LONG) {
+      mv.visitInsn(Opcodes.LCONST_0);
+      mv.visitVarInsn(Opcodes.LSTORE, var);
+    } else if (type == Opcodes.DOUBLE) {
+      mv.visitInsn(Opcodes.DCONST_0);
+      mv.visitVarInsn(Opcodes.DSTORE, var);
+    } else if ((type == Opcodes.NULL) || (type instanceof String)) {
+      mv.visitInsn(Opcodes.ACONST_NULL);
+      mv.visitVarInsn(Opcodes.ASTORE, var);
     }
   }
 
@@ -399,89 +721,142 @@ public class InstrumentMethod {
     }
   }
 
-  private void emitPopMethod(MethodVisitor mv) {
-    mv.visitVarInsn(Opcodes.ALOAD, lvarStack);
-    emitConst(mv, maxObjSlots);
-    mv.visitMethodInsn(
-      Opcodes.INVOKEVIRTUAL, STACK_NAME, "popMethod", "(I)V"
-    );
+  private void emitSpillStack(MethodVisitor mv, FrameInfo fi) {
+    Frame<BasicValue> f = frames[fi.endInstruction];
+
+    for (int i = f.getStackSize(); i-- > 0;) {
+      BasicValue v = f.getStack(i);
+
+      mv.visitVarInsn(
+        v.getType().getOpcode(Opcodes.ISTORE), lvarSpill + fi.spillIndices[i]
+      );
+    }
   }
 
-  private void emitStoreState(MethodVisitor mv, int idx, FrameInfo fi) {
+  private void emitReloadStack(MethodVisitor mv, FrameInfo fi) {
     Frame<BasicValue> f = frames[fi.endInstruction];
 
-    if (fi.lBefore != null) {
-      fi.lBefore.accept(mv);
+    for (int i = 0; i < f.getStackSize(); i++) {
+      BasicValue v = f.getStack(i);
+
+      mv.visitVarInsn(
+        v.getType().getOpcode(Opcodes.ILOAD), lvarSpill + fi.spillIndices[i]
+      );
     }
+  }
 
-    mv.visitVarInsn(Opcodes.ALOAD, lvarStack);
-    emitConst(mv, idx);
-    emitConst(mv, fi.numSlots);
-    mv.visitMethodInsn(
-      Opcodes.INVOKEVIRTUAL, STACK_NAME, "pushMethodAndReserveSpace",
-      "(II)V"
-    );
+  private void emitStoreState(MethodVisitor mv, int idx, FrameInfo fi) {
+    Frame<BasicValue> f = frames[fi.endInstruction];
 
-    for (int i = f.getStackSize(); i-- > 0;) {
+    if (bulkStackAccess) {
+      emitLoadScratch(mv, fi);
+    } else {
+      emitPushMethod(mv, idx, fi, "pushMethodAndReserveSpace");
+
+      if (inlineStackAccess) {
+        emitLoadRegions(mv, fi);
+      }
+    }
+
+    for (int i = 0; i < f.getStackSize(); i++) {
       BasicValue v = f.getStack(i);
 
       if (!isNullType(v)) {
-        emitStoreValue(mv, v, lvarStack, fi.stackSlotIndices[i]);
-      } else {
-        if (db.isDebug()) {
-          db.log(
-            "NULL stack entry: type=%s size=%d", v.getType(), v.getSize()
-          );
-        }
-
-        mv.visitInsn(Opcodes.POP);
+        emitStoreValue(
+          mv, v, lvarSpill + fi.spillIndices[i], fi.stackSlotIndices[i]
+        );
+      } else if (db.isDebug()) {
+        db.log(
+          "NULL stack entry: type=%s size=%d", v.getType(), v.getSize()
+        );
       }
     }
 
     for (int i = firstLocal; i < f.getLocals(); i++) {
       BasicValue v = f.getLocal(i);
 
-      if (!isNullType(v)) {
-        mv.visitVarInsn(v.getType().getOpcode(Opcodes.ILOAD), i);
-        emitStoreValue(mv, v, lvarStack, fi.localSlotIndices[i]);
+      if (!isNullType(v) && fi.live.get(i)) {
+        emitStoreValue(mv, v, i, fi.localSlotIndices[i]);
       }
     }
+
+    if (bulkStackAccess) {
+      emitPushMethod(mv, idx, fi, "pushMethodAndCopyFrame");
+    }
+  }
+
+  private void emitPushMethod(
+    MethodVisitor mv, int idx, FrameInfo fi, String name
+  ) {
+    mv.visitVarInsn(Opcodes.ALOAD, lvarStack);
+    emitConst(mv, idx);
+    emitConst(mv, fi.numPrimSlots);
+    emitConst(mv, fi.numObjSlots);
+    mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, STACK_NAME, name, "(III)V");
   }
 
   private void emitRestoreState(MethodVisitor mv, int idx, FrameInfo fi) {
     Frame<BasicValue> f = frames[fi.endInstruction];
 
+    if (inlineStackAccess) {
+      emitLoadRegions(mv, fi);
+    }
+
     for (int i = firstLocal; i < f.getLocals(); i++) {
       BasicValue v = f.getLocal(i);
+      Object type = (fi.verifierLocals != null) ? fi.verifierLocals[i] : null;
 
-      if (!isNullType(v)) {
-        emitRestoreValue(mv, v, lvarStack, fi.localSlotIndices[i]);
+      if (!fi.live.get(i)) {
+        // dead after the suspend point - no need to restore it, but the
+        // stack map frame still wants a value of the right type
+        emitDummyValue(mv, type, i);
+
+        continue;
+      }
+
+      if (!isNullType(v) && (type != Opcodes.NULL)) {
+        emitRestoreValue(mv, v, fi.localSlotIndices[i], type);
         mv.visitVarInsn(v.getType().getOpcode(Opcodes.ISTORE), i);
       } else if (v != BasicValue.UNINITIALIZED_VALUE) {
         mv.visitInsn(Opcodes.ACONST_NULL);
         mv.visitVarInsn(Opcodes.ASTORE, i);
+      } else {
+        emitDummyValue(mv, type, i);
       }
     }
 
     for (int i = 0; i < f.getStackSize(); i++) {
       BasicValue v = f.getStack(i);
+      Object type = (fi.verifierStack != null) ? fi.verifierStack[i] : null;
 
-      if (!isNullType(v)) {
-        emitRestoreValue(mv, v, lvarStack, fi.stackSlotIndices[i]);
+      if (!isNullType(v) && (type != Opcodes.NULL)) {
+        emitRestoreValue(mv, v, fi.stackSlotIndices[i], type);
       } else {
         mv.visitInsn(Opcodes.ACONST_NULL);
       }
+
+      mv.visitVarInsn(
+        v.getType().getOpcode(Opcodes.ISTORE), lvarSpill + fi.spillIndices[i]
+      );
     }
 
-    if (fi.lAfter != null) {
-      fi.lAfter.accept(mv);
+    if (bulkStackAccess && (fi.numObjSlots > 0)) {
+      mv.visitVarInsn(Opcodes.ALOAD, lvarStack);
+      emitConst(mv, fi.numObjSlots);
+      mv.visitMethodInsn(
+        Opcodes.INVOKEVIRTUAL, STACK_NAME, "clearObjects", "(I)V"
+      );
     }
   }
 
-  private void emitStoreValue(
-    MethodVisitor mv, BasicValue v, int lvarStack, int idx
-  )
-      throws InternalError, IndexOutOfBoundsException {
+  /**
+   * Saves a local into the reserved slot of the Stack. Without inlining
+   * this calls one of the static <code>Stack.push</code> methods, otherwise
+   * the value is written into the array of its region or with bulk access
+   * into the scratch array of its region.
+   */
+  private void emitStoreValue(MethodVisitor mv, BasicValue v, int var, int idx)
+      throws InternalError {
     String desc;
 
     switch (v.getType().getSort()) {
@@ -514,26 +889,140 @@ public class InstrumentMethod {
         throw new InternalError("Unexpected type: " + v.getType());
     }
 
-    mv.visitVarInsn(Opcodes.ALOAD, lvarStack);
-    emitConst(mv, idx);
-    mv.visitMethodInsn(Opcodes.INVOKESTATIC, STACK_NAME, "push", desc);
+    if (inlineStackAccess) {
+      emitInlineStore(mv, v.getType(), var, idx, bulkStackAccess);
+    } else {
+      mv.visitVarInsn(v.getType().getOpcode(Opcodes.ILOAD), var);
+      mv.visitVarInsn(Opcodes.ALOAD, lvarStack);
+      emitConst(mv, idx);
+      mv.visitMethodInsn(Opcodes.INVOKESTATIC, STACK_NAME, "push", desc);
+    }
   }
 
+  private void emitInlineStore(
+    MethodVisitor mv, Type t, int var, int idx, boolean scratch
+  ) {
+    switch (t.getSort()) {
+      case Type.OBJECT:
+      case Type.ARRAY:
+        emitArrayIndex(mv, lvarInline + 2, idx, scratch);
+        mv.visitVarInsn(Opcodes.ALOAD, var);
+        mv.visitInsn(Opcodes.AASTORE);
+        break;
+
+      case Type.FLOAT:
+        emitArrayIndex(mv, lvarInline, idx, scratch);
+        mv.visitVarInsn(Opcodes.FLOAD, var);
+        mv.visitMethodInsn(
+          Opcodes.INVOKESTATIC, "java/lang/Float", "floatToRawIntBits", "(F)I"
+        );
+        mv.visitInsn(Opcodes.IASTORE);
+        break;
+
+      case Type.LONG:
+      case Type.DOUBLE:
+        // two slots - the low half first
+        emitArrayIndex(mv, lvarInline, idx, scratch);
+        emitLoadLongBits(mv, t, var);
+        mv.visitInsn(Opcodes.L2I);
+        mv.visitInsn(Opcodes.IASTORE);
+        emitArrayIndex(mv, lvarInline, idx + 1, scratch);
+        emitLoadLongBits(mv, t, var);
+        mv.visitIntInsn(Opcodes.BIPUSH, 32);
+        mv.visitInsn(Opcodes.LUSHR);
+        mv.visitInsn(Opcodes.L2I);
+        mv.visitInsn(Opcodes.IASTORE);
+        break;
+
+      default:
+        emitArrayIndex(mv, lvarInline, idx, scratch);
+        mv.visitVarInsn(Opcodes.ILOAD, var);
+        mv.visitInsn(Opcodes.IASTORE);
+        break;
+    }
+  }
+
+  private static void emitLoadLongBits(MethodVisitor mv, Type t, int var) {
+    if (t.getSort() == Type.DOUBLE) {
+      mv.visitVarInsn(Opcodes.DLOAD, var);
+      mv.visitMethodInsn(
+        Opcodes.INVOKESTATIC, "java/lang/Double", "doubleToRawLongBits",
+        "(D)J"
+      );
+    } else {
+      mv.visitVarInsn(Opcodes.LLOAD, var);
+    }
+  }
+
+  /**
+   * Loads a value from the Stack. References are cast to the verifier type
+   * if it is known, otherwise to the type computed by the analyzer.
+   */
   private void emitRestoreValue(
-    MethodVisitor mv, BasicValue v, int lvarStack, int idx
+    MethodVisitor mv, BasicValue v, int idx, Object verifierType
   ) {
-    mv.visitVarInsn(Opcodes.ALOAD, lvarStack);
-    emitConst(mv, idx);
+    int sort = v.getType().getSort();
 
-    switch (v.getType().getSort()) {
+    if (inlineStackAccess) {
+      emitInlineLoad(mv, sort, idx);
+    } else {
+      String name;
+      String desc;
+
+      switch (sort) {
+        case Type.OBJECT:
+        case Type.ARRAY:
+          name = "getObject";
+          desc = "(I)Ljava/lang/Object;";
+          break;
+
+        case Type.BOOLEAN:
+        case Type.BYTE:
+        case Type.SHORT:
+        case Type.CHAR:
+        case Type.INT:
+          name = "getInt";
+          desc = "(I)I";
+          break;
+
+        case Type.FLOAT:
+          name = "getFloat";
+          desc = "(I)F";
+          break;
+
+        case Type.LONG:
+          name = "getLong";
+          desc = "(I)J";
+          break;
+
+        case Type.DOUBLE:
+          name = "getDouble";
+          desc = "(I)D";
+          break;
+
+        default:
+          throw new InternalError("Unexpected type: " + v.getType());
+      }
+
+      mv.visitVarInsn(Opcodes.ALOAD, lvarStack);
+      emitConst(mv, idx);
+      mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, STACK_NAME, name, desc);
+    }
+
+    switch (sort) {
       case Type.OBJECT:
+      case Type.ARRAY:
 
-        String internalName = v.getType().getInternalName();
+        String internalName;
+
+        if (verifierType instanceof String) {
+          internalName = (String) verifierType;
+        } else if (sort == Type.ARRAY) {
+          internalName = v.getType().getDescriptor();
+        } else {
+          internalName = v.getType().getInternalName();
+        }
 
-        mv.visitMethodInsn(
-          Opcodes.INVOKEVIRTUAL, STACK_NAME, "getObject",
-          "(I)Ljava/lang/Object;"
-        );
         if (!internalName.equals("java/lang/Object")) { // don't cast to
                                                         // Object ;)
           mv.visitTypeInsn(Opcodes.CHECKCAST, internalName);
@@ -541,62 +1030,150 @@ public class InstrumentMethod {
 
         break;
 
-      case Type.ARRAY:
-        mv.visitMethodInsn(
-          Opcodes.INVOKEVIRTUAL, STACK_NAME, "getObject",
-          "(I)Ljava/lang/Object;"
-        );
-        mv.visitTypeInsn(Opcodes.CHECKCAST, v.getType().getDescriptor());
-        break;
-
       case Type.BYTE:
-        mv.visitMethodInsn(
-          Opcodes.INVOKEVIRTUAL, STACK_NAME, "getInt", "(I)I"
-        );
         mv.visitInsn(Opcodes.I2B);
         break;
 
       case Type.SHORT:
-        mv.visitMethodInsn(
-          Opcodes.INVOKEVIRTUAL, STACK_NAME, "getInt", "(I)I"
-        );
         mv.visitInsn(Opcodes.I2S);
         break;
 
       case Type.CHAR:
-        mv.visitMethodInsn(
-          Opcodes.INVOKEVIRTUAL, STACK_NAME, "getInt", "(I)I"
-        );
         mv.visitInsn(Opcodes.I2C);
         break;
+    }
+  }
+
+  private void emitInlineLoad(MethodVisitor mv, int sort, int idx) {
+    switch (sort) {
+      case Type.OBJECT:
+      case Type.ARRAY:
+        emitArrayIndex(mv, lvarInline + 2, idx, false);
+
+        if (bulkStackAccess) {
+          // all slots are cleared at once after the frame was restored
+          mv.visitInsn(Opcodes.AALOAD);
+        } else {
+          // like Stack.getObject() the slot is cleared
+          mv.visitInsn(Opcodes.DUP2);
+          mv.visitInsn(Opcodes.AALOAD);
+          mv.visitInsn(Opcodes.DUP_X2);
+          mv.visitInsn(Opcodes.POP);
+          mv.visitInsn(Opcodes.ACONST_NULL);
+          mv.visitInsn(Opcodes.AASTORE);
+        }
 
-      case Type.BOOLEAN:
-      case Type.INT:
-        mv.visitMethodInsn(
-          Opcodes.INVOKEVIRTUAL, STACK_NAME, "getInt", "(I)I"
-        );
         break;
 
       case Type.FLOAT:
+        emitArrayIndex(mv, lvarInline, idx, false);
+        mv.visitInsn(Opcodes.IALOAD);
         mv.visitMethodInsn(
-          Opcodes.INVOKEVIRTUAL, STACK_NAME, "getFloat", "(I)F"
+          Opcodes.INVOKESTATIC, "java/lang/Float", "intBitsToFloat", "(I)F"
         );
         break;
 
       case Type.LONG:
-        mv.visitMethodInsn(
-          Opcodes.INVOKEVIRTUAL, STACK_NAME, "getLong", "(I)J"
-        );
-        break;
-
       case Type.DOUBLE:
-        mv.visitMethodInsn(
-          Opcodes.INVOKEVIRTUAL, STACK_NAME, "getDouble", "(I)D"
-        );
+        emitArrayIndex(mv, lvarInline, idx, false);
+        mv.visitInsn(Opcodes.IALOAD);
+        mv.visitInsn(Opcodes.I2L);
+        mv.visitLdcInsn(0xFFFFFFFFL);
+        mv.visitInsn(Opcodes.LAND);
+        emitArrayIndex(mv, lvarInline, idx + 1, false);
+        mv.visitInsn(Opcodes.IALOAD);
+        mv.visitInsn(Opcodes.I2L);
+        mv.visitIntInsn(Opcodes.BIPUSH, 32);
+        mv.visitInsn(Opcodes.LSHL);
+        mv.visitInsn(Opcodes.LOR);
+
+        if (sort == Type.DOUBLE) {
+          mv.visitMethodInsn(
+            Opcodes.INVOKESTATIC, "java/lang/Double", "longBitsToDouble",
+            "(J)D"
+          );
+        }
+
         break;
 
       default:
-        throw new InternalError("Unexpected type: " + v.getType());
+        emitArrayIndex(mv, lvarInline, idx, false);
+        mv.visitInsn(Opcodes.IALOAD);
+        break;
+    }
+  }
+
+  /**
+   * Loads the arrays and the stack pointers of both regions of the Stack
+   * into the temporary locals. Only regions which are used by the frame are
+   * loaded.
+   */
+  private void emitLoadRegions(MethodVisitor mv, FrameInfo fi) {
+    if (fi.numPrimSlots > 0) {
+      mv.visitVarInsn(Opcodes.ALOAD, lvarStack);
+      mv.visitFieldInsn(Opcodes.GETFIELD, STACK_NAME, "dataPrim", "[I");
+      mv.visitVarInsn(Opcodes.ASTORE, lvarInline);
+      mv.visitVarInsn(Opcodes.ALOAD, lvarStack);
+      mv.visitFieldInsn(Opcodes.GETFIELD, STACK_NAME, "curPrimSP", "I");
+      mv.visitVarInsn(Opcodes.ISTORE, lvarInline + 1);
+    }
+
+    if (fi.numObjSlots > 0) {
+      mv.visitVarInsn(Opcodes.ALOAD, lvarStack);
+      mv.visitFieldInsn(
+        Opcodes.GETFIELD, STACK_NAME, "dataObject", "[Ljava/lang/Object;"
+      );
+      mv.visitVarInsn(Opcodes.ASTORE, lvarInline + 2);
+      mv.visitVarInsn(Opcodes.ALOAD, lvarStack);
+      mv.visitFieldInsn(Opcodes.GETFIELD, STACK_NAME, "curObjSP", "I");
+      mv.visitVarInsn(Opcodes.ISTORE, lvarInline + 3);
+    }
+  }
+
+  /**
+   * Loads the scratch arrays of the Stack into the temporary locals of the
+   * region arrays. Only regions which are used by the frame are loaded.
+   */
+  private void emitLoadScratch(MethodVisitor mv, FrameInfo fi) {
+    if (fi.numPrimSlots > 0) {
+      mv.visitVarInsn(Opcodes.ALOAD, lvarStack);
+      emitConst(mv, fi.numPrimSlots);
+      mv.visitMethodInsn(
+        Opcodes.INVOKEVIRTUAL, STACK_NAME, "getPrimScratch", "(I)[I"
+      );
+      mv.visitVarInsn(Opcodes.ASTORE, lvarInline);
+    }
+
+    if (fi.numObjSlots > 0) {
+      mv.visitVarInsn(Opcodes.ALOAD, lvarStack);
+      emitConst(mv, fi.numObjSlots);
+      mv.visitMethodInsn(
+        Opcodes.INVOKEVIRTUAL, STACK_NAME, "getObjectScratch",
+        "(I)[Ljava/lang/Object;"
+      );
+      mv.visitVarInsn(Opcodes.ASTORE, lvarInline + 2);
+    }
+  }
+
+  /**
+   * Pushes the array of a region and the index of a slot. The array is in
+   * the local <code>lvar</code> and the stack pointer in <code>lvar +
+   * 1</code>. A scratch array starts at index 0 and has no stack pointer.
+   */
+  private static void emitArrayIndex(
+    MethodVisitor mv, int lvar, int idx, boolean scratch
+  ) {
+    mv.visitVarInsn(Opcodes.ALOAD, lvar);
+
+    if (scratch) {
+      emitConst(mv, idx);
+    } else {
+      mv.visitVarInsn(Opcodes.ILOAD, lvar + 1);
+
+      if (idx != 0) {
+        emitConst(mv, idx);
+        mv.visitInsn(Opcodes.IADD);
+      }
     }
   }
 
@@ -605,57 +1182,295 @@ public class InstrumentMethod {
       || (v.isReference() && v.getType().getInternalName().equals("null"));
   }
 
-  static class BlockLabelNode extends LabelNode {
-    final int idx;
+  /**
+   * Records the control flow edges while analyzing the method so that the
+   * live locals at each instruction can be computed afterwards.
+   */
+  static class FlowAnalyzer extends Analyzer<BasicValue> {
+    private final BitSet[] successors;
+    private final BitSet[] handlers;
+
+    /**
+     * Creates a new FlowAnalyzer object.
+     *
+     * @param db     DOCUMENT ME!
+     * @param numIns the number of instructions of the method
+     */
+    public FlowAnalyzer(MethodDatabase db, int numIns) {
+      super(new TypeInterpreter(db));
+
+      this.successors = new BitSet[numIns];
+      this.handlers = new BitSet[numIns];
+    }
+
+    /**
+     * <p>Computes the locals which are live at the start of each
+     * instruction - that means they are read on some path before they are
+     * overwritten.</p>
+     *
+     * <p>Must be called after {@link #analyze}.</p>
+     *
+     * @param  mn the analyzed method
+     *
+     * @return the live locals for each instruction
+     */
+    public BitSet[] computeLiveLocals(MethodNode mn) {
+      int numIns = successors.length;
+      BitSet[] liveIn = new BitSet[numIns];
+
+      for (int i = 0; i < numIns; i++) {
+        liveIn[i] = new BitSet();
+      }
+
+      BitSet live = new BitSet();
+      boolean changed;
+
+      do {
+        changed = false;
+
+        for (int i = numIns; i-- > 0;) {
+          live.clear();
+          union(live, successors[i], liveIn);
+
+          AbstractInsnNode in = mn.instructions.get(i);
+
+          switch (in.getType()) {
+            case AbstractInsnNode.VAR_INSN:
+
+              int var = ((VarInsnNode) in).var;
+
+              if (
+                (in.getOpcode() >= Opcodes.ISTORE)
+                  && (in.getOpcode() <= Opcodes.ASTORE)
+              ) {
+                live.clear(var);
+              } else {
+                live.set(var); // xLOAD and RET
+              }
+
+              break;
+
+            case AbstractInsnNode.IINC_INSN:
+              live.set(((IincInsnNode) in).var);
+              break;
+          }
+
+          // a handler sees the locals before the instruction
+          union(live, handlers[i], liveIn);
+
+          if (!live.equals(liveIn[i])) {
+            liveIn[i].or(live);
+            changed = true;
+          }
+        }
+      } while (changed);
+
+      return liveIn;
+    }
 
     /**
-     * Creates a new BlockLabelNode object.
+     * DOCUMENT ME!
+     *
+     * @param insn      DOCUMENT ME!
+     * @param successor DOCUMENT ME!
+     */
+    @Override
+    protected void newControlFlowEdge(int insn, int successor) {
+      addEdge(successors, insn, successor);
+    }
+
+    /**
+     * DOCUMENT ME!
      *
-     * @param idx DOCUMENT ME!
+     * @param  insn      DOCUMENT ME!
+     * @param  successor DOCUMENT ME!
+     *
+     * @return DOCUMENT ME!
      */
-    public BlockLabelNode(int idx) {
-      this.idx = idx;
+    @Override
+    protected boolean newControlFlowExceptionEdge(int insn, int successor) {
+      addEdge(handlers, insn, successor);
+
+      return true;
+    }
+
+    private static void addEdge(BitSet[] edges, int insn, int successor) {
+      if (edges[insn] == null) {
+        edges[insn] = new BitSet();
+      }
+
+      edges[insn].set(successor);
+    }
+
+    private static void union(BitSet live, BitSet edges, BitSet[] liveIn) {
+      if (edges != null) {
+        for (
+          int i = edges.nextSetBit(0); i >= 0; i = edges.nextSetBit(i + 1)
+        ) {
+          live.or(liveIn[i]);
+        }
+      }
+    }
+  }
+
+  /**
+   * Remembers if a stack map frame was written at the current bytecode
+   * offset - two frames at the same offset are not allowed.
+   */
+  private static class FrameTracker extends MethodVisitor {
+    boolean frameAtOffset;
+
+    FrameTracker(MethodVisitor mv) {
+      super(Opcodes.ASM4, mv);
+    }
+
+    @Override
+    public void visitFrame(
+      int type, int nLocal, Object[] local, int nStack, Object[] stack
+    ) {
+      frameAtOffset = true;
+      super.visitFrame(type, nLocal, local, nStack, stack);
+    }
+
+    @Override
+    public void visitInsn(int opcode) {
+      frameAtOffset = false;
+      super.visitInsn(opcode);
+    }
+
+    @Override
+    public void visitIntInsn(int opcode, int operand) {
+      frameAtOffset = false;
+      super.visitIntInsn(opcode, operand);
+    }
+
+    @Override
+    public void visitVarInsn(int opcode, int var) {
+      frameAtOffset = false;
+      super.visitVarInsn(opcode, var);
+    }
+
+    @Override
+    public void visitTypeInsn(int opcode, String type) {
+      frameAtOffset = false;
+      super.visitTypeInsn(opcode, type);
+    }
+
+    @Override
+    public void visitFieldInsn(
+      int opcode, String owner, String name, String desc
+    ) {
+      frameAtOffset = false;
+      super.visitFieldInsn(opcode, owner, name, desc);
+    }
+
+    @Override
+    public void visitMethodInsn(
+      int opcode, String owner, String name, String desc
+    ) {
+      frameAtOffset = false;
+      super.visitMethodInsn(opcode, owner, name, desc);
+    }
+
+    @Override
+    public void visitInvokeDynamicInsn(
+      String name, String desc, Handle bsm, Object... bsmArgs
+    ) {
+      frameAtOffset = false;
+      super.visitInvokeDynamicInsn(name, desc, bsm, bsmArgs);
+    }
+
+    @Override
+    public void visitJumpInsn(int opcode, Label label) {
+      frameAtOffset = false;
+      super.visitJumpInsn(opcode, label);
+    }
+
+    @Override
+    public void visitLdcInsn(Object cst) {
+      frameAtOffset = false;
+      super.visitLdcInsn(cst);
+    }
+
+    @Override
+    public void visitIincInsn(int var, int increment) {
+      frameAtOffset = false;
+      super.visitIincInsn(var, increment);
+    }
+
+    @Override
+    public void visitTableSwitchInsn(
+      int min, int max, Label dflt, Label... labels
+    ) {
+      frameAtOffset = false;
+      super.visitTableSwitchInsn(min, max, dflt, labels);
+    }
+
+    @Override
+    public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+      frameAtOffset = false;
+      super.visitLookupSwitchInsn(dflt, keys, labels);
+    }
+
+    @Override
+    public void visitMultiANewArrayInsn(String desc, int dims) {
+      frameAtOffset = false;
+      super.visitMultiANewArrayInsn(desc, dims);
     }
   }
 
   static class FrameInfo {
-    static final FrameInfo FIRST = new FrameInfo(null, 0, 0);
+    static final FrameInfo FIRST = new FrameInfo(null, null, 0, 0);
 
     final int endInstruction;
-    final int numSlots;
+    final int numPrimSlots;
     final int numObjSlots;
     final int[] localSlotIndices;
     final int[] stackSlotIndices;
+    final int[] spillIndices;
+    final int spillSize;
+    final BitSet live;
 
-    BlockLabelNode lBefore;
-    BlockLabelNode lAfter;
+    // the verifier types at the call - only set when stack map frames are
+    // written
+    Object[] verifierLocals;
+    Object[] verifierStack;
 
     /**
      * Creates a new FrameInfo object.
      *
      * @param f              DOCUMENT ME!
+     * @param live           the locals which are read after the suspend
+     *                       point
      * @param firstLocal     DOCUMENT ME!
      * @param endInstruction DOCUMENT ME!
      */
     public FrameInfo(
-      Frame<BasicValue> f, int firstLocal, int endInstruction
+      Frame<BasicValue> f, BitSet live, int firstLocal, int endInstruction
     ) {
       this.endInstruction = endInstruction;
+      this.live = live;
 
       int idxObj = 0;
       int idxPrim = 0;
+      int spill = 0;
 
       if (f != null) {
         stackSlotIndices = new int[f.getStackSize()];
+        spillIndices = new int[f.getStackSize()];
 
         for (int i = 0; i < f.getStackSize(); i++) {
           BasicValue v = (BasicValue) f.getStack(i);
 
+          spillIndices[i] = spill;
+          spill += v.getSize();
+
           if (!isNullType(v)) {
             if (v.isReference()) {
               stackSlotIndices[i] = idxObj++;
             } else {
-              stackSlotIndices[i] = idxPrim++;
+              stackSlotIndices[i] = idxPrim;
+              idxPrim += v.getSize();
             }
           } else {
             stackSlotIndices[i] = -666; // an invalid index ;)
@@ -667,11 +1482,12 @@ public class InstrumentMethod {
         for (int i = firstLocal; i < f.getLocals(); i++) {
           BasicValue v = (BasicValue) f.getLocal(i);
 
-          if (!isNullType(v)) {
+          if (!isNullType(v) && live.get(i)) {
             if (v.isReference()) {
               localSlotIndices[i] = idxObj++;
             } else {
-              localSlotIndices[i] = idxPrim++;
+              localSlotIndices[i] = idxPrim;
+              idxPrim += v.getSize();
             }
           } else {
             localSlotIndices[i] = -666; // an invalid index ;)
@@ -679,37 +1495,15 @@ public class InstrumentMethod {
         }
       } else {
         stackSlotIndices = null;
+        spillIndices = null;
         localSlotIndices = null;
       }
 
-      numSlots = Math.max(idxPrim, idxObj);
+      spillSize = spill;
+      // both regions of the Stack are reserved independently - a long or
+      // double takes two primitive slots
+      numPrimSlots = idxPrim;
       numObjSlots = idxObj;
     }
-
-    /**
-     * DOCUMENT ME!
-     *
-     * @return DOCUMENT ME!
-     */
-    public LabelNode createBeforeLabel() {
-      if (lBefore == null) {
-        lBefore = new BlockLabelNode(endInstruction);
-      }
-
-      return lBefore;
-    }
-
-    /**
-     * DOCUMENT ME!
-     *
-     * @return DOCUMENT ME!
-     */
-    public LabelNode createAfterLabel() {
-      if (lAfter == null) {
-        lAfter = new BlockLabelNode(endInstruction);
-      }
-
-      return lAfter;
-    }
   }
 }
@@ -0,0 +1,521 @@
+/*
+ * Copyright (c) 2008, Matthias Mann
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Matthias Mann nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.matthiasmann.coroutines.instrument;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * <p>On disk cache for the {@link InstrumentationTask}.</p>
+ *
+ * <p>Entries are keyed by the SHA-1 hash of the class file content and
+ * record what {@link CheckInstrumentationVisitor} found in the class so that
+ * unchanged classes are not parsed again. For each instrumented class the
+ * cache also keeps a copy of the original class file and the suspendability
+ * of every method it calls. When one of these changes the original is
+ * instrumented again.</p>
+ *
+ * @author Matthias Mann
+ */
+final class InstrumentationCache {
+  private static final int VERSION = 3;
+  private static final String INDEX_NAME = "index";
+  private static final String ORIGINAL_SUFFIX = ".class";
+
+  private final File dir;
+  private final ConcurrentHashMap<String, Entry> loaded;
+  private final ConcurrentHashMap<String, Entry> used;
+
+  /**
+   * Creates a new InstrumentationCache object.
+   *
+   * @param dir the cache directory
+   */
+  InstrumentationCache(File dir) {
+    this.dir = dir;
+    this.loaded = new ConcurrentHashMap<String, Entry>();
+    this.used = new ConcurrentHashMap<String, Entry>();
+  }
+
+  /**
+   * Reads the index of the cache directory if it exists.
+   *
+   * @throws IOException if the index can't be read
+   */
+  void load()
+      throws IOException {
+    File index = new File(dir, INDEX_NAME);
+
+    if (!index.isFile()) {
+      return;
+    }
+
+    DataInputStream dis =
+      new DataInputStream(
+        new BufferedInputStream(new FileInputStream(index))
+      );
+
+    try {
+      if (dis.readInt() != VERSION) {
+        return;
+      }
+
+      for (int i = dis.readInt(); i > 0; i--) {
+        Entry e = Entry.read(dis);
+
+        loaded.put(e.hash, e);
+      }
+    } finally {
+      dis.close();
+    }
+  }
+
+  /**
+   * Writes the entries which were used by this build and deletes the
+   * original class files which are no longer referenced.
+   *
+   * @throws IOException if the index can't be written
+   */
+  void save()
+      throws IOException {
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Can't create cache directory: " + dir);
+    }
+
+    HashSet<String> originals = new HashSet<String>();
+    File tmp = new File(dir, INDEX_NAME + ".tmp");
+    DataOutputStream dos =
+      new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(tmp))
+      );
+
+    try {
+      dos.writeInt(VERSION);
+      dos.writeInt(used.size());
+
+      for (Entry e : used.values()) {
+        e.write(dos);
+
+        if (e.originalHash != null) {
+          originals.add(e.originalHash + ORIGINAL_SUFFIX);
+        }
+      }
+    } finally {
+      dos.close();
+    }
+
+    File index = new File(dir, INDEX_NAME);
+
+    if (index.exists() && !index.delete()) {
+      throw new IOException("Can't replace cache index: " + index);
+    }
+
+    if (!tmp.renameTo(index)) {
+      throw new IOException("Can't write cache index: " + index);
+    }
+
+    for (File f : dir.listFiles()) {
+      String name = f.getName();
+
+      if (name.endsWith(ORIGINAL_SUFFIX) && !originals.contains(name)) {
+        f.delete();
+      }
+    }
+  }
+
+  /**
+   * Returns the entry for the given hash and keeps it for the next build.
+   *
+   * @param  hash the hash of the class file
+   *
+   * @return the entry or null
+   */
+  Entry get(String hash) {
+    Entry e = used.get(hash);
+
+    if (e == null) {
+      e = loaded.get(hash);
+
+      if (e != null) {
+        used.put(hash, e);
+
+        // keep the entry of the original - it is needed when the class must
+        // be instrumented again
+        if (e.originalHash != null) {
+          keep(e.originalHash);
+        }
+      }
+    }
+
+    return e;
+  }
+
+  /**
+   * Keeps the entry for the given hash for the next build without looking
+   * at it.
+   *
+   * @param hash the hash of the class file
+   */
+  void keep(String hash) {
+    get(hash);
+  }
+
+  /**
+   * Adds an entry to the cache.
+   *
+   * @param e the entry
+   */
+  void put(Entry e) {
+    used.put(e.hash, e);
+  }
+
+  /**
+   * Stores a copy of an original class file.
+   *
+   * @param  hash  the hash of the class file
+   * @param  bytes the class file
+   *
+   * @throws IOException if the copy can't be written
+   */
+  void storeOriginal(String hash, byte[] bytes)
+      throws IOException {
+    File f = new File(dir, hash + ORIGINAL_SUFFIX);
+
+    if (f.isFile()) {
+      return;
+    }
+
+    if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+      throw new IOException("Can't create cache directory: " + dir);
+    }
+
+    FileOutputStream fos = new FileOutputStream(f);
+
+    try {
+      fos.write(bytes);
+    } finally {
+      fos.close();
+    }
+  }
+
+  /**
+   * Reads a copy of an original class file.
+   *
+   * @param  hash the hash of the class file
+   *
+   * @return the class file or null if it is not in the cache
+   *
+   * @throws IOException if the copy can't be read
+   */
+  byte[] readOriginal(String hash)
+      throws IOException {
+    File f = new File(dir, hash + ORIGINAL_SUFFIX);
+
+    if (!f.isFile()) {
+      return null;
+    }
+
+    byte[] bytes = readFile(f);
+
+    return hash.equals(hash(bytes)) ? bytes : null;
+  }
+
+  /**
+   * Reads a file completely.
+   *
+   * @param  f the file
+   *
+   * @return the content of the file
+   *
+   * @throws IOException if the file can't be read
+   */
+  static byte[] readFile(File f)
+      throws IOException {
+    DataInputStream dis = new DataInputStream(new FileInputStream(f));
+
+    try {
+      byte[] bytes = new byte[(int) f.length()];
+
+      dis.readFully(bytes);
+
+      return bytes;
+    } finally {
+      dis.close();
+    }
+  }
+
+  /**
+   * Computes the hash of a class file.
+   *
+   * @param  bytes the class file
+   *
+   * @return the hash as hex string
+   */
+  static String hash(byte[] bytes) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-1").digest(bytes);
+      StringBuilder sb = new StringBuilder(digest.length * 2);
+
+      for (byte b : digest) {
+        sb.append(Character.forDigit((b >> 4) & 15, 16));
+        sb.append(Character.forDigit(b & 15, 16));
+      }
+
+      return sb.toString();
+    } catch (NoSuchAlgorithmException ex) {
+      throw new AssertionError(ex);
+    }
+  }
+
+  /**
+   * Records the suspendability of all methods called by a class.
+   *
+   * @param  db    the method database
+   * @param  bytes the class file
+   *
+   * @return the dependencies of the class
+   */
+  static Dependency[] collectDependencies(MethodDatabase db, byte[] bytes) {
+    final LinkedHashSet<String> calls = new LinkedHashSet<String>();
+
+    new ClassReader(bytes).accept(
+      new ClassVisitor(Opcodes.ASM4) {
+        @Override
+        public MethodVisitor visitMethod(
+          int access, String name, String desc, String signature,
+          String[] exceptions
+        ) {
+          return new MethodVisitor(Opcodes.ASM4) {
+              @Override
+              public void visitMethodInsn(
+                int opcode, String owner, String name, String desc
+              ) {
+                // constructors and core classes are never suspendable
+                if ((name.charAt(0) != '<') && !owner.startsWith("java/")) {
+                  calls.add(owner + '#' + name + desc);
+                }
+              }
+            };
+        }
+      }, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES
+    );
+
+    ArrayList<Dependency> result = new ArrayList<Dependency>();
+
+    for (String call : calls) {
+      int idx = call.indexOf('#');
+      int descIdx = call.indexOf('(', idx);
+      String owner = call.substring(0, idx);
+      String method = call.substring(idx + 1, descIdx);
+      String desc = call.substring(descIdx);
+
+      result.add(
+        new Dependency(
+          owner, method, desc, db.isMethodSuspendable(owner, method, desc)
+        )
+      );
+    }
+
+    return result.toArray(new Dependency[result.size()]);
+  }
+
+  static final class Entry {
+    final String hash;
+    final String name;
+    final String parent;
+    final String[] interfaces;
+    final String[] methods;
+    final boolean needsInstrumentation;
+    final boolean alreadyInstrumented;
+    final String originalHash;
+    final Dependency[] dependencies;
+
+    /**
+     * Creates a new Entry object.
+     *
+     * @param hash                 the hash of the class file
+     * @param name                 the name of the class
+     * @param parent               the super class
+     * @param interfaces           the implemented interfaces
+     * @param methods              the suspendable methods
+     * @param needsInstrumentation true if the class has suspendable methods
+     * @param alreadyInstrumented  true if the class is already instrumented
+     * @param originalHash         the hash of the class file before it was
+     *                             instrumented or null
+     * @param dependencies         the called methods or null
+     */
+    Entry(
+      String hash, String name, String parent, String[] interfaces,
+      String[] methods, boolean needsInstrumentation,
+      boolean alreadyInstrumented, String originalHash,
+      Dependency[] dependencies
+    ) {
+      this.hash = hash;
+      this.name = name;
+      this.parent = parent;
+      this.interfaces = interfaces;
+      this.methods = methods;
+      this.needsInstrumentation = needsInstrumentation;
+      this.alreadyInstrumented = alreadyInstrumented;
+      this.originalHash = originalHash;
+      this.dependencies =
+        (dependencies != null) ? dependencies : new Dependency[0];
+    }
+
+    /**
+     * Creates a new Entry object.
+     *
+     * @param hash the hash of the class file
+     * @param civ  the visitor which checked the class
+     */
+    Entry(String hash, CheckInstrumentationVisitor civ) {
+      this(
+        hash, civ.getName(), civ.getParent(), civ.getInterfaces(),
+        civ.getMethods(), civ.needsInstrumentation(),
+        civ.isAlreadyInstrumented(), null, null
+      );
+    }
+
+    void write(DataOutputStream dos)
+        throws IOException {
+      dos.writeUTF(hash);
+      dos.writeUTF(name);
+      writeNullable(dos, parent);
+      dos.writeBoolean(needsInstrumentation);
+      dos.writeBoolean(alreadyInstrumented);
+      writeNullable(dos, originalHash);
+      writeStrings(dos, interfaces);
+      writeStrings(dos, methods);
+
+      dos.writeInt(dependencies.length);
+
+      for (Dependency d : dependencies) {
+        dos.writeUTF(d.owner);
+        dos.writeUTF(d.method);
+        dos.writeUTF(d.desc);
+        dos.writeBoolean(d.suspendable);
+      }
+    }
+
+    static Entry read(DataInputStream dis)
+        throws IOException {
+      String hash = dis.readUTF();
+      String name = dis.readUTF();
+      String parent = readNullable(dis);
+      boolean needsInstrumentation = dis.readBoolean();
+      boolean alreadyInstrumented = dis.readBoolean();
+      String originalHash = readNullable(dis);
+      String[] interfaces = readStrings(dis);
+      String[] methods = readStrings(dis);
+
+      Dependency[] dependencies = new Dependency[dis.readInt()];
+
+      for (int i = 0; i < dependencies.length; i++) {
+        dependencies[i] =
+          new Dependency(
+            dis.readUTF(), dis.readUTF(), dis.readUTF(), dis.readBoolean()
+          );
+      }
+
+      return new Entry(
+        hash, name, parent, interfaces, methods, needsInstrumentation,
+        alreadyInstrumented, originalHash, dependencies
+      );
+    }
+
+    private static void writeNullable(DataOutputStream dos, String s)
+        throws IOException {
+      dos.writeBoolean(s != null);
+
+      if (s != null) {
+        dos.writeUTF(s);
+      }
+    }
+
+    private static String readNullable(DataInputStream dis)
+        throws IOException {
+      return dis.readBoolean() ? dis.readUTF() : null;
+    }
+
+    private static void writeStrings(DataOutputStream dos, String[] strings)
+        throws IOException {
+      dos.writeInt(strings.length);
+
+      for (String s : strings) {
+        dos.writeUTF(s);
+      }
+    }
+
+    private static String[] readStrings(DataInputStream dis)
+        throws IOException {
+      String[] strings = new String[dis.readInt()];
+
+      for (int i = 0; i < strings.length; i++) {
+        strings[i] = dis.readUTF();
+      }
+
+      return strings;
+    }
+  }
+
+  static final class Dependency {
+    final String owner;
+    final String method;
+    final String desc;
+    final boolean suspendable;
+
+    Dependency(
+      String owner, String method, String desc, boolean suspendable
+    ) {
+      this.owner = owner;
+      this.method = method;
+      this.desc = desc;
+      this.suspendable = suspendable;
+    }
+  }
+}
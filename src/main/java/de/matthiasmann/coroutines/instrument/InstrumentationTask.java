@@ -29,11 +29,18 @@
 package de.matthiasmann.coroutines.instrument;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import de.matthiasmann.coroutines.SuspendExecution;
 
@@ -65,6 +72,30 @@ import org.objectweb.asm.util.CheckClassAdapter;
  * The resulting code is run through a verifier.</li>
  * <li>verbose - default: false<br/>
  * The name of each processed class is displayed.</li>
+ * <li>carrierThread - default: false<br/>
+ * Instrumented methods read the Stack from the running CoroutineThread
+ * instead of a ThreadLocal.</li>
+ * <li>inlineStackAccess - default: false<br/>
+ * Instrumented methods access the arrays of the Stack directly instead of
+ * calling a method for each saved or restored value. This makes the code
+ * larger but does not depend on the JIT inlining these calls.</li>
+ * <li>bulkStackAccess - default: false<br/>
+ * Instrumented methods spill the saved values into scratch arrays which the
+ * Stack copies as one block, and clear the restored references as one
+ * block. Takes precedence over inlineStackAccess.</li>
+ * <li>threads - default: 1<br/>
+ * The number of threads used to check and instrument the classes. The
+ * instrumented classes are identical to a run with one thread.</li>
+ * <li>cacheDir - default: none<br/>
+ * A directory where the results of the class checks are stored by content
+ * hash. Unchanged classes are not parsed again. Instrumented classes are
+ * instrumented again from a saved copy of the original class when the
+ * suspendability of a called method has changed.</li>
+ * <li>index - default: false<br/>
+ * A suspendable method index of all checked classes is written to
+ * META-INF/coroutines/suspendables in the directory of each FileSet. Later
+ * instrumentation runs use the index instead of reading the class files
+ * when the directory or a jar made from it is in their classpath.</li>
  * </ul>
  *
  * @see    <a href="http://ant.apache.org/manual/CoreTypes/fileset.html">ANT
@@ -77,7 +108,13 @@ public class InstrumentationTask extends Task {
   private boolean check;
   private boolean verbose;
   private boolean allowMonitors;
+  private boolean carrierThread;
+  private boolean inlineStackAccess;
+  private boolean bulkStackAccess;
   private boolean debug;
+  private int threads = 1;
+  private File cacheDir;
+  private boolean index;
 
   /**
    * DOCUMENT ME!
@@ -115,6 +152,34 @@ public class InstrumentationTask extends Task {
     this.allowMonitors = allowMonitors;
   }
 
+  /**
+   * Sets the value of the carrier thread property.
+   *
+   * @param carrierThread the new value of the carrier thread property.
+   */
+  public void setCarrierThread(boolean carrierThread) {
+    this.carrierThread = carrierThread;
+  }
+
+  /**
+   * Sets the value of the inline stack access property.
+   *
+   * @param inlineStackAccess the new value of the inline stack access
+   *                          property.
+   */
+  public void setInlineStackAccess(boolean inlineStackAccess) {
+    this.inlineStackAccess = inlineStackAccess;
+  }
+
+  /**
+   * Sets the value of the bulk stack access property.
+   *
+   * @param bulkStackAccess the new value of the bulk stack access property.
+   */
+  public void setBulkStackAccess(boolean bulkStackAccess) {
+    this.bulkStackAccess = bulkStackAccess;
+  }
+
   /**
    * Sets the value of the debug property.
    *
@@ -124,6 +189,39 @@ public class InstrumentationTask extends Task {
     this.debug = debug;
   }
 
+  /**
+   * Sets the value of the threads property.
+   *
+   * @param  threads the new value of the threads property.
+   *
+   * @throws BuildException if threads is &lt; 1
+   */
+  public void setThreads(int threads) {
+    if (threads < 1) {
+      throw new BuildException("threads must be >= 1");
+    }
+
+    this.threads = threads;
+  }
+
+  /**
+   * Sets the value of the cache dir property.
+   *
+   * @param cacheDir the new value of the cache dir property.
+   */
+  public void setCacheDir(File cacheDir) {
+    this.cacheDir = cacheDir;
+  }
+
+  /**
+   * Sets the value of the index property.
+   *
+   * @param index the new value of the index property.
+   */
+  public void setIndex(boolean index) {
+    this.index = index;
+  }
+
   /**
    * DOCUMENT ME!
    *
@@ -132,83 +230,353 @@ public class InstrumentationTask extends Task {
   @Override
   public void execute()
       throws BuildException {
-    MethodDatabase db = new MethodDatabase(getClass().getClassLoader());
+    final MethodDatabase db =
+      new MethodDatabase(getClass().getClassLoader());
 
     db.setVerbose(verbose);
     db.setDebug(debug);
     db.setAllowMonitors(allowMonitors);
+    db.setCarrierThread(carrierThread);
+    db.setInlineStackAccess(inlineStackAccess);
+    db.setBulkStackAccess(bulkStackAccess);
     db.setLog(
       new Log() {
         public void log(String msg, Object ...args) {
-          InstrumentationTask.this.log(String.format(msg, args));
+          synchronized (InstrumentationTask.this) {
+            InstrumentationTask.this.log(String.format(msg, args));
+          }
         }
 
         public void error(String msg, Exception ex) {
-          InstrumentationTask.this.log(msg, ex, Project.MSG_ERR);
+          synchronized (InstrumentationTask.this) {
+            InstrumentationTask.this.log(msg, ex, Project.MSG_ERR);
+          }
         }
       }
     );
 
+    final InstrumentationCache cache =
+      (cacheDir != null) ? new InstrumentationCache(cacheDir) : null;
+    final ConcurrentHashMap<File, String> hashes =
+      new ConcurrentHashMap<File, String>();
+    final ConcurrentHashMap<File, InstrumentationCache.Entry> cached =
+      new ConcurrentHashMap<File, InstrumentationCache.Entry>();
+
+    if (cache != null) {
+      try {
+        cache.load();
+      } catch (IOException ex) {
+        log("Ignoring unreadable cache: " + ex, Project.MSG_WARN);
+      }
+    }
+
+    ExecutorService executor =
+      (threads > 1) ? Executors.newFixedThreadPool(threads) : null;
+
     try {
+      ArrayList<File> files = new ArrayList<File>();
+      ArrayList<Callable<Void>> checks = new ArrayList<Callable<Void>>();
+      ArrayList<Map<String, MethodDatabase.ClassEntry>> indexes =
+        new ArrayList<Map<String, MethodDatabase.ClassEntry>>();
+
       for (FileSet fs : filesets) {
         DirectoryScanner ds = fs.getDirectoryScanner(getProject());
         String[] includedFiles = ds.getIncludedFiles();
+        final ConcurrentHashMap<String, MethodDatabase.ClassEntry> entries =
+          index ? new ConcurrentHashMap<String, MethodDatabase.ClassEntry>()
+                : null;
+
+        indexes.add(entries);
 
         for (String filename : includedFiles) {
-          File file = new File(fs.getDir(), filename);
+          final File file = new File(fs.getDir(), filename);
 
           if (file.isFile()) {
-            db.checkClass(file);
+            files.add(file);
+            checks.add(
+              new Callable<Void>() {
+                public Void call()
+                    throws IOException {
+                  if (cache != null) {
+                    checkCached(db, cache, file, hashes, cached, entries);
+                  } else if (entries != null) {
+                    addIndexEntry(
+                      entries,
+                      db.checkClass(file, InstrumentationCache.readFile(file))
+                    );
+                  } else {
+                    db.checkClass(file);
+                  }
+
+                  return null;
+                }
+              }
+            );
           } else {
             log("File not found: " + filename);
           }
         }
       }
 
+      // all classes must be known before the first one is instrumented
+      runAll(executor, checks);
+
+      if (cache != null) {
+        for (File f : files) {
+          InstrumentationCache.Entry e = cached.get(f);
+
+          if (e != null) {
+            revalidate(db, cache, f, e, hashes);
+          }
+        }
+      }
+
       log("Instrumenting " + db.getWorkList().size() + " classes");
 
-      for (File f : db.getWorkList()) {
-        instrumentClass(db, f);
+      ArrayList<Callable<Void>> instrumentations =
+        new ArrayList<Callable<Void>>();
+
+      for (final File f : db.getWorkList()) {
+        instrumentations.add(
+          new Callable<Void>() {
+            public Void call() {
+              instrumentClass(db, f, cache, hashes.get(f));
+
+              return null;
+            }
+          }
+        );
+      }
+
+      runAll(executor, instrumentations);
+
+      if (cache != null) {
+        cache.save();
       }
+
+      writeIndexes(indexes);
+    } catch (IOException ex) {
+      throw new BuildException("Writing cache " + cacheDir, ex);
     } catch (UnableToInstrumentException ex) {
       log(ex.getMessage());
       throw new BuildException(ex.getMessage(), ex);
+    } finally {
+      if (executor != null) {
+        executor.shutdownNow();
+      }
     }
   }
 
-  private void instrumentClass(MethodDatabase db, File f) {
-    if (verbose) {
-      log("Instrumenting class " + f);
+  /**
+   * Runs all tasks and waits for them. When tasks fail the exception of the
+   * first one in list order is thrown so that the result does not depend on
+   * the scheduling.
+   */
+  private static void runAll(
+    ExecutorService executor, List<Callable<Void>> tasks
+  ) {
+    if (executor == null) {
+      for (Callable<Void> task : tasks) {
+        try {
+          task.call();
+        } catch (RuntimeException ex) {
+          throw ex;
+        } catch (Exception ex) {
+          throw new BuildException(ex);
+        }
+      }
+
+      return;
     }
 
     try {
-      ClassReader r;
+      for (Future<Void> future : executor.invokeAll(tasks)) {
+        try {
+          future.get();
+        } catch (ExecutionException ex) {
+          Throwable cause = ex.getCause();
 
-      FileInputStream fis = new FileInputStream(f);
+          if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+          }
 
-      try {
-        r = new ClassReader(fis);
-      } finally {
-        fis.close();
+          if (cause instanceof Error) {
+            throw (Error) cause;
+          }
+
+          throw new BuildException(cause);
+        }
+      }
+    } catch (InterruptedException ex) {
+      throw new BuildException("Instrumentation interrupted", ex);
+    }
+  }
+
+  /**
+   * Checks a class using the cache. Classes which are not in the cache are
+   * parsed and added to it.
+   */
+  private static void checkCached(
+    MethodDatabase db, InstrumentationCache cache, File f,
+    ConcurrentHashMap<File, String> hashes,
+    ConcurrentHashMap<File, InstrumentationCache.Entry> cached,
+    Map<String, MethodDatabase.ClassEntry> entries
+  )
+      throws IOException {
+    byte[] bytes = InstrumentationCache.readFile(f);
+    String hash = InstrumentationCache.hash(bytes);
+    InstrumentationCache.Entry e = cache.get(hash);
+
+    hashes.put(f, hash);
+
+    if (e == null) {
+      CheckInstrumentationVisitor civ = db.checkClass(f, bytes);
+
+      if (civ != null) {
+        cache.put(new InstrumentationCache.Entry(hash, civ));
       }
 
-      ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+      addIndexEntry(entries, civ);
+
+      return;
+    }
+
+    if (e.needsInstrumentation) {
+      db.addClass(
+        f, e.name, e.parent, e.interfaces, e.methods, e.alreadyInstrumented
+      );
+    } else {
+      db.addPlainClass(e.name, e.parent, e.interfaces);
+    }
+
+    if (entries != null) {
+      entries.put(
+        e.name, new MethodDatabase.ClassEntry(e.parent, e.interfaces, e.methods)
+      );
+    }
+
+    if (e.originalHash != null) {
+      cached.put(f, e);
+    }
+  }
+
+  /**
+   * Checks if the called methods of a class which was instrumented by a
+   * previous build still have the same suspendability. If not the original
+   * class is restored and instrumented again.
+   */
+  private void revalidate(
+    MethodDatabase db, InstrumentationCache cache, File f,
+    InstrumentationCache.Entry e, ConcurrentHashMap<File, String> hashes
+  )
+      throws IOException {
+    for (InstrumentationCache.Dependency d : e.dependencies) {
+      if (db.isMethodSuspendable(d.owner, d.method, d.desc) != d.suspendable) {
+        byte[] original = cache.readOriginal(e.originalHash);
+
+        if (original == null) {
+          log(
+            "Original of " + f + " is not in the cache - can't update it",
+            Project.MSG_WARN
+          );
+
+          return;
+        }
+
+        if (verbose) {
+          log(
+            "Suspendability of " + d.owner + "#" + d.method + d.desc
+            + " changed - instrumenting " + f + " again"
+          );
+        }
+
+        writeFile(f, original);
+        cache.keep(e.originalHash);
+        hashes.put(f, e.originalHash);
+        db.addToWorkList(f);
+
+        return;
+      }
+    }
+  }
+
+  private void instrumentClass(
+    MethodDatabase db, File f, InstrumentationCache cache, String hash
+  ) {
+    if (verbose) {
+      log("Instrumenting class " + f);
+    }
+
+    try {
+      byte[] original = InstrumentationCache.readFile(f);
+      ClassReader r = new ClassReader(original);
+      ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
       ClassVisitor cv = check ? new CheckClassAdapter(cw) : cw;
       InstrumentClass ic = new InstrumentClass(cv, db);
 
-      r.accept(ic, ClassReader.SKIP_FRAMES);
+      r.accept(ic, ClassReader.EXPAND_FRAMES);
 
       byte[] newClass = cw.toByteArray();
 
-      FileOutputStream fos = new FileOutputStream(f);
+      writeFile(f, newClass);
 
-      try {
-        fos.write(newClass);
-      } finally {
-        fos.close();
+      InstrumentationCache.Entry e =
+        (cache != null) ? cache.get(hash) : null;
+
+      if (e != null) {
+        cache.storeOriginal(hash, original);
+        cache.put(
+          new InstrumentationCache.Entry(
+            InstrumentationCache.hash(newClass), e.name, e.parent,
+            e.interfaces, e.methods, true, true, hash,
+            InstrumentationCache.collectDependencies(db, original)
+          )
+        );
       }
     } catch (IOException ex) {
       throw new BuildException("Instrumenting file " + f, ex);
     }
   }
+
+  private static void addIndexEntry(
+    Map<String, MethodDatabase.ClassEntry> entries,
+    CheckInstrumentationVisitor civ
+  ) {
+    if ((entries != null) && (civ != null)) {
+      entries.put(civ.getName(), new MethodDatabase.ClassEntry(civ));
+    }
+  }
+
+  private void writeIndexes(
+    List<Map<String, MethodDatabase.ClassEntry>> indexes
+  ) {
+    for (int i = 0; i < filesets.size(); i++) {
+      Map<String, MethodDatabase.ClassEntry> entries = indexes.get(i);
+
+      if (entries != null) {
+        File dir = filesets.get(i).getDir();
+
+        try {
+          SuspendableIndex.write(dir, entries);
+        } catch (IOException ex) {
+          throw new BuildException("Writing index to " + dir, ex);
+        }
+
+        if (verbose) {
+          log("Wrote index of " + entries.size() + " classes to " + dir);
+        }
+      }
+    }
+  }
+
+  private static void writeFile(File f, byte[] bytes)
+      throws IOException {
+    FileOutputStream fos = new FileOutputStream(f);
+
+    try {
+      fos.write(bytes);
+    } finally {
+      fos.close();
+    }
+  }
 }
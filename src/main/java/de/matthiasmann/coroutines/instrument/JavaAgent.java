@@ -35,19 +35,42 @@ import java.lang.instrument.Instrumentation;
 
 import java.security.ProtectionDomain;
 
+import java.util.ArrayList;
+
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.util.CheckClassAdapter;
 
 /**
- * DOCUMENT ME!
+ * <p>Instruments classes while they are loaded.</p>
+ *
+ * <p>The agent arguments start with the option characters <code>v</code>
+ * (verbose), <code>d</code> (debug), <code>m</code> (allow monitors),
+ * <code>c</code> (check class), <code>t</code> (carrier thread), <code>
+ * i</code> (inline Stack access) and <code>b</code> (bulk Stack access).
+ * They can be followed by comma separated
+ * <code>include=pattern</code> and <code>exclude=pattern</code> entries,
+ * e.g. <code>
+ * -javaagent:coroutines.jar=v,include=com.example.**,exclude=com.example.gen.*
+ * </code></p>
+ *
+ * <p>A pattern is either a class name, a package followed by <code>.*</code>
+ * for the classes of that package or a package followed by <code>.**</code>
+ * for the classes of that package and all sub packages. If include patterns
+ * are given only matching classes are instrumented. Classes matching an
+ * exclude pattern are never instrumented. Classes without suspendable
+ * methods are detected by a quick scan and are not rewritten.</p>
  *
  * @author  Riven
  * @author  Matthias Mann
  * @version $Revision$, Nov 21, 2010
  */
 public class JavaAgent {
+  private static final String USAGE =
+    "Usage: vdmctib[,include=pattern][,exclude=pattern] (verbose, debug, "
+    + "allow monitors, check class, carrier thread, inline stack access, "
+    + "bulk stack access)";
   /**
    * DOCUMENT ME!
    *
@@ -62,30 +85,23 @@ public class JavaAgent {
     MethodDatabase db =
       new MethodDatabase(Thread.currentThread().getContextClassLoader());
     boolean checkArg = false;
+    ArrayList<String> includes = new ArrayList<String>();
+    ArrayList<String> excludes = new ArrayList<String>();
 
     if (agentArguments != null) {
-      for (char c : agentArguments.toCharArray()) {
-        switch (c) {
-          case 'v':
-            db.setVerbose(true);
-            break;
-
-          case 'd':
-            db.setDebug(true);
-            break;
-
-          case 'm':
-            db.setAllowMonitors(true);
-            break;
-
-          case 'c':
-            checkArg = true;
-            break;
-
-          default:
-            throw new IllegalStateException(
-              "Usage: vdmc (verbose, debug, allow monitors, check class)"
-            );
+      String[] args = agentArguments.split(",");
+
+      for (int i = 0; i < args.length; i++) {
+        String arg = args[i];
+
+        if (arg.startsWith("include=")) {
+          includes.add(toInternalPattern(arg.substring(8)));
+        } else if (arg.startsWith("exclude=")) {
+          excludes.add(toInternalPattern(arg.substring(8)));
+        } else if (i == 0) {
+          checkArg = parseOptions(db, arg);
+        } else {
+          throw new IllegalStateException(USAGE);
         }
       }
     }
@@ -106,18 +122,120 @@ public class JavaAgent {
       }
     );
 
-    instrumentation.addTransformer(new Transformer(db, checkArg));
+    instrumentation.addTransformer(
+      new Transformer(
+        db, checkArg, includes.toArray(new String[includes.size()]),
+        excludes.toArray(new String[excludes.size()])
+      )
+    );
+  }
+
+  private static boolean parseOptions(MethodDatabase db, String options) {
+    boolean checkArg = false;
+
+    for (char c : options.toCharArray()) {
+      switch (c) {
+        case 'v':
+          db.setVerbose(true);
+          break;
+
+        case 'd':
+          db.setDebug(true);
+          break;
+
+        case 'm':
+          db.setAllowMonitors(true);
+          break;
+
+        case 'c':
+          checkArg = true;
+          break;
+
+        case 't':
+          db.setCarrierThread(true);
+          break;
+
+        case 'i':
+          db.setInlineStackAccess(true);
+          break;
+
+        case 'b':
+          db.setBulkStackAccess(true);
+          break;
+
+        default:
+          throw new IllegalStateException(USAGE);
+      }
+    }
+
+    return checkArg;
+  }
+
+  /**
+   * Converts a pattern to the internal class name form. The result ends with
+   * "//" for a package and it's sub packages, with '/' for a single package
+   * and is a class name otherwise.
+   */
+  static String toInternalPattern(String pattern) {
+    String p = pattern.trim().replace('.', '/');
+
+    if (p.endsWith("/**")) {
+      return p.substring(0, p.length() - 2) + "/";
+    }
+
+    if (p.endsWith("/*")) {
+      return p.substring(0, p.length() - 1);
+    }
+
+    return p;
+  }
+
+  /**
+   * Checks if a class name in internal form matches a pattern created by
+   * {@link #toInternalPattern(String)}.
+   */
+  static boolean matches(String pattern, String className) {
+    if (pattern.endsWith("//")) {
+      return className.startsWith(pattern.substring(0, pattern.length() - 1));
+    }
+
+    if (pattern.endsWith("/")) {
+      return className.startsWith(pattern)
+        && (className.indexOf('/', pattern.length()) < 0);
+    }
+
+    return className.equals(pattern);
+  }
+
+  /**
+   * Scans the class without reading the code. Returns null if the class
+   * has no method which declares to throw SuspendExecution or if it is
+   * already instrumented - nothing would change for these classes.
+   */
+  static CheckInstrumentationVisitor prescan(byte[] data) {
+    CheckInstrumentationVisitor civ = new CheckInstrumentationVisitor();
+
+    new ClassReader(data).accept(
+      civ,
+      ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES
+    );
+
+    if (!civ.needsInstrumentation() || civ.isAlreadyInstrumented()) {
+      return null;
+    }
+
+    return civ;
   }
 
   static byte[] instrumentClass(
     MethodDatabase db, byte[] data, boolean check
   ) {
     ClassReader r = new ClassReader(data);
-    ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+    ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
     ClassVisitor cv = check ? new CheckClassAdapter(cw) : cw;
     InstrumentClass ic = new InstrumentClass(cv, db);
 
-    r.accept(ic, ClassReader.SKIP_FRAMES);
+    r.accept(ic, ClassReader.EXPAND_FRAMES);
 
     return cw.toByteArray();
   }
@@ -125,16 +243,24 @@ public class JavaAgent {
   private static class Transformer implements ClassFileTransformer {
     private final MethodDatabase db;
     private final boolean check;
+    private final String[] includes;
+    private final String[] excludes;
 
     /**
      * Creates a new Transformer object.
      *
-     * @param db    DOCUMENT ME!
-     * @param check DOCUMENT ME!
+     * @param db       DOCUMENT ME!
+     * @param check    DOCUMENT ME!
+     * @param includes DOCUMENT ME!
+     * @param excludes DOCUMENT ME!
      */
-    public Transformer(MethodDatabase db, boolean check) {
+    public Transformer(
+      MethodDatabase db, boolean check, String[] includes, String[] excludes
+    ) {
       this.db = db;
       this.check = check;
+      this.includes = includes;
+      this.excludes = excludes;
     }
 
     /**
@@ -156,21 +282,57 @@ public class JavaAgent {
       ProtectionDomain protectionDomain, byte[] classfileBuffer
     )
         throws IllegalClassFormatException {
-      if (className.startsWith("java/")) {
+      if ((className == null) || !isIncluded(className)) {
         return null;
       }
 
-      if (className.startsWith("javax/")) {
+      try {
+        CheckInstrumentationVisitor civ = prescan(classfileBuffer);
+
+        if (civ == null) {
+          return null;
+        }
+
+        db.addClassEntry(civ);
+
+        if (db.isVerbose()) {
+          db.log("TRANSFORM: %s", className);
+        }
+
+        return instrumentClass(db, classfileBuffer, check);
+      } catch (RuntimeException ex) {
+        // the JVM silently ignores exceptions thrown by a transformer
+        db.error(className, ex);
+
         return null;
       }
+    }
 
-      if (className.startsWith("sun/")) {
-        return null;
+    private boolean isIncluded(String className) {
+      if (
+        className.startsWith("java/") || className.startsWith("javax/")
+          || className.startsWith("sun/")
+      ) {
+        return false;
       }
 
-      System.out.println("[Continuations] TRANSFORM: " + className);
+      for (String pattern : excludes) {
+        if (matches(pattern, className)) {
+          return false;
+        }
+      }
+
+      if (includes.length == 0) {
+        return true;
+      }
+
+      for (String pattern : includes) {
+        if (matches(pattern, className)) {
+          return true;
+        }
+      }
 
-      return instrumentClass(db, classfileBuffer, check);
+      return false;
     }
   }
 }
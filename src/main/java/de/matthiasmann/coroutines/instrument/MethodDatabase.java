@@ -28,13 +28,21 @@
  */
 package de.matthiasmann.coroutines.instrument;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
+import java.net.URL;
+
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.objectweb.asm.ClassReader;
 
@@ -43,18 +51,35 @@ import org.objectweb.asm.ClassReader;
  *
  * <p>Provides access to configuration parameters and to logging</p>
  *
+ * <p>Classes can be checked and instrumented from several threads at the
+ * same time. The configuration properties must be set before.</p>
+ *
+ * <p>A method is suspendable if it or a method it overrides or implements
+ * in a super class or interface throws {@link
+ * de.matthiasmann.coroutines.SuspendExecution}. The answers are cached per
+ * call target.</p>
+ *
+ * <p>Classes which are not checked explicitly are first looked up in the
+ * suspendable method indexes found by the class loader (see {@link
+ * SuspendableIndex}) and only then read from their class files.</p>
+ *
  * @author Matthias Mann
  */
 public class MethodDatabase implements Log {
   private final ClassLoader cl;
-  private final HashMap<String, ClassEntry> classes;
-  private final HashMap<String, String> superClasses;
+  private final ConcurrentHashMap<String, ClassEntry> classes;
+  private final ConcurrentHashMap<String, String> superClasses;
+  private final ConcurrentHashMap<String, Boolean> resolved;
   private final ArrayList<File> workList;
 
   private Log log;
   private boolean verbose;
   private boolean debug;
   private boolean allowMonitors;
+  private boolean carrierThread;
+  private boolean inlineStackAccess;
+  private boolean bulkStackAccess;
+  private volatile boolean indexesLoaded;
 
   /**
    * Creates a new MethodDatabase object.
@@ -64,8 +89,9 @@ public class MethodDatabase implements Log {
   public MethodDatabase(ClassLoader cl) {
     this.cl = cl;
 
-    classes = new HashMap<String, ClassEntry>();
-    superClasses = new HashMap<String, String>();
+    classes = new ConcurrentHashMap<String, ClassEntry>();
+    superClasses = new ConcurrentHashMap<String, String>();
+    resolved = new ConcurrentHashMap<String, Boolean>();
     workList = new ArrayList<File>();
   }
 
@@ -87,6 +113,71 @@ public class MethodDatabase implements Log {
     this.allowMonitors = allowMonitors;
   }
 
+  /**
+   * Returns the value of the carrier thread property.
+   *
+   * @return the value of the carrier thread property.
+   */
+  public boolean isCarrierThread() {
+    return carrierThread;
+  }
+
+  /**
+   * Sets the value of the carrier thread property. When set instrumented
+   * methods read the Stack from a {@link
+   * de.matthiasmann.coroutines.CoroutineThread} and only fall back to the
+   * ThreadLocal on other threads.
+   *
+   * @param carrierThread the new value of the carrier thread property.
+   */
+  public void setCarrierThread(boolean carrierThread) {
+    this.carrierThread = carrierThread;
+  }
+
+  /**
+   * Returns the value of the inline stack access property.
+   *
+   * @return the value of the inline stack access property.
+   */
+  public boolean isInlineStackAccess() {
+    return inlineStackAccess;
+  }
+
+  /**
+   * Sets the value of the inline stack access property. When set
+   * instrumented methods read and write the arrays of the Stack directly
+   * instead of calling a method of the Stack for each saved value.
+   *
+   * @param inlineStackAccess the new value of the inline stack access
+   *                          property.
+   */
+  public void setInlineStackAccess(boolean inlineStackAccess) {
+    this.inlineStackAccess = inlineStackAccess;
+  }
+
+  /**
+   * Returns the value of the bulk stack access property.
+   *
+   * @return the value of the bulk stack access property.
+   */
+  public boolean isBulkStackAccess() {
+    return bulkStackAccess;
+  }
+
+  /**
+   * Sets the value of the bulk stack access property. When set
+   * instrumented methods spill the saved values into scratch arrays of the
+   * Stack which are copied into the Stack as one block. The values are
+   * restored directly from the arrays of the Stack and the saved references
+   * are cleared as one block. This takes precedence over the inline stack
+   * access property.
+   *
+   * @param bulkStackAccess the new value of the bulk stack access property.
+   */
+  public void setBulkStackAccess(boolean bulkStackAccess) {
+    this.bulkStackAccess = bulkStackAccess;
+  }
+
   /**
    * Returns the value of the log property.
    *
@@ -173,21 +264,8 @@ public class MethodDatabase implements Log {
   public void checkClass(File f) {
     try {
       FileInputStream fis = new FileInputStream(f);
-      CheckInstrumentationVisitor civ = checkFileAndClose(fis, f.getPath());
-
-      if ((civ != null) && civ.needsInstrumentation()) {
-        if (civ.isAlreadyInstrumented()) {
-          log("Found instrumented class: %s", f.getPath());
-        } else {
-          log("Found class: %s", f.getPath());
-        }
-
-        classes.put(civ.getName(), new ClassEntry(civ));
 
-        if ((f != null) && !civ.isAlreadyInstrumented()) {
-          workList.add(f);
-        }
-      }
+      addClass(f, checkFileAndClose(fis, f.getPath()));
     } catch (UnableToInstrumentException ex) {
       throw ex;
     } catch (Exception ex) {
@@ -196,54 +274,304 @@ public class MethodDatabase implements Log {
   }
 
   /**
-   * Returns the value of the method suspendable property.
+   * Checks a class file which was already read.
+   *
+   * @param  f     the class file
+   * @param  bytes the content of the class file
+   *
+   * @return the visitor which checked the class or null if the class could
+   *         not be read
+   */
+  CheckInstrumentationVisitor checkClass(File f, byte[] bytes) {
+    CheckInstrumentationVisitor civ =
+      checkFileAndClose(new ByteArrayInputStream(bytes), f.getPath());
+
+    addClass(f, civ);
+
+    return civ;
+  }
+
+  /**
+   * Adds a class which was checked in a previous run.
+   *
+   * @param f                   the class file
+   * @param name                the name of the class
+   * @param parent              the super class
+   * @param interfaces          the implemented interfaces
+   * @param methods             the suspendable methods as name and
+   *                            descriptor
+   * @param alreadyInstrumented true if the class file is already
+   *                            instrumented
+   */
+  void addClass(
+    File f, String name, String parent, String[] interfaces,
+    String[] methods, boolean alreadyInstrumented
+  ) {
+    if (alreadyInstrumented) {
+      log("Found instrumented class: %s", f.getPath());
+    } else {
+      log("Found class: %s", f.getPath());
+    }
+
+    putClassEntry(name, new ClassEntry(parent, interfaces, methods));
+
+    if (!alreadyInstrumented) {
+      addToWorkList(f);
+    }
+  }
+
+  /**
+   * Adds a class which is about to be instrumented so that it does not need
+   * to be read again when it is referenced.
+   *
+   * @param civ the visitor which checked the class
+   */
+  void addClassEntry(CheckInstrumentationVisitor civ) {
+    classes.putIfAbsent(civ.getName(), new ClassEntry(civ));
+  }
+
+  /**
+   * Adds a class file to the work list.
+   *
+   * @param f the class file
+   */
+  void addToWorkList(File f) {
+    synchronized (workList) {
+      workList.add(f);
+    }
+  }
+
+  /**
+   * Adds a class without suspendable methods which was checked. It hides an
+   * outdated entry of the class in a suspendable method index.
+   *
+   * @param name       the name of the class
+   * @param parent     the super class
+   * @param interfaces the implemented interfaces
+   */
+  void addPlainClass(String name, String parent, String[] interfaces) {
+    putClassEntry(name, new ClassEntry(parent, interfaces));
+  }
+
+  private void putClassEntry(String name, ClassEntry entry) {
+    classes.put(name, entry);
+
+    // the entry may replace one which was used for an answer
+    resolved.clear();
+  }
+
+  private void addClass(File f, CheckInstrumentationVisitor civ) {
+    if (civ != null) {
+      if (civ.needsInstrumentation()) {
+        addClass(
+          f, civ.getName(), civ.getParent(), civ.getInterfaces(),
+          civ.getMethods(), civ.isAlreadyInstrumented()
+        );
+      } else {
+        addPlainClass(civ.getName(), civ.getParent(), civ.getInterfaces());
+      }
+    }
+  }
+
+  /**
+   * Adds the classes of all suspendable method indexes which the class
+   * loader can find. Classes which were already added are not replaced.
+   */
+  private void loadIndexes() {
+    if (indexesLoaded || (cl == null)) {
+      return;
+    }
+
+    synchronized (this) {
+      if (indexesLoaded) {
+        return;
+      }
+
+      try {
+        Enumeration<URL> urls = cl.getResources(SuspendableIndex.RESOURCE_NAME);
+
+        while (urls.hasMoreElements()) {
+          URL url = urls.nextElement();
+          HashMap<String, ClassEntry> index = new HashMap<String, ClassEntry>();
+
+          try {
+            SuspendableIndex.read(url.openStream(), index);
+          } catch (IOException ex) {
+            error(url.toString(), ex);
+
+            continue;
+          }
+
+          log("Read suspendable method index: %s", url);
+
+          for (Map.Entry<String, ClassEntry> e : index.entrySet()) {
+            classes.putIfAbsent(e.getKey(), e.getValue());
+          }
+        }
+      } catch (IOException ex) {
+        error(SuspendableIndex.RESOURCE_NAME, ex);
+      }
+
+      indexesLoaded = true;
+    }
+  }
+
+  /**
+   * Returns the value of the method suspendable property. Every overload of
+   * the method is checked.
+   *
+   * @param      className  DOCUMENT ME!
+   * @param      methodName DOCUMENT ME!
+   *
+   * @return     the value of the method suspendable property.
+   *
+   * @deprecated use {@link #isMethodSuspendable(String, String, String)}
+   *             which does not treat overloads of a suspendable method as
+   *             suspendable
+   */
+  @Deprecated
+  public boolean isMethodSuspendable(String className, String methodName) {
+    // an empty descriptor matches every overload - see hasMethod
+    return isMethodSuspendable(className, methodName, "");
+  }
+
+  /**
+   * Returns the value of the method suspendable property. Only the method
+   * with the given descriptor is checked - overloads of a suspendable method
+   * are not suspendable.
    *
    * @param  className  DOCUMENT ME!
    * @param  methodName DOCUMENT ME!
+   * @param  methodDesc the descriptor of the method
    *
    * @return the value of the method suspendable property.
    */
-  public boolean isMethodSuspendable(String className, String methodName) {
+  public boolean isMethodSuspendable(
+    String className, String methodName, String methodDesc
+  ) {
     if (methodName.charAt(0) == '<') {
       return false; // special methods are never suspendable
     }
 
-    for (;;) {
-      if (isJavaCore(className)) {
-        return false;
+    loadIndexes();
+
+    String method = methodName + methodDesc;
+    String key = className + '.' + method;
+    Boolean result = resolved.get(key);
+
+    if (result == null) {
+      result = resolve(className, method, new HashSet<String>());
+
+      if (result == null) {
+        log(
+          "Class hierarchy of %s is incomplete - assuming suspendable: %s",
+          className, method
+        );
+
+        return true; // not cached - the missing class may show up later
       }
 
-      ClassEntry entry = classes.get(className);
+      resolved.put(key, result);
+    }
+
+    return result;
+  }
+
+  /**
+   * Searches a suspendable method in the class, its super classes and all
+   * implemented interfaces. Default methods of interfaces are found like
+   * every other method.
+   *
+   * @param  className the class to search
+   * @param  method    the method name and descriptor, or only the name to
+   *                   match every overload
+   * @param  visited   the classes which were already searched
+   *
+   * @return TRUE or FALSE, or null if the method was not found and a class
+   *         could not be read
+   */
+  private Boolean resolve(
+    String className, String method, HashSet<String> visited
+  ) {
+    if (isJavaCore(className) || !visited.add(className)) {
+      return Boolean.FALSE;
+    }
+
+    ClassEntry entry = getClassEntry(className);
+
+    if (entry == null) {
+      return null;
+    }
+
+    if (hasMethod(entry, method)) {
+      return Boolean.TRUE;
+    }
 
-      if ((entry == null) && (cl != null)) {
-        log("trying to read class: %s", className);
+    Boolean result = Boolean.FALSE;
 
-        CheckInstrumentationVisitor civ = checkClass(className);
+    if (entry.parent != null) {
+      result = resolve(entry.parent, method, visited);
 
-        if (civ == null) {
-          log("Class not found assuming suspendable: %s", className);
+      if (result == Boolean.TRUE) {
+        return result;
+      }
+    }
 
-          return true;
-        }
+    for (String iface : entry.interfaces) {
+      Boolean r = resolve(iface, method, visited);
 
-        entry = new ClassEntry(civ);
-        classes.put(className, entry);
+      if (r == Boolean.TRUE) {
+        return r;
       }
 
-      if (entry == null) {
-        log("Can't check class - assuming suspendable: %s", className);
+      if (r == null) {
+        result = null;
+      }
+    }
 
+    return result;
+  }
+
+  private static boolean hasMethod(ClassEntry entry, String method) {
+    if (method.indexOf('(') >= 0) {
+      return entry.methods.contains(method);
+    }
+
+    String prefix = method + '(';
+
+    for (String m : entry.methods) {
+      if (m.startsWith(prefix)) {
         return true;
       }
+    }
 
-      for (String method : entry.methods) {
-        if (method.equals(methodName)) {
-          return true;
-        }
+    return false;
+  }
+
+  private ClassEntry getClassEntry(String className) {
+    ClassEntry entry = classes.get(className);
+
+    if ((entry == null) && (cl != null)) {
+      log("trying to read class: %s", className);
+
+      CheckInstrumentationVisitor civ = checkClass(className);
+
+      if (civ == null) {
+        log("Class not found: %s", className);
+
+        return null;
       }
 
-      className = entry.parent;
+      entry = new ClassEntry(civ);
+
+      ClassEntry other = classes.putIfAbsent(className, entry);
+
+      if (other != null) {
+        entry = other;
+      }
     }
+
+    return entry;
   }
 
   /**
@@ -422,6 +750,8 @@ public class MethodDatabase implements Log {
    * @return the value of the direct super class property.
    */
   protected String getDirectSuperClass(String className) {
+    loadIndexes();
+
     ClassEntry entry = classes.get(className);
 
     if (entry != null) {
@@ -446,18 +776,21 @@ public class MethodDatabase implements Log {
   }
 
   static class ClassEntry {
-    final String[] methods;
+    final HashSet<String> methods;
     final String parent;
+    final String[] interfaces;
 
     /**
      * Creates a new ClassEntry object.
      *
-     * @param parent  DOCUMENT ME!
-     * @param methods DOCUMENT ME!
+     * @param parent     DOCUMENT ME!
+     * @param interfaces the implemented interfaces
+     * @param methods    the suspendable methods as name and descriptor
      */
-    public ClassEntry(String parent, String ...methods) {
+    public ClassEntry(String parent, String[] interfaces, String ...methods) {
       this.parent = parent;
-      this.methods = methods;
+      this.interfaces = interfaces;
+      this.methods = new HashSet<String>(Arrays.asList(methods));
     }
 
     /**
@@ -466,7 +799,7 @@ public class MethodDatabase implements Log {
      * @param iv DOCUMENT ME!
      */
     public ClassEntry(CheckInstrumentationVisitor iv) {
-      this(iv.getParent(), iv.getMethodNames());
+      this(iv.getParent(), iv.getInterfaces(), iv.getMethods());
     }
   }
 }
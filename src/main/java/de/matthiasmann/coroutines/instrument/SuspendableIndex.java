@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2008, Matthias Mann
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Matthias Mann nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.matthiasmann.coroutines.instrument;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * <p>Reads and writes the suspendable method index.</p>
+ *
+ * <p>The {@link InstrumentationTask} can write an index of all classes it
+ * checked to <code>META-INF/coroutines/suspendables</code> in the directory
+ * of each FileSet. When the directory is packaged the index is shipped in
+ * the jar and the {@link MethodDatabase} of a later instrumentation run
+ * looks up classes of that jar in the index instead of reading their class
+ * files.</p>
+ *
+ * <p>The index is a UTF-8 text file with one line per class:</p>
+ *
+ * <pre>
+ * &lt;class&gt; &lt;super class&gt; &lt;interfaces&gt; [&lt;method&gt; ...]
+ * </pre>
+ *
+ * <p>Names are internal names and each method is its name followed by its
+ * descriptor. The interfaces are separated by ','. A missing super class or
+ * an empty list of interfaces is written as '-'. Classes without
+ * suspendable methods are listed too so that their methods are known to be
+ * not suspendable.</p>
+ *
+ * @author Matthias Mann
+ */
+final class SuspendableIndex {
+  /** The name of the index resource. */
+  static final String RESOURCE_NAME = "META-INF/coroutines/suspendables";
+
+  private static final String HEADER = "# suspendable methods, version 3";
+  private static final String NONE = "-";
+  private static final String[] NO_INTERFACES = {};
+  private static final String CHARSET = "UTF-8";
+
+  private SuspendableIndex() {
+  }
+
+  /**
+   * Writes an index to the META-INF directory below the given directory.
+   *
+   * @param  dir     the root directory of the classes
+   * @param  classes the classes by name
+   *
+   * @throws IOException if the index can't be written
+   */
+  static void write(File dir, Map<String, MethodDatabase.ClassEntry> classes)
+      throws IOException {
+    File file = new File(dir, RESOURCE_NAME);
+    File parent = file.getParentFile();
+
+    if (!parent.isDirectory() && !parent.mkdirs()) {
+      throw new IOException("Can't create directory: " + parent);
+    }
+
+    Writer w =
+      new BufferedWriter(
+        new OutputStreamWriter(new FileOutputStream(file), CHARSET)
+      );
+
+    try {
+      w.write(HEADER);
+      w.write('\n');
+
+      // sorted so that the file does not change between identical builds
+      for (
+        Map.Entry<String, MethodDatabase.ClassEntry> e
+          : new TreeMap<String, MethodDatabase.ClassEntry>(classes).entrySet()
+      ) {
+        MethodDatabase.ClassEntry entry = e.getValue();
+
+        w.write(e.getKey());
+        w.write(' ');
+        w.write((entry.parent != null) ? entry.parent : NONE);
+        w.write(' ');
+
+        if (entry.interfaces.length == 0) {
+          w.write(NONE);
+        }
+
+        for (int i = 0; i < entry.interfaces.length; i++) {
+          if (i > 0) {
+            w.write(',');
+          }
+
+          w.write(entry.interfaces[i]);
+        }
+
+        for (String method : new TreeSet<String>(entry.methods)) {
+          w.write(' ');
+          w.write(method);
+        }
+
+        w.write('\n');
+      }
+    } finally {
+      w.close();
+    }
+  }
+
+  /**
+   * Reads an index and closes the stream.
+   *
+   * @param  is      the content of the index
+   * @param  classes receives the classes by name
+   *
+   * @throws IOException if the index can't be read or has an unknown
+   *                     version
+   */
+  static void read(
+    InputStream is, Map<String, MethodDatabase.ClassEntry> classes
+  )
+      throws IOException {
+    BufferedReader r = new BufferedReader(new InputStreamReader(is, CHARSET));
+
+    try {
+      if (!HEADER.equals(r.readLine())) {
+        throw new IOException("Unknown index format");
+      }
+
+      String line;
+
+      while ((line = r.readLine()) != null) {
+        if (line.length() == 0) {
+          continue;
+        }
+
+        String[] parts = line.split(" ");
+
+        if (parts.length < 3) {
+          throw new IOException("Invalid index line: " + line);
+        }
+
+        String[] methods = new String[parts.length - 3];
+
+        System.arraycopy(parts, 3, methods, 0, methods.length);
+        classes.put(
+          parts[0],
+          new MethodDatabase.ClassEntry(
+            NONE.equals(parts[1]) ? null : parts[1],
+            NONE.equals(parts[2]) ? NO_INTERFACES : parts[2].split(","),
+            methods
+          )
+        );
+      }
+    } finally {
+      r.close();
+    }
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2008, Matthias Mann
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Matthias Mann nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.matthiasmann.coroutines;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Test the {@link AsyncFileIO} class.
+ *
+ * @author Matthias Mann
+ */
+public class AsyncFileIOTest {
+  private static final int NUM_BLOCKS = 64;
+  private static final int BLOCK_SIZE = 16 * 1024;
+
+  @Test
+  public void testWriteAndRead()
+      throws IOException, InterruptedException {
+    final CoroutineScheduler scheduler = new CoroutineScheduler(2);
+    final CountDownLatch done = new CountDownLatch(NUM_BLOCKS);
+    final AtomicInteger errors = new AtomicInteger();
+    final byte[] data = new byte[NUM_BLOCKS * BLOCK_SIZE];
+    File file = File.createTempFile("coroutines", ".bin");
+    final AsynchronousFileChannel ch =
+      AsynchronousFileChannel.open(
+        file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE
+      );
+
+    new Random(42).nextBytes(data);
+
+    try {
+      // each Coroutine writes one block and reads back the block behind it
+      for (int i = 0; i < NUM_BLOCKS; i++) {
+        final int block = i;
+
+        scheduler.submit(
+          new Coroutine(
+            new CoRunnable() {
+              public void coExecute()
+                  throws SuspendExecution {
+                int offset = block * BLOCK_SIZE;
+
+                try {
+                  AsyncFileIO.write(
+                    ch, ByteBuffer.wrap(data, offset, BLOCK_SIZE), offset
+                  );
+                } catch (IOException ex) {
+                  errors.incrementAndGet();
+                }
+
+                done.countDown();
+              }
+            }
+          )
+        );
+      }
+
+      assertTrue(done.await(30, TimeUnit.SECONDS));
+      assertEquals(0, errors.get());
+
+      final ByteBuffer read = ByteBuffer.allocate(data.length + 1);
+      final CountDownLatch readDone = new CountDownLatch(1);
+
+      scheduler.submit(
+        new Coroutine(
+          new CoRunnable() {
+            public void coExecute()
+                throws SuspendExecution {
+              try {
+                AsyncFileIO.readFully(ch, read, 0);
+
+                if (AsyncFileIO.read(ch, read, data.length) != -1) {
+                  errors.incrementAndGet();
+                }
+              } catch (IOException ex) {
+                errors.incrementAndGet();
+              }
+
+              readDone.countDown();
+            }
+          }
+        )
+      );
+
+      assertTrue(readDone.await(30, TimeUnit.SECONDS));
+      assertEquals(0, errors.get());
+      assertEquals(data.length, read.position());
+      assertTrue(
+        Arrays.equals(data, Arrays.copyOf(read.array(), data.length))
+      );
+    } finally {
+      ch.close();
+      file.delete();
+      scheduler.shutdown();
+    }
+
+    assertTrue(scheduler.awaitTermination(10, TimeUnit.SECONDS));
+  }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2008, Matthias Mann
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Matthias Mann nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.matthiasmann.coroutines;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import de.matthiasmann.coroutines.instrument.InstrumentClass;
+import de.matthiasmann.coroutines.instrument.MethodDatabase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+/**
+ * Test running Coroutines on a {@link CoroutineThread}. The Coroutine runs
+ * a generated class which is instrumented with the carrier thread option -
+ * the test classes themselves use the default Stack lookup.
+ *
+ * @author Matthias Mann
+ */
+public class CarrierThreadTest {
+  private static final String NAME = "test/Carrier";
+  private static final String STACK_NAME = Type.getInternalName(Stack.class);
+  private static final String COROUTINE_NAME =
+    Type.getInternalName(Coroutine.class);
+
+  private static ArrayList<Object> results;
+  private Coroutine co;
+
+  /**
+   * Called by the generated class.
+   *
+   * @param o DOCUMENT ME!
+   */
+  public static void record(Object o) {
+    results.add(o);
+  }
+
+  @Test
+  public void testCarrierThread()
+      throws Exception {
+    co = createCoroutine();
+
+    Thread t =
+      new CoroutineThread(
+        new Runnable() {
+          public void run() {
+            while (co.getState() != Coroutine.State.FINISHED) {
+              co.run();
+              results.add(Stack.getCarrierStack());
+            }
+          }
+        }
+      );
+
+    t.start();
+    t.join();
+
+    assertEquals(expectedResults(), results);
+  }
+
+  @Test
+  public void testFallbackThread()
+      throws Exception {
+    co = createCoroutine();
+
+    while (co.getState() != Coroutine.State.FINISHED) {
+      co.run();
+      results.add(Stack.getCarrierStack());
+    }
+
+    assertEquals(expectedResults(), results);
+  }
+
+  private ArrayList<Object> expectedResults() {
+    // no active Stack after run() returned
+    return new ArrayList<Object>(Arrays.<Object>asList(co, null, co, 7, null));
+  }
+
+  private Coroutine createCoroutine()
+      throws Exception {
+    MethodDatabase db = new MethodDatabase(getClass().getClassLoader());
+
+    db.setCarrierThread(true);
+
+    ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+
+    new ClassReader(createClass()).accept(
+      new InstrumentClass(cw, db), ClassReader.EXPAND_FRAMES
+    );
+
+    byte[] bytes = cw.toByteArray();
+
+    assertTrue(callsCarrierStack(bytes));
+
+    Class<?> clazz = new Loader(getClass().getClassLoader()).define(bytes);
+
+    results = new ArrayList<Object>();
+
+    return new Coroutine((CoRunnable) clazz.newInstance());
+  }
+
+  private static boolean callsCarrierStack(byte[] bytes) {
+    final boolean[] found = new boolean[1];
+
+    new ClassReader(bytes).accept(
+      new ClassVisitor(Opcodes.ASM4) {
+        @Override
+        public MethodVisitor visitMethod(
+          int access, String name, String desc, String signature,
+          String[] exceptions
+        ) {
+          return new MethodVisitor(Opcodes.ASM4) {
+              @Override
+              public void visitMethodInsn(
+                int opcode, String owner, String name, String desc
+              ) {
+                if (owner.equals(STACK_NAME)) {
+                  found[0] |= name.equals("getCarrierStack");
+                }
+              }
+            };
+        }
+      }, 0
+    );
+
+    return found[0];
+  }
+
+  /**
+   * Creates a class which records the active Coroutine before and after a
+   * call to yield() and keeps a value in a local across it.
+   */
+  private static byte[] createClass() {
+    ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+
+    cw.visit(
+      Opcodes.V1_6, Opcodes.ACC_PUBLIC, NAME, null, "java/lang/Object",
+      new String[] { Type.getInternalName(CoRunnable.class) }
+    );
+
+    MethodVisitor mv =
+      cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+
+    mv.visitCode();
+    mv.visitVarInsn(Opcodes.ALOAD, 0);
+    mv.visitMethodInsn(
+      Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V"
+    );
+    mv.visitInsn(Opcodes.RETURN);
+    mv.visitMaxs(0, 0);
+    mv.visitEnd();
+
+    mv = cw.visitMethod(
+        Opcodes.ACC_PUBLIC, "coExecute", "()V", null,
+        new String[] { Type.getInternalName(SuspendExecution.class) }
+      );
+    mv.visitCode();
+    mv.visitLdcInsn(7);
+    mv.visitVarInsn(Opcodes.ISTORE, 1);
+    emitRecordActive(mv);
+    mv.visitMethodInsn(Opcodes.INVOKESTATIC, COROUTINE_NAME, "yield", "()V");
+    emitRecordActive(mv);
+    mv.visitVarInsn(Opcodes.ILOAD, 1);
+    mv.visitMethodInsn(
+      Opcodes.INVOKESTATIC, "java/lang/Integer", "valueOf",
+      "(I)Ljava/lang/Integer;"
+    );
+    emitRecord(mv);
+    mv.visitInsn(Opcodes.RETURN);
+    mv.visitMaxs(0, 0);
+    mv.visitEnd();
+    cw.visitEnd();
+
+    return cw.toByteArray();
+  }
+
+  private static void emitRecordActive(MethodVisitor mv) {
+    mv.visitMethodInsn(
+      Opcodes.INVOKESTATIC, COROUTINE_NAME, "getActiveCoroutine",
+      "()L" + COROUTINE_NAME + ";"
+    );
+    emitRecord(mv);
+  }
+
+  private static void emitRecord(MethodVisitor mv) {
+    mv.visitMethodInsn(
+      Opcodes.INVOKESTATIC, Type.getInternalName(CarrierThreadTest.class),
+      "record", "(Ljava/lang/Object;)V"
+    );
+  }
+
+  private static final class Loader extends ClassLoader {
+    Loader(ClassLoader parent) {
+      super(parent);
+    }
+
+    Class<?> define(byte[] bytes) {
+      return defineClass(NAME.replace('/', '.'), bytes, 0, bytes.length);
+    }
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2008, Matthias Mann
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Matthias Mann nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.matthiasmann.coroutines;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Test the {@link Channel} class.
+ *
+ * @author Matthias Mann
+ */
+public class ChannelTest {
+  private static final int NUM_PRODUCERS = 4;
+  private static final int NUM_CONSUMERS = 3;
+  private static final int NUM_VALUES = 3000;
+
+  @Test
+  public void testOfferPoll() {
+    Channel<Integer> ch = new Channel<Integer>(3);
+
+    assertEquals(4, ch.getCapacity());
+
+    for (int round = 0; round < 3; round++) {
+      for (int i = 0; i < 4; i++) {
+        assertTrue(ch.offer(i));
+      }
+
+      assertTrue(!ch.offer(4));
+
+      for (int i = 0; i < 4; i++) {
+        assertEquals(Integer.valueOf(i), ch.poll());
+      }
+
+      assertNull(ch.poll());
+    }
+  }
+
+  @Test
+  public void testManyToMany()
+      throws InterruptedException {
+    CoroutineScheduler scheduler = new CoroutineScheduler(2);
+    final Channel<Integer> ch = new Channel<Integer>(4);
+    final CountDownLatch done = new CountDownLatch(NUM_CONSUMERS);
+    final AtomicLong sum = new AtomicLong();
+
+    try {
+      for (int i = 0; i < NUM_CONSUMERS; i++) {
+        scheduler.submit(
+          new Coroutine(
+            new CoRunnable() {
+              public void coExecute()
+                  throws SuspendExecution {
+                int n = (NUM_PRODUCERS * NUM_VALUES) / NUM_CONSUMERS;
+
+                for (int j = 0; j < n; j++) {
+                  sum.addAndGet(ch.receive());
+                }
+
+                done.countDown();
+              }
+            }
+          )
+        );
+      }
+
+      for (int i = 0; i < NUM_PRODUCERS; i++) {
+        scheduler.submit(
+          new Coroutine(
+            new CoRunnable() {
+              public void coExecute()
+                  throws SuspendExecution {
+                for (int j = 1; j <= NUM_VALUES; j++) {
+                  ch.send(j);
+                }
+              }
+            }
+          )
+        );
+      }
+
+      assertTrue(done.await(30, TimeUnit.SECONDS));
+      assertEquals(
+        (long) NUM_PRODUCERS * NUM_VALUES * (NUM_VALUES + 1) / 2, sum.get()
+      );
+      assertNull(ch.poll());
+    } finally {
+      scheduler.shutdown();
+    }
+
+    assertTrue(scheduler.awaitTermination(10, TimeUnit.SECONDS));
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2008, Matthias Mann
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Matthias Mann nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.matthiasmann.coroutines;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Test awaiting a {@link CoFuture} and other Futures from a Coroutine.
+ *
+ * @author Matthias Mann
+ */
+public class CoFutureTest {
+  @Test
+  public void testAwait()
+      throws InterruptedException {
+    CoroutineScheduler scheduler = new CoroutineScheduler(1);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    final CoFuture<String> value = new CoFuture<String>();
+    final CoFuture<String> failed = new CoFuture<String>();
+    final Future<Integer> task =
+      executor.submit(
+        new Callable<Integer>() {
+          public Integer call()
+              throws Exception {
+            Thread.sleep(50);
+
+            return 42;
+          }
+        }
+      );
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch any = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(1);
+    final Object[] results = new Object[4];
+
+    try {
+      scheduler.submit(
+        new Coroutine(
+          new CoRunnable() {
+            public void coExecute()
+                throws SuspendExecution {
+              started.countDown();
+              results[0] = CoroutineScheduler.awaitAny(value, failed);
+              any.countDown();
+              CoroutineScheduler.awaitAll(value, failed, task);
+
+              try {
+                results[1] = CoroutineScheduler.await(value);
+                results[2] = CoroutineScheduler.await(task);
+                CoroutineScheduler.await(failed);
+              } catch (ExecutionException ex) {
+                results[3] = ex.getCause().getMessage();
+              }
+
+              done.countDown();
+            }
+          }
+        )
+      );
+
+      // the worker is not blocked while the Coroutine waits
+      assertTrue(started.await(10, TimeUnit.SECONDS));
+      Thread.sleep(20);
+      assertTrue(failed.fail(new IllegalStateException("failed")));
+      assertTrue(any.await(10, TimeUnit.SECONDS));
+      assertTrue(value.complete("value"));
+      assertTrue(!value.complete("again"));
+
+      assertTrue(done.await(10, TimeUnit.SECONDS));
+      assertEquals(1, results[0]);
+      assertEquals("value", results[1]);
+      assertEquals(42, results[2]);
+      assertEquals("failed", results[3]);
+    } finally {
+      executor.shutdown();
+      scheduler.shutdown();
+    }
+
+    assertTrue(scheduler.awaitTermination(10, TimeUnit.SECONDS));
+  }
+}
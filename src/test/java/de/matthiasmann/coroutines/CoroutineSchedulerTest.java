@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2008, Matthias Mann
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Matthias Mann nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.matthiasmann.coroutines;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Test the {@link CoroutineScheduler} class.
+ *
+ * @author Matthias Mann
+ */
+public class CoroutineSchedulerTest {
+  private static final int NUM_COROUTINES = 1000;
+  private static final int NUM_YIELDS = 20;
+
+  @Test
+  public void testYieldingCoroutines()
+      throws InterruptedException {
+    final CoroutineScheduler scheduler = new CoroutineScheduler(4);
+    final CountDownLatch done = new CountDownLatch(NUM_COROUTINES);
+    final AtomicInteger steps = new AtomicInteger();
+    final AtomicInteger errors = new AtomicInteger();
+
+    try {
+      for (int i = 0; i < NUM_COROUTINES; i++) {
+        scheduler.submit(
+          new Coroutine(
+            new CoRunnable() {
+              private final AtomicInteger running = new AtomicInteger();
+
+              public void coExecute()
+                  throws SuspendExecution {
+                for (int j = 0; j < NUM_YIELDS; j++) {
+                  if (running.getAndIncrement() != 0) {
+                    errors.incrementAndGet();
+                  }
+
+                  if (CoroutineScheduler.getActiveScheduler() != scheduler) {
+                    errors.incrementAndGet();
+                  }
+
+                  steps.incrementAndGet();
+                  running.decrementAndGet();
+                  Coroutine.yield();
+                }
+
+                done.countDown();
+              }
+            }
+          )
+        );
+      }
+
+      assertTrue(done.await(30, TimeUnit.SECONDS));
+      assertEquals(0, errors.get());
+      assertEquals(NUM_COROUTINES * NUM_YIELDS, steps.get());
+    } finally {
+      scheduler.shutdown();
+    }
+
+    assertTrue(scheduler.awaitTermination(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testParkAndSubmit()
+      throws InterruptedException {
+    CoroutineScheduler scheduler = new CoroutineScheduler(2);
+    final CountDownLatch parked = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(1);
+    final Coroutine[] self = new Coroutine[1];
+    Coroutine co =
+      new Coroutine(
+        new CoRunnable() {
+          public void coExecute()
+              throws SuspendExecution {
+            self[0] = Coroutine.getActiveCoroutine();
+            parked.countDown();
+            CoroutineScheduler.park();
+            done.countDown();
+          }
+        }
+      );
+
+    try {
+      scheduler.submit(co);
+      assertTrue(parked.await(10, TimeUnit.SECONDS));
+      assertSame(co, self[0]);
+
+      // the coroutine must stay parked until it is submitted again
+      assertTrue(!done.await(100, TimeUnit.MILLISECONDS));
+      scheduler.submit(co);
+      assertTrue(done.await(10, TimeUnit.SECONDS));
+    } finally {
+      scheduler.shutdown();
+    }
+
+    assertTrue(scheduler.awaitTermination(10, TimeUnit.SECONDS));
+    assertEquals(Coroutine.State.FINISHED, co.getState());
+  }
+
+  @Test
+  public void testSleep()
+      throws InterruptedException {
+    CoroutineScheduler scheduler = new CoroutineScheduler(2);
+    final CountDownLatch done = new CountDownLatch(NUM_COROUTINES);
+    final AtomicInteger early = new AtomicInteger();
+
+    try {
+      for (int i = 0; i < NUM_COROUTINES; i++) {
+        final int millis = 10 + (i % 90);
+
+        scheduler.submit(
+          new Coroutine(
+            new CoRunnable() {
+              public void coExecute()
+                  throws SuspendExecution {
+                long start = System.nanoTime();
+
+                CoroutineScheduler.sleep(millis, TimeUnit.MILLISECONDS);
+
+                if (
+                  (System.nanoTime() - start)
+                    < TimeUnit.MILLISECONDS.toNanos(millis)
+                ) {
+                  early.incrementAndGet();
+                }
+
+                done.countDown();
+              }
+            }
+          )
+        );
+      }
+
+      // all sleep at the same time on two workers
+      assertTrue(done.await(10, TimeUnit.SECONDS));
+      assertEquals(0, early.get());
+    } finally {
+      scheduler.shutdown();
+    }
+
+    assertTrue(scheduler.awaitTermination(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testParkUntilSubmit()
+      throws InterruptedException {
+    CoroutineScheduler scheduler = new CoroutineScheduler(1);
+    final CountDownLatch parked = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(1);
+    Coroutine co =
+      new Coroutine(
+        new CoRunnable() {
+          public void coExecute()
+              throws SuspendExecution {
+            parked.countDown();
+            CoroutineScheduler.parkUntil(
+              CoroutineScheduler.deadline(1, TimeUnit.HOURS)
+            );
+            done.countDown();
+          }
+        }
+      );
+
+    try {
+      scheduler.submit(co);
+      assertTrue(parked.await(10, TimeUnit.SECONDS));
+      assertTrue(!done.await(100, TimeUnit.MILLISECONDS));
+
+      // resumes before the deadline and cancels the timeout
+      scheduler.submit(co);
+      assertTrue(done.await(10, TimeUnit.SECONDS));
+    } finally {
+      scheduler.shutdown();
+    }
+
+    assertTrue(scheduler.awaitTermination(10, TimeUnit.SECONDS));
+    assertEquals(Coroutine.State.FINISHED, co.getState());
+  }
+}
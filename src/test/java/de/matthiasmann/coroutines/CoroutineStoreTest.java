@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2008, Matthias Mann
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Matthias Mann nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.matthiasmann.coroutines;
+
+import java.io.Serializable;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test storing suspended Coroutines in a CoroutineStore.
+ *
+ * @author Matthias Mann
+ */
+public class CoroutineStoreTest {
+  private static final int COUNT = 200;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testPutAndRemove()
+      throws Exception {
+    CoroutineStore store =
+      new CoroutineStore(
+        folder.getRoot(), SerializationCodec.INSTANCE, 4096
+      );
+
+    try {
+      for (int i = 0; i < COUNT; i++) {
+        Coroutine co = new Coroutine(new Counter(i));
+
+        co.run();
+        store.put(i, co);
+      }
+
+      assertEquals(COUNT, store.size());
+      assertTrue(store.getSegmentCount() > 1);
+
+      for (int i = 0; i < COUNT; i++) {
+        Coroutine co = store.remove(i);
+
+        co.run();
+        assertEquals(Coroutine.State.FINISHED, co.getState());
+        assertEquals(i + 1, ((Counter) co.getProto()).value);
+        assertFalse(store.contains(i));
+      }
+
+      assertNull(store.get(0));
+      assertEquals(0, store.size());
+    } finally {
+      store.close();
+    }
+  }
+
+  @Test
+  public void testCompact()
+      throws Exception {
+    CoroutineStore store =
+      new CoroutineStore(
+        folder.getRoot(), SerializationCodec.INSTANCE, 4096
+      );
+
+    try {
+      int segmentsPerRound = 0;
+
+      for (int round = 0; round < 5; round++) {
+        for (int i = 0; i < COUNT; i++) {
+          Coroutine co = new Coroutine(new Counter(round));
+
+          co.run();
+          store.put(i, co);
+        }
+
+        if (round == 0) {
+          segmentsPerRound = store.getSegmentCount();
+        }
+      }
+
+      store.compact();
+
+      int segments = store.getSegmentCount();
+
+      assertTrue(segments <= (2 * segmentsPerRound + 1));
+
+      // only the last round is still live
+      for (int i = 0; i < COUNT; i++) {
+        Coroutine co = store.get(i);
+
+        co.run();
+        assertEquals(5, ((Counter) co.getProto()).value);
+      }
+
+      assertTrue(folder.getRoot().list().length <= segments);
+    } finally {
+      store.close();
+    }
+
+    assertEquals(0, folder.getRoot().list().length);
+  }
+
+  @Test
+  public void testHelperMethod()
+      throws Exception {
+    CoroutineStore store = new CoroutineStore(folder.getRoot());
+
+    try {
+      Coroutine co = new Coroutine(new Stepper());
+
+      co.run();
+      store.put(1, co);
+      co = store.remove(1);
+      co.run();
+
+      Stepper proto = (Stepper) co.getProto();
+
+      // step() must continue on the restored CoroutineProto - not a copy
+      assertEquals(Coroutine.State.FINISHED, co.getState());
+      assertEquals("[a, b, done]", proto.results.toString());
+    } finally {
+      store.close();
+    }
+  }
+
+  private static class Counter implements CoRunnable, Serializable {
+    private static final long serialVersionUID = 8827157113302255L;
+
+    int value;
+
+    Counter(int value) {
+      this.value = value;
+    }
+
+    /**
+     * DOCUMENT ME!
+     *
+     * @throws SuspendExecution DOCUMENT ME!
+     */
+    public void coExecute()
+        throws SuspendExecution {
+      int v = value;
+
+      Coroutine.yield();
+      value = v + 1;
+    }
+  }
+
+  private static class Stepper implements CoRunnable, Serializable {
+    private static final long serialVersionUID = 2290611832547730L;
+
+    final ArrayList<String> results = new ArrayList<String>();
+
+    /**
+     * DOCUMENT ME!
+     *
+     * @throws SuspendExecution DOCUMENT ME!
+     */
+    public void coExecute()
+        throws SuspendExecution {
+      step();
+      results.add("done");
+    }
+
+    private void step()
+        throws SuspendExecution {
+      results.add("a");
+      Coroutine.yield();
+      results.add("b");
+    }
+  }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) 2008, Matthias Mann
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Matthias Mann nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.matthiasmann.coroutines;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Test the {@link IOEventLoop} with an echo server on the loopback
+ * interface.
+ *
+ * @author Matthias Mann
+ */
+public class IOEventLoopTest {
+  private static final int NUM_CLIENTS = 8;
+  private static final int MESSAGE_SIZE = 256 * 1024;
+
+  @Test
+  public void testEcho()
+      throws IOException, InterruptedException {
+    final CoroutineScheduler scheduler = new CoroutineScheduler(2);
+    final IOEventLoop loop = new IOEventLoop();
+    final ServerSocketChannel server = ServerSocketChannel.open();
+    final CountDownLatch done = new CountDownLatch(NUM_CLIENTS);
+    final AtomicInteger errors = new AtomicInteger();
+    final byte[] message = new byte[MESSAGE_SIZE];
+
+    new Random(42).nextBytes(message);
+    server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+    final InetSocketAddress address =
+      (InetSocketAddress) server.getLocalAddress();
+
+    try {
+      scheduler.submit(
+        new Coroutine(
+          new CoRunnable() {
+            public void coExecute()
+                throws SuspendExecution {
+              for (int i = 0; i < NUM_CLIENTS; i++) {
+                try {
+                  SocketChannel ch = loop.accept(server);
+
+                  scheduler.submit(new Coroutine(new Echo(loop, ch)));
+                } catch (IOException ex) {
+                  errors.incrementAndGet();
+                }
+              }
+            }
+          }
+        )
+      );
+
+      for (int i = 0; i < NUM_CLIENTS; i++) {
+        final SocketChannel ch = SocketChannel.open();
+
+        // one Coroutine writes the message while another reads the echo
+        scheduler.submit(
+          new Coroutine(
+            new CoRunnable() {
+              public void coExecute()
+                  throws SuspendExecution {
+                try {
+                  loop.connect(ch, address);
+                  scheduler.submit(
+                    new Coroutine(
+                      new CoRunnable() {
+                        public void coExecute()
+                            throws SuspendExecution {
+                          try {
+                            loop.write(ch, ByteBuffer.wrap(message));
+                            ch.shutdownOutput();
+                          } catch (IOException ex) {
+                            errors.incrementAndGet();
+                          }
+                        }
+                      }
+                    )
+                  );
+
+                  ByteBuffer received = ByteBuffer.allocate(MESSAGE_SIZE + 1);
+
+                  while (loop.read(ch, received) > 0) {
+                    // read until the server closes the connection
+                  }
+
+                  ch.close();
+
+                  if (
+                    (received.position() != MESSAGE_SIZE)
+                      || !Arrays.equals(
+                        message, Arrays.copyOf(received.array(), MESSAGE_SIZE)
+                      )
+                  ) {
+                    errors.incrementAndGet();
+                  }
+                } catch (IOException ex) {
+                  errors.incrementAndGet();
+                }
+
+                done.countDown();
+              }
+            }
+          )
+        );
+      }
+
+      assertTrue(done.await(30, TimeUnit.SECONDS));
+      assertEquals(0, errors.get());
+    } finally {
+      loop.close();
+      server.close();
+      scheduler.shutdown();
+    }
+
+    assertTrue(scheduler.awaitTermination(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testCloseWhileReading()
+      throws IOException, InterruptedException {
+    CoroutineScheduler scheduler = new CoroutineScheduler(1);
+    final IOEventLoop loop = new IOEventLoop();
+    ServerSocketChannel server = ServerSocketChannel.open();
+    final CountDownLatch done = new CountDownLatch(1);
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+
+    server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+    SocketChannel client = SocketChannel.open(server.getLocalAddress());
+    final SocketChannel ch = server.accept();
+
+    try {
+      Coroutine co =
+        new Coroutine(
+          new CoRunnable() {
+            public void coExecute()
+                throws SuspendExecution {
+              try {
+                loop.read(ch, ByteBuffer.allocate(16));
+              } catch (Throwable ex) {
+                error.set(ex);
+              }
+
+              done.countDown();
+            }
+          }
+        );
+
+      scheduler.submit(co);
+
+      // wait until the reader is parked and the event loop selects its key
+      while (co.schedulerState != 0) {
+        Thread.yield();
+      }
+
+      Thread.sleep(50);
+      ch.close();
+
+      assertTrue(done.await(5, TimeUnit.SECONDS));
+      assertTrue(error.get() instanceof ClosedChannelException);
+    } finally {
+      loop.close();
+      client.close();
+      server.close();
+      scheduler.shutdown();
+    }
+  }
+
+  /** Sends everything back until the client shuts down it's output. */
+  private static final class Echo implements CoRunnable {
+    private final IOEventLoop loop;
+    private final SocketChannel ch;
+
+    Echo(IOEventLoop loop, SocketChannel ch) {
+      this.loop = loop;
+      this.ch = ch;
+    }
+
+    public void coExecute()
+        throws SuspendExecution {
+      ByteBuffer buf = ByteBuffer.allocate(4096);
+
+      try {
+        try {
+          while (loop.read(ch, buf) >= 0) {
+            buf.flip();
+            loop.write(ch, buf);
+            buf.clear();
+          }
+        } finally {
+          ch.close();
+        }
+      } catch (IOException ex) {
+        // the client sees the missing data
+      }
+    }
+  }
+}
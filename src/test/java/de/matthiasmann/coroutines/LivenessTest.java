@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2008, Matthias Mann
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Matthias Mann nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.matthiasmann.coroutines;
+
+import java.lang.reflect.Field;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Test that only locals which are read after a suspend point are saved.
+ *
+ * @author Matthias Mann
+ */
+public class LivenessTest implements CoRunnable {
+  private final ArrayList<String> results = new ArrayList<String>();
+  private final String dead = new String("dead");
+  private final String live = new String("live");
+
+  /**
+   * DOCUMENT ME!
+   *
+   * @throws SuspendExecution DOCUMENT ME!
+   */
+  public void coExecute()
+      throws SuspendExecution {
+    String a = dead;
+    String b = live;
+
+    results.add(a);
+    Coroutine.yield();
+    results.add(b);
+
+    // a is overwritten before it is read again
+    a = "x";
+    Coroutine.yield();
+    results.add(a);
+  }
+
+  @Test
+  public void testLiveness()
+      throws Exception {
+    Coroutine co = new Coroutine(this);
+
+    co.run();
+    assertFalse(isSaved(co, dead));
+    assertTrue(isSaved(co, live));
+    co.run();
+    co.run();
+
+    assertEquals(Coroutine.State.FINISHED, co.getState());
+    assertEquals(3, results.size());
+    assertEquals("dead", results.get(0));
+    assertEquals("live", results.get(1));
+    assertEquals("x", results.get(2));
+  }
+
+  private static boolean isSaved(Coroutine co, Object value)
+      throws Exception {
+    Field stackField = Coroutine.class.getDeclaredField("stack");
+
+    stackField.setAccessible(true);
+
+    Object stack = stackField.get(co);
+
+    for (Field f : Stack.class.getDeclaredFields()) {
+      if (f.getType() == Object[].class) {
+        f.setAccessible(true);
+
+        Object[] data = (Object[]) f.get(stack);
+
+        if (data == null) {
+          continue;
+        }
+
+        for (Object o : data) {
+          if (o == value) {
+            return true;
+          }
+        }
+      }
+    }
+
+    return false;
+  }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2008, Matthias Mann
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Matthias Mann nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.matthiasmann.coroutines;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Test suspending calls which have values on the operand stack below their
+ * arguments and calls which only suspend sometimes.
+ *
+ * @author Matthias Mann
+ */
+public class OperandStackTest implements CoRunnable {
+  private final ArrayList<String> results = new ArrayList<String>();
+  private long result;
+
+  /**
+   * DOCUMENT ME!
+   *
+   * @throws SuspendExecution DOCUMENT ME!
+   */
+  public void coExecute()
+      throws SuspendExecution {
+    long base = 1L << 40;
+
+    for (int i = 0; i < 4; i++) {
+      // base and the arguments are on the operand stack during the call
+      result = base + compute(i, 2.5, "v" + i) + recurse(i * 3);
+    }
+
+    catchFail();
+  }
+
+  @Test
+  public void testOperandStack() {
+    Coroutine co = new Coroutine(this);
+    int runs = 0;
+
+    while (co.getState() != Coroutine.State.FINISHED) {
+      co.run();
+      runs++;
+    }
+
+    // compute() suspends for odd i and recurse() once per level
+    assertEquals(2 + 0 + 3 + 6 + 9 + 1 + 1, runs);
+    assertEquals((1L << 40) + 8 + 9, result);
+    assertEquals("[v0, v1, v2, v3, fail]", results.toString());
+  }
+
+  private long compute(int i, double d, String s)
+      throws SuspendExecution {
+    if ((i & 1) != 0) {
+      Coroutine.yield();
+    }
+
+    results.add(s);
+
+    return i + (long) (d * 2);
+  }
+
+  private int recurse(int depth)
+      throws SuspendExecution {
+    if (depth == 0) {
+      return 0;
+    }
+
+    Coroutine.yield();
+
+    return 1 + recurse(depth - 1);
+  }
+
+  private void catchFail()
+      throws SuspendExecution {
+    try {
+      fail(3);
+    } catch (IllegalArgumentException ex) {
+      results.add(ex.getMessage());
+    }
+  }
+
+  private void fail(int depth)
+      throws SuspendExecution {
+    if (depth == 0) {
+      Coroutine.yield();
+      throw new IllegalArgumentException("fail");
+    }
+
+    fail(depth - 1);
+  }
+}
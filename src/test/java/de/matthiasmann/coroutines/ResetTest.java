@@ -0,0 +1,349 @@
+/*
+ * Copyright (c) 2008, Matthias Mann
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Matthias Mann nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.matthiasmann.coroutines;
+
+import java.lang.reflect.Field;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Test {@link Coroutine#reset} and the reuse of pooled Stacks.
+ *
+ * @author Matthias Mann
+ */
+public class ResetTest {
+  private final ArrayList<String> results = new ArrayList<String>();
+
+  @Test
+  public void testStackReuse()
+      throws Exception {
+    Coroutine co1 = new Coroutine(new Producer("a"));
+
+    co1.run();
+
+    Object stack1 = getStack(co1);
+
+    runToEnd(co1);
+    assertNull(getStack(co1));
+
+    // the Stack is only acquired by the first run()
+    Coroutine co2 = new Coroutine(new Producer("b"));
+
+    assertNull(getStack(co2));
+    co2.run();
+    assertSame(stack1, getStack(co2));
+    runToEnd(co2);
+
+    assertEquals("[a0, a1, b0, b1]", results.toString());
+  }
+
+  @Test
+  public void testStackReuseScheduled()
+      throws Exception {
+    CoroutineScheduler scheduler = new CoroutineScheduler(1);
+    Set<Object> stacks =
+      Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+
+    try {
+      // created on this thread but run and finished by the worker
+      for (int i = 0; i < 20; i++) {
+        final Object[] stack = new Object[1];
+        Coroutine co =
+          new Coroutine(
+            new CoRunnable() {
+              public void coExecute()
+                  throws SuspendExecution {
+                Coroutine.yield();
+                stack[0] = Stack.getStack();
+              }
+            }
+          );
+
+        scheduler.submit(co);
+
+        // the worker has released the Stack when the Coroutine is idle
+        while (co.schedulerState != 0) {
+          Thread.yield();
+        }
+
+        assertEquals(Coroutine.State.FINISHED, co.getState());
+        stacks.add(stack[0]);
+      }
+    } finally {
+      scheduler.shutdown();
+    }
+
+    assertEquals(1, stacks.size());
+  }
+
+  @Test
+  public void testReset()
+      throws Exception {
+    Coroutine co = new Coroutine(new Producer("a"));
+
+    co.run();
+    assertEquals(Coroutine.State.SUSPENDED, co.getState());
+
+    Object stack = getStack(co);
+
+    // discard the suspended state
+    co.reset(new Producer("b"));
+    assertEquals(Coroutine.State.NEW, co.getState());
+    assertSame(stack, getStack(co));
+    assertTrue(isCleared(stack));
+    runToEnd(co);
+
+    co.reset(new Producer("c"));
+    runToEnd(co);
+
+    assertEquals("[a0, b0, b1, c0, c1]", results.toString());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testResetRunning() {
+    final Coroutine[] co = new Coroutine[1];
+
+    co[0] =
+      new Coroutine(
+        new CoRunnable() {
+          public void coExecute()
+              throws SuspendExecution {
+            co[0].reset(new Producer("x"));
+          }
+        }
+      );
+    co[0].run();
+  }
+
+  @Test
+  public void testResetParked()
+      throws Exception {
+    CoroutineScheduler scheduler = new CoroutineScheduler(1);
+    final AtomicBoolean resumed = new AtomicBoolean();
+
+    try {
+      Coroutine co =
+        new Coroutine(
+          new CoRunnable() {
+            public void coExecute()
+                throws SuspendExecution {
+              CoroutineScheduler.parkUntil(
+                CoroutineScheduler.deadline(50, TimeUnit.MILLISECONDS)
+              );
+            }
+          }
+        );
+
+      scheduler.submit(co);
+
+      // wait until the Coroutine is parked in parkUntil
+      for (;;) {
+        if (co.getState() == Coroutine.State.SUSPENDED) {
+          try {
+            co.reset(
+              new CoRunnable() {
+                public void coExecute()
+                    throws SuspendExecution {
+                  resumed.set(true);
+                }
+              }
+            );
+
+            break;
+          } catch (IllegalStateException ex) {
+            // still scheduled - try again
+          }
+        }
+
+        Thread.sleep(1);
+      }
+
+      assertNull(co.timeout);
+      assertFalse(co.parked);
+
+      // the old timeout must not start the new CoRunnable
+      Thread.sleep(150);
+      assertFalse(resumed.get());
+      assertEquals(Coroutine.State.NEW, co.getState());
+    } finally {
+      scheduler.shutdown();
+    }
+  }
+
+  @Test
+  public void testResetWhileCompleting()
+      throws Exception {
+    CoroutineScheduler a = new CoroutineScheduler(1);
+    CoroutineScheduler b = new CoroutineScheduler(1);
+
+    try {
+      for (int i = 0; i < 1000; i++) {
+        final CoFuture<String> future = new CoFuture<String>();
+        final CountDownLatch started = new CountDownLatch(1);
+        Coroutine co =
+          new Coroutine(
+            new CoRunnable() {
+              public void coExecute()
+                  throws SuspendExecution {
+                try {
+                  CoroutineScheduler.await(future);
+                } catch (Throwable ex) {
+                  throw new AssertionError(ex);
+                }
+              }
+            }
+          );
+
+        a.submit(co);
+
+        // wait until the Coroutine is parked on the future
+        while (co.schedulerState != 0) {
+          Thread.yield();
+        }
+
+        Thread completer =
+          new Thread() {
+            @Override
+            public void run() {
+              future.complete("x");
+            }
+          };
+
+        completer.start();
+
+        // the future may resume the old CoRunnable before the reset
+        for (;;) {
+          try {
+            co.reset(
+              new CoRunnable() {
+                public void coExecute()
+                    throws SuspendExecution {
+                  started.countDown();
+                }
+              }
+            );
+
+            break;
+          } catch (IllegalStateException ex) {
+            Thread.yield();
+          }
+        }
+
+        // a late wakeup from the future must not swallow this submit
+        b.submit(co);
+        completer.join();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+      }
+    } finally {
+      a.shutdown();
+      b.shutdown();
+    }
+  }
+
+  private static void runToEnd(Coroutine co) {
+    while (co.getState() != Coroutine.State.FINISHED) {
+      co.run();
+    }
+  }
+
+  private static Object getStack(Coroutine co)
+      throws Exception {
+    Field f = Coroutine.class.getDeclaredField("stack");
+
+    f.setAccessible(true);
+
+    return f.get(co);
+  }
+
+  private static boolean isCleared(Object stack)
+      throws Exception {
+    for (Field f : Stack.class.getDeclaredFields()) {
+      if (f.getType() == Object[].class) {
+        f.setAccessible(true);
+
+        Object[] array = (Object[]) f.get(stack);
+
+        // the scratch array is only allocated on demand
+        if (array == null) {
+          continue;
+        }
+
+        for (Object o : array) {
+          if (o != null) {
+            return false;
+          }
+        }
+      }
+    }
+
+    return true;
+  }
+
+  private class Producer implements CoRunnable {
+    private final String prefix;
+
+    /**
+     * Creates a new Producer object.
+     *
+     * @param prefix DOCUMENT ME!
+     */
+    Producer(String prefix) {
+      this.prefix = prefix;
+    }
+
+    /**
+     * DOCUMENT ME!
+     *
+     * @throws SuspendExecution DOCUMENT ME!
+     */
+    public void coExecute()
+        throws SuspendExecution {
+      for (int i = 0; i < 2; i++) {
+        String value = prefix + i;
+
+        results.add(value);
+        Coroutine.yield();
+      }
+    }
+  }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2008, Matthias Mann
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Matthias Mann nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.matthiasmann.coroutines;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Test the {@link Select} class.
+ *
+ * @author Matthias Mann
+ */
+public class SelectTest {
+  private static final int NUM_CHANNELS = 8;
+  private static final int NUM_VALUES = 2000;
+
+  @Test
+  public void testMerge()
+      throws InterruptedException {
+    CoroutineScheduler scheduler = new CoroutineScheduler(2);
+    final Channel<Integer>[] inputs = createChannels();
+    final Channel<Integer> output = new Channel<Integer>(2);
+    final CountDownLatch done = new CountDownLatch(1);
+    final AtomicLong sum = new AtomicLong();
+    final AtomicInteger errors = new AtomicInteger();
+
+    try {
+      // merges all inputs into one output without a coroutine per input
+      scheduler.submit(
+        new Coroutine(
+          new CoRunnable() {
+            public void coExecute()
+                throws SuspendExecution {
+              Select sel = new Select();
+
+              for (Channel<Integer> ch : inputs) {
+                sel.addReceive(ch);
+              }
+
+              for (int i = 0; i < (NUM_CHANNELS * NUM_VALUES); i++) {
+                int idx = sel.select();
+                int value = (Integer) sel.getValue();
+
+                if ((value % NUM_CHANNELS) != idx) {
+                  errors.incrementAndGet();
+                }
+
+                output.send(value);
+              }
+            }
+          }
+        )
+      );
+
+      scheduler.submit(
+        new Coroutine(
+          new CoRunnable() {
+            public void coExecute()
+                throws SuspendExecution {
+              for (int i = 0; i < (NUM_CHANNELS * NUM_VALUES); i++) {
+                sum.addAndGet(output.receive());
+              }
+
+              done.countDown();
+            }
+          }
+        )
+      );
+
+      for (int i = 0; i < NUM_CHANNELS; i++) {
+        final int channel = i;
+
+        scheduler.submit(
+          new Coroutine(
+            new CoRunnable() {
+              public void coExecute()
+                  throws SuspendExecution {
+                for (int j = 0; j < NUM_VALUES; j++) {
+                  inputs[channel].send((j * NUM_CHANNELS) + channel);
+                }
+              }
+            }
+          )
+        );
+      }
+
+      assertTrue(done.await(30, TimeUnit.SECONDS));
+
+      long n = NUM_CHANNELS * NUM_VALUES;
+
+      assertEquals((n * (n - 1)) / 2, sum.get());
+      assertEquals(0, errors.get());
+    } finally {
+      scheduler.shutdown();
+    }
+
+    assertTrue(scheduler.awaitTermination(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testSendAndTimeout()
+      throws InterruptedException {
+    CoroutineScheduler scheduler = new CoroutineScheduler(1);
+    final Channel<String> in = new Channel<String>(2);
+    final Channel<String> out = new Channel<String>(2);
+    final CountDownLatch done = new CountDownLatch(1);
+    final int[] results = new int[3];
+    final long[] elapsed = new long[1];
+
+    try {
+      scheduler.submit(
+        new Coroutine(
+          new CoRunnable() {
+            public void coExecute()
+                throws SuspendExecution {
+              Select sel = new Select();
+
+              sel.addReceive(in);
+              sel.addSend(out, "x");
+
+              // out has room for two values - then only the deadline is left
+              sel.setDeadline(
+                CoroutineScheduler.deadline(50, TimeUnit.MILLISECONDS)
+              );
+
+              long start = System.nanoTime();
+
+              for (int i = 0; i < 3; i++) {
+                results[i] = sel.select();
+              }
+
+              elapsed[0] = System.nanoTime() - start;
+              done.countDown();
+            }
+          }
+        )
+      );
+
+      assertTrue(done.await(10, TimeUnit.SECONDS));
+      assertEquals(1, results[0]);
+      assertEquals(1, results[1]);
+      assertEquals(Select.TIMEOUT, results[2]);
+      assertTrue(elapsed[0] >= TimeUnit.MILLISECONDS.toNanos(50));
+      assertEquals("x", out.poll());
+      assertEquals("x", out.poll());
+    } finally {
+      scheduler.shutdown();
+    }
+
+    assertTrue(scheduler.awaitTermination(10, TimeUnit.SECONDS));
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Channel<Integer>[] createChannels() {
+    Channel<Integer>[] channels = new Channel[NUM_CHANNELS];
+
+    for (int i = 0; i < NUM_CHANNELS; i++) {
+      channels[i] = new Channel<Integer>(4);
+    }
+
+    return channels;
+  }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2008, Matthias Mann
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Matthias Mann nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.matthiasmann.coroutines;
+
+import java.lang.reflect.Field;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Test that the Stack shrinks again after a deep recursion.
+ *
+ * @author Matthias Mann
+ */
+public class ShrinkTest implements CoRunnable {
+  private static final int DEPTH = 500;
+  private static final int SHALLOW_YIELDS = 100;
+
+  /**
+   * DOCUMENT ME!
+   *
+   * @throws SuspendExecution DOCUMENT ME!
+   */
+  public void coExecute()
+      throws SuspendExecution {
+    recurse(DEPTH);
+
+    for (int i = 0; i < SHALLOW_YIELDS; i++) {
+      Coroutine.yield();
+    }
+  }
+
+  private void recurse(int depth)
+      throws SuspendExecution {
+    if (depth > 0) {
+      recurse(depth - 1);
+    } else {
+      Coroutine.yield();
+    }
+  }
+
+  @After
+  public void restorePolicy() {
+    Coroutine.setShrinkPolicy(StackShrinkPolicy.DEFAULT);
+  }
+
+  @Test
+  public void testShrink()
+      throws Exception {
+    Coroutine co = new Coroutine(this);
+
+    co.run();
+
+    int deepSize = dataSize(co);
+
+    assertTrue(deepSize >= DEPTH);
+
+    for (int i = 0; i < SHALLOW_YIELDS; i++) {
+      co.run();
+    }
+
+    assertEquals(Coroutine.State.SUSPENDED, co.getState());
+    assertTrue(dataSize(co) < (deepSize / 4));
+    co.run();
+    assertEquals(Coroutine.State.FINISHED, co.getState());
+  }
+
+  @Test
+  public void testNever()
+      throws Exception {
+    Coroutine.setShrinkPolicy(StackShrinkPolicy.NEVER);
+
+    Coroutine co = new Coroutine(this);
+
+    co.run();
+
+    int deepSize = dataSize(co);
+
+    for (int i = 0; i < SHALLOW_YIELDS; i++) {
+      co.run();
+    }
+
+    assertEquals(deepSize, dataSize(co));
+  }
+
+  private static int dataSize(Coroutine co)
+      throws Exception {
+    Field stackField = Coroutine.class.getDeclaredField("stack");
+
+    stackField.setAccessible(true);
+
+    Field dataField = Stack.class.getDeclaredField("dataObject");
+
+    dataField.setAccessible(true);
+
+    return ((Object[]) dataField.get(stackField.get(co))).length;
+  }
+}
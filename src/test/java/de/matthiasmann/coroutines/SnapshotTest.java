@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) 2008, Matthias Mann
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Matthias Mann nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.matthiasmann.coroutines;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+/**
+ * Test the compact snapshot format.
+ *
+ * @author Matthias Mann
+ */
+public class SnapshotTest {
+  @Test
+  public void testSnapshot()
+      throws Exception {
+    Coroutine co1 = new Coroutine(new Worker());
+
+    co1.run();
+    co1.run();
+
+    Coroutine co2 = copy(co1, new StringCodec());
+
+    assertNotSame(co1, co2);
+    assertEquals(Coroutine.State.SUSPENDED, co2.getState());
+
+    co1.run();
+    co2.run();
+
+    assertEquals(Coroutine.State.FINISHED, co1.getState());
+    assertEquals(Coroutine.State.FINISHED, co2.getState());
+
+    ArrayList<String> results = ((Worker) co2.getProto()).results;
+
+    assertEquals(3, results.size());
+    assertEquals("a0 3 -1234567890123 2.5", results.get(2));
+    assertEquals(results, ((Worker) co1.getProto()).results);
+  }
+
+  @Test
+  public void testNewAndFinished()
+      throws Exception {
+    Coroutine co = new Coroutine(new Worker());
+
+    assertEquals(
+      Coroutine.State.NEW, copy(co, SerializationCodec.INSTANCE).getState()
+    );
+
+    co.run();
+    co.run();
+    co.run();
+
+    Coroutine copy = copy(co, SerializationCodec.INSTANCE);
+
+    assertEquals(Coroutine.State.FINISHED, copy.getState());
+    assertEquals(3, ((Worker) copy.getProto()).results.size());
+  }
+
+  @Test
+  public void testSharedReferences()
+      throws Exception {
+    Coroutine co1 = new Coroutine(new Stepper(false));
+
+    co1.run();
+
+    // the receiver of step() is the restored CoroutineProto
+    Coroutine co2 = copy(co1, new StringCodec());
+
+    co2.run();
+    assertEquals(Coroutine.State.FINISHED, co2.getState());
+    assertEquals("[a, b, done]", ((Stepper) co2.getProto()).results.toString());
+
+    // a single object stream also keeps a local which aliases a field shared
+    co1 = new Coroutine(new Stepper(true));
+    co1.run();
+
+    Coroutine co3 = copy(co1, SerializationCodec.INSTANCE);
+    Stepper proto = (Stepper) co3.getProto();
+
+    co3.run();
+    assertEquals(Coroutine.State.FINISHED, co3.getState());
+    assertEquals("[a, b, done]", proto.results.toString());
+    assertSame(proto.results, proto.alias);
+  }
+
+  private static Coroutine copy(Coroutine co, ObjectCodec codec)
+      throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    DataOutputStream dos = new DataOutputStream(baos);
+
+    co.writeSnapshot(dos, codec);
+    dos.close();
+
+    DataInputStream dis =
+      new DataInputStream(new ByteArrayInputStream(baos.toByteArray()));
+
+    return Coroutine.readSnapshot(dis, codec);
+  }
+
+  private static class Worker implements CoRunnable, Serializable {
+    private static final long serialVersionUID = 4410728375521235L;
+
+    final ArrayList<String> results = new ArrayList<String>();
+
+    /**
+     * DOCUMENT ME!
+     *
+     * @throws SuspendExecution DOCUMENT ME!
+     */
+    public void coExecute()
+        throws SuspendExecution {
+      String s = "a";
+      int i = 3;
+      long l = -1234567890123L;
+      double d = 2.5;
+
+      for (int n = 0; n < 2; n++) {
+        results.add(s + n);
+        Coroutine.yield();
+      }
+
+      results.add(s + "0 " + i + " " + l + " " + d);
+    }
+  }
+
+  private static class Stepper implements CoRunnable, Serializable {
+    private static final long serialVersionUID = 7736193285601154L;
+
+    final ArrayList<String> results = new ArrayList<String>();
+    final boolean aliased;
+    ArrayList<String> alias;
+
+    /**
+     * Creates a new Stepper object.
+     *
+     * @param aliased true if step() keeps the results in a local
+     */
+    Stepper(boolean aliased) {
+      this.aliased = aliased;
+    }
+
+    /**
+     * DOCUMENT ME!
+     *
+     * @throws SuspendExecution DOCUMENT ME!
+     */
+    public void coExecute()
+        throws SuspendExecution {
+      step();
+      results.add("done");
+    }
+
+    private void step()
+        throws SuspendExecution {
+      ArrayList<String> r = aliased ? results : null;
+
+      results.add("a");
+      Coroutine.yield();
+      results.add("b");
+      alias = r;
+    }
+  }
+
+  private static class StringCodec implements ObjectCodec {
+    /**
+     * DOCUMENT ME!
+     *
+     * @param  out   DOCUMENT ME!
+     * @param  value DOCUMENT ME!
+     *
+     * @throws IOException DOCUMENT ME!
+     */
+    public void writeObject(DataOutput out, Object value)
+        throws IOException {
+      if (value instanceof String) {
+        out.writeBoolean(true);
+        out.writeUTF((String) value);
+      } else {
+        out.writeBoolean(false);
+        SerializationCodec.INSTANCE.writeObject(out, value);
+      }
+    }
+
+    /**
+     * DOCUMENT ME!
+     *
+     * @param  in DOCUMENT ME!
+     *
+     * @return DOCUMENT ME!
+     *
+     * @throws IOException DOCUMENT ME!
+     */
+    public Object readObject(DataInput in)
+        throws IOException {
+      if (in.readBoolean()) {
+        return in.readUTF();
+      }
+
+      return SerializationCodec.INSTANCE.readObject(in);
+    }
+  }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2008, Matthias Mann
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Matthias Mann nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.matthiasmann.coroutines;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+/**
+ * Test the packed layout of the Stack - primitives in 32 bit slots and
+ * references in their own region.
+ *
+ * @author Matthias Mann
+ */
+public class StackTest {
+  @Test
+  public void testPrimitives() {
+    Stack s = new Stack(null);
+
+    s.pushMethodAndReserveSpace(1, 7, 0);
+    Stack.push(-2L, s, 0);
+    Stack.push(Long.MIN_VALUE + 0x80000000L, s, 2);
+    Stack.push(-0.5, s, 4);
+    Stack.push(-7, s, 6);
+
+    s.pushMethodAndReserveSpace(2, 1, 1);
+    Stack.push(1.5f, s, 0);
+    Stack.push("x", s, 0);
+
+    assertEquals(2, s.nextMethodEntry());
+    assertEquals(1.5f, s.getFloat(0), 0f);
+    assertEquals("x", s.getObject(0));
+
+    assertEquals(1, s.nextMethodEntry());
+    assertEquals(-2L, s.getLong(0));
+    assertEquals(Long.MIN_VALUE + 0x80000000L, s.getLong(2));
+    assertEquals(-0.5, s.getDouble(4), 0.0);
+    assertEquals(-7, s.getInt(6));
+
+    assertEquals(0, s.nextMethodEntry());
+  }
+
+  @Test
+  public void testGrow() {
+    Stack s = new Stack(null);
+
+    for (int i = 1; i <= 100; i++) {
+      s.pushMethodAndReserveSpace(i, 2, i & 1);
+      Stack.push((long) i << 40, s, 0);
+
+      if ((i & 1) != 0) {
+        Stack.push(Integer.valueOf(i), s, 0);
+      }
+    }
+
+    for (int i = 100; i >= 1; i--) {
+      assertEquals(i, s.nextMethodEntry());
+      assertEquals((long) i << 40, s.getLong(0));
+
+      if ((i & 1) != 0) {
+        assertEquals(Integer.valueOf(i), s.getObject(0));
+      }
+    }
+  }
+
+  @Test
+  public void testClear() {
+    Stack s = new Stack(null);
+
+    for (int i = 0; i < 40; i++) {
+      s.pushMethodAndReserveSpace(i, 0, 1);
+      Stack.push(Integer.valueOf(i), s, 0);
+    }
+
+    // the references above the method of the last resume are still saved
+    s.nextMethodEntry();
+    s.clear();
+
+    for (Object o : s.dataObject) {
+      assertNull(o);
+    }
+
+    s.pushMethodAndReserveSpace(1, 0, 2);
+    Stack.push("x", s, 1);
+    s.clear();
+    assertNull(s.dataObject[1]);
+    assertEquals(0, s.nextMethodEntry());
+  }
+}
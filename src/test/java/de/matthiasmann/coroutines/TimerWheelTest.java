@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2008, Matthias Mann
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Matthias Mann nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.matthiasmann.coroutines;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Test the {@link TimerWheel} class.
+ *
+ * @author Matthias Mann
+ */
+public class TimerWheelTest {
+  @Test
+  public void testExpireAtTick() {
+    TimerWheel wheel = new TimerWheel();
+    Random r = new Random(42);
+    ArrayList<TimerWheel.Timeout> expired = new ArrayList<TimerWheel.Timeout>();
+    ArrayList<TimerWheel.Timeout> removed = new ArrayList<TimerWheel.Timeout>();
+    long now = 0;
+
+    for (int i = 0; i < 2000; i++) {
+      // spread the ticks over several levels
+      long delay = r.nextInt(1 << (1 + r.nextInt(24)));
+      TimerWheel.Timeout t = new TimerWheel.Timeout(null, now + delay);
+
+      wheel.add(t);
+
+      if ((i % 10) == 0) {
+        wheel.remove(t);
+        removed.add(t);
+      }
+
+      if ((i % 3) == 0) {
+        now += r.nextInt(5000);
+        advance(wheel, now, expired);
+      }
+    }
+
+    advance(wheel, Long.MAX_VALUE >> 1, expired);
+
+    assertEquals(0, wheel.size());
+    assertEquals(Long.MAX_VALUE, wheel.nextTick());
+    assertEquals(1800, expired.size());
+
+    for (TimerWheel.Timeout t : removed) {
+      assertTrue(!expired.contains(t));
+    }
+  }
+
+  @Test
+  public void testFarFuture() {
+    TimerWheel wheel = new TimerWheel();
+    ArrayList<TimerWheel.Timeout> expired = new ArrayList<TimerWheel.Timeout>();
+    TimerWheel.Timeout t = new TimerWheel.Timeout(null, Long.MAX_VALUE - 1);
+
+    wheel.add(t);
+
+    // only the slot boundaries are visited on the way
+    int steps = 0;
+
+    while (wheel.nextTick() < (Long.MAX_VALUE - 1)) {
+      wheel.advance(wheel.nextTick(), expired);
+      steps++;
+    }
+
+    assertTrue(steps < 100);
+    assertEquals(0, expired.size());
+    assertEquals(0, expired.size());
+    assertEquals(Long.MAX_VALUE - 1, wheel.nextTick());
+    wheel.advance(Long.MAX_VALUE - 1, expired);
+    assertEquals(1, expired.size());
+  }
+
+  /**
+   * Advances the wheel to the given tick in steps of it's next tick and
+   * checks that each timeout expires exactly at it's tick.
+   */
+  private static void advance(
+    TimerWheel wheel, long now, ArrayList<TimerWheel.Timeout> expired
+  ) {
+    while (wheel.getTick() <= now) {
+      long next = Math.min(wheel.nextTick(), now);
+      int count = expired.size();
+
+      wheel.advance(next, expired);
+
+      for (int i = count; i < expired.size(); i++) {
+        assertEquals(next, expired.get(i).tick);
+      }
+    }
+  }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2008, Matthias Mann
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Matthias Mann nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.matthiasmann.coroutines.instrument;
+
+import java.util.Arrays;
+import java.util.List;
+
+import de.matthiasmann.coroutines.CoRunnable;
+import de.matthiasmann.coroutines.Coroutine;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Test that values survive a suspend with calls to the Stack, inlined Stack
+ * access and bulk Stack access.
+ *
+ * @author Matthias Mann
+ */
+public class InlineStackAccessTest {
+  private static final String NAME = "test/Locals";
+  private static final long LONG_VALUE = -3L << 40;
+
+  private static List<Object> recorded;
+
+  /**
+   * Called by the generated class after it was resumed.
+   *
+   * @param i DOCUMENT ME!
+   * @param l DOCUMENT ME!
+   * @param d DOCUMENT ME!
+   * @param f DOCUMENT ME!
+   * @param o DOCUMENT ME!
+   */
+  public static void record(int i, long l, double d, float f, Object o) {
+    recorded = Arrays.<Object>asList(i, l, d, f, o);
+  }
+
+  @Test
+  public void testCalls()
+      throws Exception {
+    runInstrumented(false, false);
+  }
+
+  @Test
+  public void testInline()
+      throws Exception {
+    runInstrumented(true, false);
+  }
+
+  @Test
+  public void testBulk()
+      throws Exception {
+    runInstrumented(false, true);
+  }
+
+  private void runInstrumented(boolean inline, boolean bulk)
+      throws Exception {
+    MethodDatabase db = new MethodDatabase(getClass().getClassLoader());
+
+    db.setInlineStackAccess(inline);
+    db.setBulkStackAccess(bulk);
+
+    ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+
+    new ClassReader(createClass()).accept(
+      new InstrumentClass(cw, db), ClassReader.EXPAND_FRAMES
+    );
+
+    Class<?> clazz = new Loader(getClass().getClassLoader()).define(
+      cw.toByteArray()
+    );
+    Coroutine co = new Coroutine((CoRunnable) clazz.newInstance());
+
+    recorded = null;
+    co.run();
+    assertEquals(Coroutine.State.SUSPENDED, co.getState());
+    co.run();
+    assertEquals(Coroutine.State.FINISHED, co.getState());
+    assertEquals(
+      Arrays.<Object>asList(7, LONG_VALUE, -0.25, 1.5f, "x"), recorded
+    );
+  }
+
+  /**
+   * Creates a class which keeps values of all kinds in locals across a call
+   * to yield().
+   */
+  private static byte[] createClass() {
+    ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+
+    cw.visit(
+      Opcodes.V1_6, Opcodes.ACC_PUBLIC, NAME, null, "java/lang/Object",
+      new String[] { "de/matthiasmann/coroutines/CoRunnable" }
+    );
+
+    MethodVisitor mv =
+      cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+
+    mv.visitCode();
+    mv.visitVarInsn(Opcodes.ALOAD, 0);
+    mv.visitMethodInsn(
+      Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V"
+    );
+    mv.visitInsn(Opcodes.RETURN);
+    mv.visitMaxs(0, 0);
+    mv.visitEnd();
+
+    mv = cw.visitMethod(
+        Opcodes.ACC_PUBLIC, "coExecute", "()V", null,
+        new String[] { CheckInstrumentationVisitor.EXCEPTION_NAME }
+      );
+    mv.visitCode();
+    mv.visitLdcInsn(7);
+    mv.visitVarInsn(Opcodes.ISTORE, 1);
+    mv.visitLdcInsn(LONG_VALUE);
+    mv.visitVarInsn(Opcodes.LSTORE, 2);
+    mv.visitLdcInsn(-0.25);
+    mv.visitVarInsn(Opcodes.DSTORE, 4);
+    mv.visitLdcInsn(1.5f);
+    mv.visitVarInsn(Opcodes.FSTORE, 6);
+    mv.visitLdcInsn("x");
+    mv.visitVarInsn(Opcodes.ASTORE, 7);
+    mv.visitMethodInsn(
+      Opcodes.INVOKESTATIC, InstrumentClass.COROUTINE_NAME, "yield", "()V"
+    );
+    mv.visitVarInsn(Opcodes.ILOAD, 1);
+    mv.visitVarInsn(Opcodes.LLOAD, 2);
+    mv.visitVarInsn(Opcodes.DLOAD, 4);
+    mv.visitVarInsn(Opcodes.FLOAD, 6);
+    mv.visitVarInsn(Opcodes.ALOAD, 7);
+    mv.visitMethodInsn(
+      Opcodes.INVOKESTATIC,
+      "de/matthiasmann/coroutines/instrument/InlineStackAccessTest", "record",
+      "(IJDFLjava/lang/Object;)V"
+    );
+    mv.visitInsn(Opcodes.RETURN);
+    mv.visitMaxs(0, 0);
+    mv.visitEnd();
+    cw.visitEnd();
+
+    return cw.toByteArray();
+  }
+
+  private static final class Loader extends ClassLoader {
+    Loader(ClassLoader parent) {
+      super(parent);
+    }
+
+    Class<?> define(byte[] bytes) {
+      return defineClass(NAME.replace('/', '.'), bytes, 0, bytes.length);
+    }
+  }
+}
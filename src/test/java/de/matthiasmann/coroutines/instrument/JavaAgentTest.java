@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2008, Matthias Mann
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Matthias Mann nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.matthiasmann.coroutines.instrument;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Test the class filter and the quick scan of the JavaAgent.
+ *
+ * @author Matthias Mann
+ */
+public class JavaAgentTest {
+  @Test
+  public void testPatterns() {
+    String pkg = JavaAgent.toInternalPattern("com.example.*");
+    String tree = JavaAgent.toInternalPattern("com.example.**");
+    String cls = JavaAgent.toInternalPattern("com.example.Foo");
+
+    assertTrue(JavaAgent.matches(pkg, "com/example/Foo"));
+    assertFalse(JavaAgent.matches(pkg, "com/example/sub/Foo"));
+    assertFalse(JavaAgent.matches(pkg, "com/examples/Foo"));
+
+    assertTrue(JavaAgent.matches(tree, "com/example/Foo"));
+    assertTrue(JavaAgent.matches(tree, "com/example/sub/Foo"));
+    assertFalse(JavaAgent.matches(tree, "com/examples/Foo"));
+
+    assertTrue(JavaAgent.matches(cls, "com/example/Foo"));
+    assertFalse(JavaAgent.matches(cls, "com/example/Foo$1"));
+  }
+
+  @Test
+  public void testPrescan()
+      throws IOException {
+    assertNotNull(JavaAgent.prescan(createClass(true)));
+    assertNull(JavaAgent.prescan(createClass(false)));
+
+    // already instrumented by the build
+    assertNull(JavaAgent.prescan(readClass(getClass())));
+  }
+
+  private static byte[] createClass(boolean suspendable) {
+    ClassWriter cw = new ClassWriter(0);
+    String[] exceptions =
+      suspendable ? new String[] { CheckInstrumentationVisitor.EXCEPTION_NAME }
+                  : null;
+
+    cw.visit(
+      Opcodes.V1_5, Opcodes.ACC_PUBLIC, "test/Generated", null,
+      "java/lang/Object", null
+    );
+
+    MethodVisitor mv =
+      cw.visitMethod(
+        Opcodes.ACC_PUBLIC | Opcodes.ACC_ABSTRACT, "run", "()V", null,
+        exceptions
+      );
+
+    mv.visitEnd();
+    cw.visitEnd();
+
+    return cw.toByteArray();
+  }
+
+  private static byte[] readClass(Class<?> clazz)
+      throws IOException {
+    InputStream is =
+      clazz.getResourceAsStream(clazz.getSimpleName() + ".class");
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+
+    try {
+      byte[] buf = new byte[4096];
+      int read;
+
+      while ((read = is.read(buf)) > 0) {
+        baos.write(buf, 0, read);
+      }
+    } finally {
+      is.close();
+    }
+
+    return baos.toByteArray();
+  }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2008, Matthias Mann
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Matthias Mann nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.matthiasmann.coroutines.instrument;
+
+/**
+ * <p>Measures the cost of a call through an instrumented method. The same
+ * workload is run with a method which never suspends and with one which
+ * yields on every call. With lazy capture the first only pays for the
+ * prologue and copying the operands through spill locals, the second also
+ * captures and restores the frame of the caller.</p>
+ *
+ * <p>Not run by the test suite. Run it after <code>mvn test-compile</code>
+ * with the classes, test classes and ASM on the class path:</p>
+ *
+ * <pre>
+ * java -cp target/classes:target/test-classes:asm-debug-all.jar \
+ *   de.matthiasmann.coroutines.instrument.LazyCaptureBenchmark
+ * </pre>
+ *
+ * @author Matthias Mann
+ */
+public final class LazyCaptureBenchmark {
+  private static final int CALLS = 10000000;
+  private static final int ROUNDS = 10;
+
+  private LazyCaptureBenchmark() {
+  }
+
+  /**
+   * DOCUMENT ME!
+   *
+   * @param  args not used
+   *
+   * @throws Exception DOCUMENT ME!
+   */
+  public static void main(String[] args)
+      throws Exception {
+    Workload workload =
+      new Workload(
+        new MethodDatabase(LazyCaptureBenchmark.class.getClassLoader())
+      );
+
+    // the first rounds are the warm up
+    for (int round = 0; round < ROUNDS; round++) {
+      System.out.printf(
+        "round %2d: no suspend %6.2f ns/call, suspend %6.2f ns/call%n", round,
+        perCall(workload.run(CALLS, false)), perCall(workload.run(CALLS, true))
+      );
+    }
+  }
+
+  private static double perCall(long nanos) {
+    return (double) nanos / CALLS;
+  }
+}
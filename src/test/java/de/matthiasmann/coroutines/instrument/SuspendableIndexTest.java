@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2008, Matthias Mann
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Matthias Mann nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.matthiasmann.coroutines.instrument;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+
+import java.util.HashMap;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test that the MethodDatabase uses the suspendable method index and
+ * resolves methods through super classes and interfaces.
+ *
+ * @author Matthias Mann
+ */
+public class SuspendableIndexTest {
+  private static final String[] NONE = {};
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testLookup()
+      throws IOException {
+    MethodDatabase db = createDatabase();
+
+    assertTrue(db.isMethodSuspendable("test/A", "run", "()V"));
+    assertTrue(db.isMethodSuspendable("test/A", "go", "(I)V"));
+    assertTrue(db.isMethodSuspendable("test/C", "go", "(I)V"));
+
+    // the class files don't exist - without the index these would be
+    // assumed to be suspendable
+    assertFalse(db.isMethodSuspendable("test/B", "run", "()V"));
+    assertFalse(db.isMethodSuspendable("test/C", "run", "()V"));
+    assertFalse(db.isMethodSuspendable("test/C", "other", "()V"));
+  }
+
+  @Test
+  public void testOverloads()
+      throws IOException {
+    MethodDatabase db = createDatabase();
+
+    assertFalse(db.isMethodSuspendable("test/A", "run", "(I)V"));
+    assertFalse(db.isMethodSuspendable("test/C", "go", "()V"));
+    assertFalse(db.isMethodSuspendable("test/C", "go", "(J)V"));
+  }
+
+  @Test
+  @SuppressWarnings("deprecation")
+  public void testNameOnly()
+      throws IOException {
+    MethodDatabase db = createDatabase();
+
+    // the name-only lookup matches every overload
+    assertTrue(db.isMethodSuspendable("test/C", "go"));
+    assertFalse(db.isMethodSuspendable("test/C", "other"));
+  }
+
+  @Test
+  public void testInterfaces()
+      throws IOException {
+    MethodDatabase db = createDatabase();
+
+    assertTrue(db.isMethodSuspendable("test/J", "call", "()V"));
+    assertTrue(db.isMethodSuspendable("test/D", "call", "()V"));
+    assertTrue(db.isMethodSuspendable("test/D", "go", "(I)V"));
+    assertFalse(db.isMethodSuspendable("test/D", "call", "(I)V"));
+
+    // test/Missing can't be found - only its methods are in doubt
+    assertTrue(db.isMethodSuspendable("test/E", "call", "()V"));
+    assertTrue(db.isMethodSuspendable("test/E", "other", "()V"));
+  }
+
+  @Test
+  public void testCheckedClassHidesIndex()
+      throws IOException {
+    MethodDatabase db = createDatabase();
+
+    db.addPlainClass("test/A", "test/B", NONE);
+
+    assertFalse(db.isMethodSuspendable("test/A", "run", "()V"));
+    assertTrue(db.isMethodSuspendable("test/A", "go", "(I)V"));
+  }
+
+  private MethodDatabase createDatabase()
+      throws IOException {
+    File dir = folder.newFolder("classes");
+    HashMap<String, MethodDatabase.ClassEntry> classes =
+      new HashMap<String, MethodDatabase.ClassEntry>();
+
+    classes.put(
+      "test/A", new MethodDatabase.ClassEntry("test/B", NONE, "run()V")
+    );
+    classes.put(
+      "test/B",
+      new MethodDatabase.ClassEntry("java/lang/Object", NONE, "go(I)V")
+    );
+    classes.put("test/C", new MethodDatabase.ClassEntry("test/B", NONE));
+    classes.put(
+      "test/I",
+      new MethodDatabase.ClassEntry("java/lang/Object", NONE, "call()V")
+    );
+    classes.put(
+      "test/J",
+      new MethodDatabase.ClassEntry(
+        "java/lang/Object", new String[] { "java/lang/Runnable", "test/I" }
+      )
+    );
+    classes.put(
+      "test/D",
+      new MethodDatabase.ClassEntry("test/C", new String[] { "test/J" })
+    );
+    classes.put(
+      "test/E",
+      new MethodDatabase.ClassEntry(
+        "test/C", new String[] { "test/Missing", "test/I" }
+      )
+    );
+    SuspendableIndex.write(dir, classes);
+
+    return new MethodDatabase(
+      new URLClassLoader(new URL[] { dir.toURI().toURL() }, null)
+    );
+  }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2008, Matthias Mann
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Matthias Mann nor the names of its
+ *       contributors may be used to endorse or promote products derived from
+ *       this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.matthiasmann.coroutines.instrument;
+
+import de.matthiasmann.coroutines.CoRunnable;
+import de.matthiasmann.coroutines.Coroutine;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * A generated CoRunnable for the benchmarks. It calls a suspendable method
+ * in a loop - the method yields on every call or never. The class is
+ * instrumented in memory so that the benchmarks can compare instrumentation
+ * options in one JVM.
+ *
+ * @author Matthias Mann
+ */
+final class Workload {
+  private static final String NAME = "test/Workload";
+
+  private final Class<?> clazz;
+
+  /**
+   * Creates a new Workload object.
+   *
+   * @param  db the MethodDatabase with the instrumentation options
+   *
+   * @throws Exception DOCUMENT ME!
+   */
+  Workload(MethodDatabase db)
+      throws Exception {
+    ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+
+    new ClassReader(createClass()).accept(
+      new InstrumentClass(cw, db), ClassReader.EXPAND_FRAMES
+    );
+
+    this.clazz = new Loader(getClass().getClassLoader()).define(
+      cw.toByteArray()
+    );
+  }
+
+  /**
+   * Runs a new Coroutine to the end on the calling thread.
+   *
+   * @param  calls   the number of calls of the suspendable method
+   * @param  suspend true if the method yields on every call
+   *
+   * @return the elapsed time in nanoseconds
+   *
+   * @throws Exception DOCUMENT ME!
+   */
+  long run(int calls, boolean suspend)
+      throws Exception {
+    Coroutine co =
+      new Coroutine(
+        (CoRunnable) clazz.getConstructor(int.class, boolean.class).newInstance(
+          calls, suspend
+        )
+      );
+    long start = System.nanoTime();
+
+    while (co.getState() != Coroutine.State.FINISHED) {
+      co.run();
+    }
+
+    return System.nanoTime() - start;
+  }
+
+  /**
+   * Creates the class:
+   *
+   * <pre>
+   * public void coExecute() throws SuspendExecution {
+   *   for (int i = 0; i &lt; count; i++) {
+   *     step(i);
+   *   }
+   * }
+   *
+   * void step(int i) throws SuspendExecution {
+   *   if (suspend) {
+   *     Coroutine.yield();
+   *   }
+   * }
+   * </pre>
+   */
+  private static byte[] createClass() {
+    ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+
+    cw.visit(
+      Opcodes.V1_7, Opcodes.ACC_PUBLIC, NAME, null, "java/lang/Object",
+      new String[] { "de/matthiasmann/coroutines/CoRunnable" }
+    );
+    cw.visitField(Opcodes.ACC_PRIVATE, "count", "I", null, null).visitEnd();
+    cw.visitField(Opcodes.ACC_PRIVATE, "suspend", "Z", null, null)
+      .visitEnd();
+
+    MethodVisitor mv =
+      cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "(IZ)V", null, null);
+
+    mv.visitCode();
+    mv.visitVarInsn(Opcodes.ALOAD, 0);
+    mv.visitMethodInsn(
+      Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V"
+    );
+    mv.visitVarInsn(Opcodes.ALOAD, 0);
+    mv.visitVarInsn(Opcodes.ILOAD, 1);
+    mv.visitFieldInsn(Opcodes.PUTFIELD, NAME, "count", "I");
+    mv.visitVarInsn(Opcodes.ALOAD, 0);
+    mv.visitVarInsn(Opcodes.ILOAD, 2);
+    mv.visitFieldInsn(Opcodes.PUTFIELD, NAME, "suspend", "Z");
+    mv.visitInsn(Opcodes.RETURN);
+    mv.visitMaxs(0, 0);
+    mv.visitEnd();
+
+    Label lLoop = new Label();
+    Label lEnd = new Label();
+
+    mv = cw.visitMethod(
+        Opcodes.ACC_PUBLIC, "coExecute", "()V", null,
+        new String[] { CheckInstrumentationVisitor.EXCEPTION_NAME }
+      );
+    mv.visitCode();
+    mv.visitInsn(Opcodes.ICONST_0);
+    mv.visitVarInsn(Opcodes.ISTORE, 1);
+    mv.visitLabel(lLoop);
+    mv.visitVarInsn(Opcodes.ILOAD, 1);
+    mv.visitVarInsn(Opcodes.ALOAD, 0);
+    mv.visitFieldInsn(Opcodes.GETFIELD, NAME, "count", "I");
+    mv.visitJumpInsn(Opcodes.IF_ICMPGE, lEnd);
+    mv.visitVarInsn(Opcodes.ALOAD, 0);
+    mv.visitVarInsn(Opcodes.ILOAD, 1);
+    mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, NAME, "step", "(I)V");
+    mv.visitIincInsn(1, 1);
+    mv.visitJumpInsn(Opcodes.GOTO, lLoop);
+    mv.visitLabel(lEnd);
+    mv.visitInsn(Opcodes.RETURN);
+    mv.visitMaxs(0, 0);
+    mv.visitEnd();
+
+    Label lSkip = new Label();
+
+    mv = cw.visitMethod(
+        0, "step", "(I)V", null,
+        new String[] { CheckInstrumentationVisitor.EXCEPTION_NAME }
+      );
+    mv.visitCode();
+    mv.visitVarInsn(Opcodes.ALOAD, 0);
+    mv.visitFieldInsn(Opcodes.GETFIELD, NAME, "suspend", "Z");
+    mv.visitJumpInsn(Opcodes.IFEQ, lSkip);
+    mv.visitMethodInsn(
+      Opcodes.INVOKESTATIC, InstrumentClass.COROUTINE_NAME, "yield", "()V"
+    );
+    mv.visitLabel(lSkip);
+    mv.visitInsn(Opcodes.RETURN);
+    mv.visitMaxs(0, 0);
+    mv.visitEnd();
+    cw.visitEnd();
+
+    return cw.toByteArray();
+  }
+
+  private static final class Loader extends ClassLoader {
+    Loader(ClassLoader parent) {
+      super(parent);
+    }
+
+    Class<?> define(byte[] bytes) {
+      return defineClass(NAME.replace('/', '.'), bytes, 0, bytes.length);
+    }
+  }
+}